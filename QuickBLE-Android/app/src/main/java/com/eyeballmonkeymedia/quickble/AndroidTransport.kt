@@ -0,0 +1,623 @@
+package com.mb3hel.quickble
+
+import android.bluetooth.*
+import android.bluetooth.le.AdvertiseCallback
+import android.bluetooth.le.AdvertiseData
+import android.bluetooth.le.AdvertiseSettings
+import android.bluetooth.le.BluetoothLeAdvertiser
+import android.bluetooth.le.ScanCallback
+import android.bluetooth.le.ScanFilter
+import android.bluetooth.le.ScanResult
+import android.bluetooth.le.ScanSettings
+import android.content.Context
+import android.content.pm.PackageManager
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.ParcelUuid
+import android.os.SystemClock
+import android.support.annotation.RequiresApi
+import java.util.*
+
+/**
+ * An EventLoop on a handler's looper
+ */
+internal class HandlerEventLoop(val handler: Handler): EventLoop {
+    override fun post(task: Runnable){
+        handler.post(task)
+    }
+
+    override fun postDelayed(task: Runnable, delayMillis: Long){
+        handler.postDelayed(task, delayMillis)
+    }
+
+    override fun removeCallbacks(task: Runnable){
+        handler.removeCallbacks(task)
+    }
+}
+
+/**
+ * A BluetoothDevice. Equal to every other AndroidDevice of the same device so each callback can wrap the device it gets.
+ */
+internal class AndroidDevice(val device: BluetoothDevice): RemoteDevice {
+    // Android addresses are uppercase
+    override val address: String
+        get() = device.address
+    override val name: String?
+        get() = device.name
+
+    override fun equals(other: Any?): Boolean{
+        return other is AndroidDevice && other.device == device
+    }
+
+    override fun hashCode(): Int{
+        return device.hashCode()
+    }
+}
+
+/**
+ * Start a queued operation on a BluetoothGatt. Operands are GattCharacteristics and GattDescriptors from service discovery
+ * (gattServicesOf), their platform objects are read and written.
+ * @return Was the operation started
+ */
+internal fun performOperation(gatt: BluetoothGatt, operation: DelayedGattOperation): Boolean{
+    val attribute = (operation.operand as GattAttribute).platform
+    return if(operation.operandType == OperandType.Characteristic){
+        // Characteristic
+        val char = attribute as BluetoothGattCharacteristic
+        if(operation.operationType == OperationType.Read){
+            // Read
+            gatt.readCharacteristic(char)
+        }else{
+            // Write
+            char.value = operation.data
+            if(operation.noResponse){
+                // The write type is read when the request is built so it can be restored right after
+                val writeType = char.writeType
+                char.writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                val started = gatt.writeCharacteristic(char)
+                char.writeType = writeType
+                started
+            }else{
+                gatt.writeCharacteristic(char)
+            }
+        }
+    }else{
+        // Descriptor
+        val desc = attribute as BluetoothGattDescriptor
+        if(operation.operationType == OperationType.Read){
+            // Read
+            gatt.readDescriptor(desc)
+        }else{
+            // Write
+            desc.value = operation.data
+            gatt.writeDescriptor(desc)
+        }
+    }
+}
+
+/**
+ * Convert the services found by service discovery. An included service that is also listed on its own becomes one GattService.
+ */
+internal fun gattServicesOf(services: List<BluetoothGattService>): List<GattService>{
+    val converted = IdentityHashMap<BluetoothGattService, GattService>()
+    return services.map { gattServiceOf(it, converted) }
+}
+
+private fun gattServiceOf(service: BluetoothGattService, converted: IdentityHashMap<BluetoothGattService, GattService>): GattService{
+    val existing = converted[service]
+    if(existing != null)
+        return existing
+    val s = GattService(service.uuid, service.type == BluetoothGattService.SERVICE_TYPE_PRIMARY)
+    s.platform = service
+    converted[service] = s
+    service.includedServices.forEach { s.includedServices.add(gattServiceOf(it, converted)) }
+    service.characteristics.forEach {
+        val char = GattCharacteristic(it.uuid, it.properties, it.permissions)
+        char.platform = it
+        it.descriptors.forEach { d ->
+            val desc = GattDescriptor(d.uuid, d.permissions)
+            desc.platform = d
+            char.descriptors.add(desc)
+        }
+        s.characteristics.add(char)
+    }
+    return s
+}
+
+/**
+ * Performs a BLEClientPool connection's queued operations on its BluetoothGatt. The pool's BluetoothGattCallback reports
+ * completions to the queue.
+ * @param connected Is the connection up
+ * @param connection The connection's BluetoothGatt (null if there is none)
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class BluetoothGattTransport(private val connected: () -> Boolean, private val connection: () -> BluetoothGatt?): GattClientTransport {
+    override val isConnected: Boolean
+        get() = connected()
+
+    override fun startOperation(operation: DelayedGattOperation): Boolean{
+        val gatt = connection() ?: return false
+        return performOperation(gatt, operation)
+    }
+}
+
+//region Client
+/**
+ * A BLEClient's transport on the device's bluetooth adapter
+ * @param useNewMethod Scan with BluetoothLeScanner (Android 5.0+) instead of BluetoothAdapter.startLeScan
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class AndroidClientTransport(val context: Context, val useNewMethod: Boolean): BLEClientTransport, BLEConnector {
+    private val btManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
+    val btAdapter: BluetoothAdapter? = btManager.adapter
+
+    override val eventLoop = HandlerEventLoop(Handler(Looper.getMainLooper()))
+    override val scanner = AndroidScanner(btAdapter, useNewMethod)
+    override val connector: BLEConnector
+        get() = this
+    override val isEnabled: Boolean
+        get() = btAdapter?.isEnabled == true
+
+    override fun checkBluetooth(): Int{
+        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
+            return BtError.NoBluetooth
+        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE))
+            return BtError.NoBLE
+        if (btAdapter == null || !btAdapter.isEnabled)
+            return BtError.Disabled
+        return BtError.None
+    }
+
+    override fun addPowerListener(listener: (Boolean) -> Unit){
+        BluetoothPowerMonitor.register(context, listener)
+    }
+
+    override fun removePowerListener(listener: (Boolean) -> Unit){
+        BluetoothPowerMonitor.unregister(listener)
+    }
+
+    override fun connect(device: RemoteDevice, listener: GattClientListener): GattClient?{
+        val client = AndroidGattClient(btAdapter, device as AndroidDevice, listener)
+        return if(client.connect(context)) client else null
+    }
+}
+
+/**
+ * Scans with BluetoothLeScanner (Android 5.0+ and useNewMethod) or with BluetoothAdapter.startLeScan
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class AndroidScanner(private val adapter: BluetoothAdapter?, private val useNewMethod: Boolean): BLEScanner {
+    @Volatile
+    private var listener: BLEScanListener? = null
+    private var hardwareBatching = false
+
+    override val supportsScanMode: Boolean
+        get() = useNewMethod && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+
+    override fun startScan(services: List<UUID>, mode: Int, reportDelay: Long, listener: BLEScanListener): Boolean{
+        val adapter = adapter ?: return false
+        this.listener = listener
+        hardwareBatching = false
+        if(supportsScanMode){
+            val builder = ScanSettings.Builder().setScanMode(mode)
+            if(reportDelay > 0 && adapter.isOffloadedScanBatchingSupported){
+                builder.setReportDelay(reportDelay)
+                hardwareBatching = true
+            }
+            val filters = ArrayList<ScanFilter>()
+            services.forEach {
+                filters.add(ScanFilter.Builder().setServiceUuid(ParcelUuid(it)).build())
+            }
+            adapter.bluetoothLeScanner.startScan(filters, builder.build(), scanCallback)
+        }else{
+            if(services.isNotEmpty()){
+                adapter.startLeScan(services.toTypedArray(), leScanCallback)
+            }else{
+                adapter.startLeScan(leScanCallback)
+            }
+        }
+        return hardwareBatching
+    }
+
+    override fun stopScan(){
+        val adapter = adapter ?: return
+        if(supportsScanMode){
+            // Deliver the results the controller is still holding
+            if(hardwareBatching)
+                adapter.bluetoothLeScanner.flushPendingScanResults(scanCallback)
+            adapter.bluetoothLeScanner.stopScan(scanCallback)
+        }else{
+            adapter.stopLeScan(leScanCallback)
+        }
+    }
+
+    //region LeScanCallback (Old Method)
+    private val leScanCallback = BluetoothAdapter.LeScanCallback { device, rssi, _ ->
+        if(device != null){
+            listener?.onAdvertisement(AndroidDevice(device), rssi, SystemClock.elapsedRealtimeNanos())
+        }
+    }
+    //endregion
+
+    //region ScanCallback (New Method)
+    private val scanCallback = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        object:ScanCallback(){
+            @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+            override fun onScanResult(callbackType: Int, result: ScanResult?) {
+                super.onScanResult(callbackType, result)
+                if(result != null){
+                    listener?.onAdvertisement(AndroidDevice(result.device), result.rssi, result.timestampNanos)
+                }
+            }
+            @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+            override fun onBatchScanResults(results: MutableList<ScanResult>?) {
+                super.onBatchScanResults(results)
+                if(results != null && results.isNotEmpty()){
+                    listener?.onAdvertisements(results.map { Advertisement(AndroidDevice(it.device), it.rssi, it.timestampNanos) })
+                }
+            }
+        }
+    else null
+    //endregion
+}
+
+/**
+ * A BluetoothGatt connection. Its BluetoothGattCallback passes the connection's events to the listener.
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class AndroidGattClient(private val adapter: BluetoothAdapter?, override val device: AndroidDevice,
+                                 private val listener: GattClientListener): GattClient {
+    @Volatile
+    var gatt: BluetoothGatt? = null
+        private set
+    @Volatile
+    override var isConnected = false
+        private set
+
+    fun connect(context: Context): Boolean{
+        val gatt = device.device.connectGatt(context, false, bluetoothGattCallback) ?: return false
+        this.gatt = gatt
+        gatt.connect()
+        return true
+    }
+
+    override fun startOperation(operation: DelayedGattOperation): Boolean{
+        val gatt = gatt ?: return false
+        return performOperation(gatt, operation)
+    }
+
+    override fun requestMtu(mtu: Int): Boolean{
+        val gatt = gatt ?: return false
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mtu)
+    }
+
+    override fun discoverServices(): Boolean{
+        return gatt?.discoverServices() ?: false
+    }
+
+    override fun setNotification(characteristic: GattCharacteristic, enable: Boolean): Boolean{
+        val char = characteristic.platform as? BluetoothGattCharacteristic ?: return false
+        return gatt?.setCharacteristicNotification(char, enable) ?: false
+    }
+
+    override fun requestProfile(profile: Int): Boolean{
+        val gatt = gatt ?: return false
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            // ConnectionProfile values are the CONNECTION_PRIORITY constants
+            gatt.requestConnectionPriority(profile)
+        }
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            val phy = if(profile == ConnectionProfile.Throughput && adapter?.isLe2MPhySupported == true) BluetoothDevice.PHY_LE_2M_MASK else BluetoothDevice.PHY_LE_1M_MASK
+            gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED)
+            return true
+        }
+        return false
+    }
+
+    override fun disconnect(){
+        gatt?.disconnect()
+    }
+
+    override fun close(){
+        isConnected = false
+        gatt?.close()
+    }
+
+    //region BluetoothGattCallback
+    private val bluetoothGattCallback = object:BluetoothGattCallback(){
+        override fun onCharacteristicRead(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
+            super.onCharacteristicRead(gatt, characteristic, status)
+            // Copy now. The characteristic's value can change before the queue's event loop runs.
+            listener.onOperationComplete(this@AndroidGattClient, copyOf(characteristic?.value), status)
+        }
+        override fun onCharacteristicWrite(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
+            super.onCharacteristicWrite(gatt, characteristic, status)
+            listener.onOperationComplete(this@AndroidGattClient, null, status)
+        }
+        override fun onDescriptorRead(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
+            super.onDescriptorRead(gatt, descriptor, status)
+            listener.onOperationComplete(this@AndroidGattClient, copyOf(descriptor?.value), status)
+        }
+        override fun onDescriptorWrite(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
+            super.onDescriptorWrite(gatt, descriptor, status)
+            listener.onOperationComplete(this@AndroidGattClient, null, status)
+        }
+        override fun onServicesDiscovered(gatt: BluetoothGatt?, status: Int) {
+            super.onServicesDiscovered(gatt, status)
+            if(gatt != null){
+                listener.onServicesDiscovered(this@AndroidGattClient, gattServicesOf(gatt.services), status)
+            }
+        }
+        override fun onCharacteristicChanged(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?) {
+            super.onCharacteristicChanged(gatt, characteristic)
+            if(characteristic != null){
+                listener.onNotification(this@AndroidGattClient, characteristic.uuid, characteristic.value)
+            }
+        }
+        @RequiresApi(api = Build.VERSION_CODES.O)
+        override fun onPhyUpdate(gatt: BluetoothGatt?, txPhy: Int, rxPhy: Int, status: Int) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status)
+            listener.onPhyUpdate(this@AndroidGattClient, txPhy, rxPhy, status)
+        }
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+        override fun onMtuChanged(gatt: BluetoothGatt?, mtu: Int, status: Int) {
+            super.onMtuChanged(gatt, mtu, status)
+            listener.onMtuChanged(this@AndroidGattClient, mtu, status)
+        }
+        override fun onConnectionStateChange(gatt: BluetoothGatt?, status: Int, newState: Int) {
+            super.onConnectionStateChange(gatt, status, newState)
+            if(newState == BluetoothProfile.STATE_CONNECTED){
+                isConnected = true
+                listener.onConnectionStateChange(this@AndroidGattClient, true)
+            }
+            if(newState == BluetoothProfile.STATE_DISCONNECTED){
+                isConnected = false
+                listener.onConnectionStateChange(this@AndroidGattClient, false)
+            }
+        }
+    }
+    //endregion
+}
+//endregion
+
+//region Server
+/**
+ * A BLEServer's transport on the device's bluetooth adapter
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+internal class AndroidServerTransport(val context: Context): BLEServerTransport {
+    private val btManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
+    val btAdapter: BluetoothAdapter? = btManager.adapter
+
+    override val eventLoop = HandlerEventLoop(Handler(Looper.getMainLooper()))
+    override val advertiser = AndroidAdvertiser(btAdapter)
+    override val isEnabled: Boolean
+        get() = btAdapter?.isEnabled == true
+
+    override fun checkBluetooth(): Int{
+        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
+            return BtError.NoBluetooth
+        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE))
+            return BtError.NoBLE
+        if (btAdapter == null || !btAdapter.isEnabled)
+            return BtError.Disabled
+        return if (!btAdapter.isMultipleAdvertisementSupported) BtError.NoServer else BtError.None
+    }
+
+    override fun openServer(listener: GattServerListener): GattServer?{
+        val server = AndroidGattServer(listener)
+        return if(server.open(context, btManager)) server else null
+    }
+
+    override fun addPowerListener(listener: (Boolean) -> Unit){
+        BluetoothPowerMonitor.register(context, listener)
+    }
+
+    override fun removePowerListener(listener: (Boolean) -> Unit){
+        BluetoothPowerMonitor.unregister(listener)
+    }
+}
+
+/**
+ * Advertises with the adapter's BluetoothLeAdvertiser
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+internal class AndroidAdvertiser(private val adapter: BluetoothAdapter?): BLEAdvertiser {
+    @Volatile
+    private var callback: ((Int) -> Unit)? = null
+    // The adapter has no advertiser once bluetooth is off, so the one that was started is kept to stop it
+    @Volatile
+    private var advertiser: BluetoothLeAdvertiser? = null
+
+    override fun startAdvertising(options: AdvertiseOptions, callback: (Int) -> Unit){
+        this.callback = callback
+        advertiser = adapter?.bluetoothLeAdvertiser
+        advertiser?.startAdvertising(buildAdvertiseSettings(options), buildAdvertiseData(options), advertiseCallback)
+    }
+
+    override fun stopAdvertising(){
+        (adapter?.bluetoothLeAdvertiser ?: advertiser)?.stopAdvertising(advertiseCallback)
+    }
+
+    /**
+     * Build advertise settings based on options
+     */
+    private fun buildAdvertiseSettings(options: AdvertiseOptions): AdvertiseSettings{
+        return AdvertiseSettings.Builder().setAdvertiseMode(options.mode).setTxPowerLevel(options.txPower).setConnectable(true).setTimeout(0).build()
+    }
+    /**
+     * Build advertise data based on advertise services
+     */
+    private fun buildAdvertiseData(options: AdvertiseOptions): AdvertiseData{
+        val data = AdvertiseData.Builder()
+        data.setIncludeDeviceName(options.includeDeviceName)
+
+        options.services.forEach {
+            data.addServiceUuid(ParcelUuid(it))
+        }
+        return data.build()
+    }
+
+    //region AdvertiseCallback
+    private val advertiseCallback = object: AdvertiseCallback(){
+        override fun onStartSuccess(settingsInEffect: AdvertiseSettings?) {
+            super.onStartSuccess(settingsInEffect)
+            callback?.invoke(AdvertiseError.None)
+        }
+
+        override fun onStartFailure(errorCode: Int) {
+            super.onStartFailure(errorCode)
+            callback?.invoke(errorCode)
+        }
+    }
+    //endregion
+}
+
+/**
+ * A BluetoothGattServer. Its BluetoothGattServerCallback passes the server's events to the listener.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+internal class AndroidGattServer(private val listener: GattServerListener): GattServer {
+    @Volatile
+    private var server: BluetoothGattServer? = null
+    // The BluetoothGattServices built for this server (an included service is added with its parent and on its own)
+    private val built = IdentityHashMap<GattService, BluetoothGattService>()
+
+    override val isRunning: Boolean
+        get() = server != null
+
+    fun open(context: Context, manager: BluetoothManager): Boolean{
+        server = manager.openGattServer(context, gattServerCallback)
+        return server != null
+    }
+
+    override fun addService(service: GattService): Boolean{
+        val server = server ?: return false
+        val added = server.addService(platformOf(service))
+        Thread.sleep(100) // Prevent status 133 (GATT_ERROR) on some devices
+        return added
+    }
+
+    /**
+     * Build the BluetoothGattService of a service. A server builds its own, the service may have changed since the last server.
+     */
+    private fun platformOf(service: GattService): BluetoothGattService{
+        val existing = built[service]
+        if(existing != null)
+            return existing
+        val s = BluetoothGattService(service.uuid, if(service.primary) BluetoothGattService.SERVICE_TYPE_PRIMARY else BluetoothGattService.SERVICE_TYPE_SECONDARY)
+        service.platform = s
+        built[service] = s
+        service.includedServices.forEach { s.addService(platformOf(it)) }
+        service.characteristics.forEach {
+            val char = BluetoothGattCharacteristic(it.uuid, it.properties, it.permissions)
+            it.platform = char
+            it.descriptors.forEach { d ->
+                val desc = BluetoothGattDescriptor(d.uuid, d.permissions)
+                d.platform = desc
+                char.addDescriptor(desc)
+            }
+            s.addCharacteristic(char)
+        }
+        return s
+    }
+
+    override fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean{
+        val server = server ?: return false
+        val char = (characteristic as GattCharacteristic).platform as? BluetoothGattCharacteristic ?: return false
+        val indicate = char.properties and BluetoothGattCharacteristic.PROPERTY_INDICATE == BluetoothGattCharacteristic.PROPERTY_INDICATE
+
+        // On android notifications are always of the current value. Get around this by temporarily replacing the value
+        // Synchronize so value can not change while doing this
+        synchronized(char){
+            val oldValue = char.value
+            char.value = data
+            val success = server.notifyCharacteristicChanged((device as AndroidDevice?)?.device, char, indicate)
+            char.value = oldValue
+            return success
+        }
+    }
+
+    override fun sendResponse(device: RemoteDevice, requestId: Int, status: Int, offset: Int, value: ByteArray?): Boolean{
+        return server?.sendResponse((device as AndroidDevice).device, requestId, status, offset, value) ?: false
+    }
+
+    override fun cancelConnection(device: RemoteDevice){
+        server?.cancelConnection((device as AndroidDevice).device)
+    }
+
+    override fun close(){
+        val server = server
+        this.server = null
+        server?.close()
+    }
+
+    /**
+     * Fail a request the listener can not be given (the stack did not say what it is for)
+     */
+    private fun reject(device: BluetoothDevice?, requestId: Int, offset: Int){
+        server?.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null)
+    }
+
+    //region BluetoothGattServerCallback
+    private val gattServerCallback = object: BluetoothGattServerCallback(){
+        override fun onNotificationSent(device: BluetoothDevice?, status: Int) {
+            super.onNotificationSent(device, status)
+            if(device != null)
+                listener.onNotificationSent(AndroidDevice(device), status)
+        }
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP_MR1)
+        override fun onMtuChanged(device: BluetoothDevice?, mtu: Int) {
+            super.onMtuChanged(device, mtu)
+            if(device != null)
+                listener.onMtuChanged(AndroidDevice(device), mtu)
+        }
+        override fun onDescriptorReadRequest(device: BluetoothDevice?, requestId: Int, offset: Int, descriptor: BluetoothGattDescriptor?) {
+            super.onDescriptorReadRequest(device, requestId, offset, descriptor)
+            if(device != null && descriptor != null)
+                listener.onDescriptorReadRequest(AndroidDevice(device), requestId, offset, descriptor.uuid)
+            else
+                reject(device, requestId, offset)
+        }
+        override fun onDescriptorWriteRequest(device: BluetoothDevice?, requestId: Int, descriptor: BluetoothGattDescriptor?, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?) {
+            super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value)
+            if(device != null && descriptor != null)
+                listener.onDescriptorWriteRequest(AndroidDevice(device), requestId, descriptor.uuid, preparedWrite, responseNeeded, offset, value)
+            else if(responseNeeded)
+                reject(device, requestId, offset)
+        }
+        override fun onCharacteristicWriteRequest(device: BluetoothDevice?, requestId: Int, characteristic: BluetoothGattCharacteristic?, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?) {
+            super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value)
+            if(device != null && characteristic != null)
+                listener.onCharacteristicWriteRequest(AndroidDevice(device), requestId, characteristic.uuid, preparedWrite, responseNeeded, offset, value)
+            else if(responseNeeded)
+                reject(device, requestId, offset)
+        }
+        override fun onExecuteWrite(device: BluetoothDevice?, requestId: Int, execute: Boolean) {
+            super.onExecuteWrite(device, requestId, execute)
+            if(device != null)
+                listener.onExecuteWrite(AndroidDevice(device), requestId, execute)
+            else
+                reject(device, requestId, 0)
+        }
+        override fun onCharacteristicReadRequest(device: BluetoothDevice?, requestId: Int, offset: Int, characteristic: BluetoothGattCharacteristic?) {
+            super.onCharacteristicReadRequest(device, requestId, offset, characteristic)
+            if(device != null && characteristic != null)
+                listener.onCharacteristicReadRequest(AndroidDevice(device), requestId, offset, characteristic.uuid)
+            else
+                reject(device, requestId, offset)
+        }
+        override fun onConnectionStateChange(device: BluetoothDevice?, status: Int, newState: Int) {
+            super.onConnectionStateChange(device, status, newState)
+            if(device == null)
+                return
+            // Connecting and disconnecting are not reported (a failure is, the device is gone whatever its state)
+            if(status == BluetoothGatt.GATT_SUCCESS && newState != BluetoothProfile.STATE_CONNECTED && newState != BluetoothProfile.STATE_DISCONNECTED)
+                return
+            listener.onConnectionStateChange(AndroidDevice(device), status, newState == BluetoothProfile.STATE_CONNECTED)
+        }
+    }
+    //endregion
+}
+//endregion
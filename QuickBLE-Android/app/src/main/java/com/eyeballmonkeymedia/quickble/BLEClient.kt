@@ -2,36 +2,68 @@ package com.mb3hel.quickble
 
 import android.app.AlertDialog
 import android.bluetooth.*
-import android.bluetooth.le.ScanCallback
-import android.bluetooth.le.ScanFilter
-import android.bluetooth.le.ScanResult
-import android.bluetooth.le.ScanSettings
 import android.content.Context
-import android.content.pm.PackageManager
 import android.media.VolumeShaper
 import android.os.Build
 import android.os.Handler
-import android.os.Looper
-import android.os.ParcelUuid
 import android.support.annotation.RequiresApi
 import android.util.Log
 import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.collections.ArrayList
-import kotlin.concurrent.thread
 
+/**
+ * A QuickBLE client. Runs on a BLEClientTransport, the device's bluetooth adapter when created with a context.
+ */
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
-class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMethod: Boolean = true){
+class BLEClient (val transport: BLEClientTransport, val delegate: BLEDelegate){
+
+    /**
+     * Create a client on the device's bluetooth adapter
+     * @param useNewMethod Scan with BluetoothLeScanner (Android 5.0+) instead of BluetoothAdapter.startLeScan
+     */
+    constructor(context: Context, delegate: BLEDelegate, useNewMethod: Boolean = true): this(AndroidClientTransport(context, useNewMethod), delegate)
 
     //region Variables and Properties
 
-    val gattOperationQueue = GattOperationQueue(this)
+    /**
+     * The context of a client on the device's bluetooth adapter (null on other transports)
+     */
+    val context: Context?
+        get() = (transport as? AndroidClientTransport)?.context
+    val useNewMethod: Boolean
+        get() = (transport as? AndroidClientTransport)?.useNewMethod ?: false
+
+    // Operations are started on the current connection
+    val gattOperationQueue = GattOperationQueue(object: GattClientTransport {
+        override val isConnected: Boolean
+            get() = this@BLEClient.isConnected
+
+        override fun startOperation(operation: DelayedGattOperation): Boolean{
+            return gattClient?.startOperation(operation) ?: false
+        }
+    }, { operation, success -> handleGattOperationComplete(operation, success) })
+
+    /**
+     * Runtime metrics (queue depth, operation latencies, failures, bytes per characteristic, main thread backlog).
+     * Use getMetrics for a snapshot or reportMetrics to have snapshots delivered periodically.
+     */
+    val metrics = BLEMetrics()
+    private var metricsReporter: MetricsReporter? = null
+
+    /**
+     * Pool of arrays for values delivered to a BLEBufferDelegate
+     */
+    val bufferPool = BufferPool()
+    private val bufferDelegate = delegate as? BLEBufferDelegate
 
     private val UNKNOWN_WRITING_DEVICE_ADDRESS = "unknown";
+    private val AUTO_PROFILE_INTERVAL = 250L // Time between queue depth checks of ConnectionProfile.Auto (ms)
 
-    // Platform Specific Objects
-    private var serviceObjects = ArrayList<BluetoothGattService>()
-    private var characteristicObjects = ArrayList<BluetoothGattCharacteristic>()
-    private var descriptorObjects = ArrayList<BluetoothGattDescriptor>()
     // UUIDs for Gatt Objects
     /**
      * The services available on the connected server
@@ -48,6 +80,12 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      */
     var descriptors = ArrayList<String>()
         private set
+
+    // Platform Specific Objects
+    private val gattTables = RemoteGattTables(services, characteristics, descriptors)
+    private val serviceObjects = gattTables.serviceObjects
+    private val characteristicObjects = gattTables.characteristicObjects
+    private val descriptorObjects = gattTables.descriptorObjects
     /**
      * The services that are being scanned for when scanning for devices
      */
@@ -55,12 +93,43 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
         private set
 
     // Platform Specific Options
-    var scanMode = if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) ScanMode.Balanced else ScanMode.NotApplicable
+    var scanMode = if(transport.scanner.supportsScanMode) ScanMode.Balanced else ScanMode.NotApplicable
         set(value) {
-            if(useNewMethod){
+            if(transport.scanner.supportsScanMode){
                 field = value
             }
         }
+    /**
+     * When onDeviceDiscovered is called for a device that has already been seen (a ScanReportPolicy). Defaults to every advertisement.
+     */
+    var scanReportPolicy: Int
+        get() = scanRegistry.policy
+        set(value) { scanRegistry.policy = value }
+    /**
+     * The change in smoothed RSSI (dBm) needed to report a device again (ScanReportPolicy.RssiChange)
+     */
+    var scanRssiThreshold: Int
+        get() = scanRegistry.rssiThreshold
+        set(value) { scanRegistry.rssiThreshold = value }
+    /**
+     * The maximum number of times per second each device is reported (ScanReportPolicy.RateLimited)
+     */
+    var scanReportRate: Double
+        get() = scanRegistry.maxReportRate
+        set(value) { scanRegistry.maxReportRate = value }
+    /**
+     * Weight (0 to 1) of a new RSSI sample in the smoothed RSSI given to onDeviceDiscovered. 1 disables smoothing.
+     */
+    var scanRssiSmoothing: Double
+        get() = scanRegistry.rssiSmoothing
+        set(value) { scanRegistry.rssiSmoothing = value }
+    /**
+     * Deliver scan results in batches every scanReportDelay milliseconds (0 reports each advertisement as it arrives).
+     * The bluetooth controller batches the results when it supports it (the app is not woken for each advertisement),
+     * otherwise they are batched in software. If the delegate implements BLEScanBatchDelegate each batch is a single
+     * onDevicesDiscovered call. Takes effect when the next scan starts.
+     */
+    var scanReportDelay = 0L
 
     // Status
     /**
@@ -72,20 +141,156 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * Is the client connected to a server
      */
     var isConnected = false
-        get() = (gattConnection != null)
+        get() = (gattClient != null)
+        private set
+
+    /**
+     * How delegate calls are delivered (a CallbackDelivery). Immediate (default) posts each call to the callback handler (or
+     * executor). PerFrame and Interval queue calls and deliver all of them together once per frame or every callbackInterval
+     * milliseconds (in order). Direct calls the delegate on the binder thread the event arrived on (no thread hop, the
+     * delegate must be thread safe and return quickly).
+     */
+    var callbackDelivery: Int
+        get() = callbackDispatcher.mode
+        set(value) { callbackDispatcher.mode = value }
+    /**
+     * Time between deliveries of queued delegate calls in milliseconds (CallbackDelivery.Interval)
+     */
+    var callbackInterval: Long
+        get() = callbackDispatcher.intervalMillis
+        set(value) { callbackDispatcher.intervalMillis = value }
+    /**
+     * The handler delegate calls are posted to (the main thread by default). PerFrame needs a handler on a looper thread
+     * with a Choreographer. Null when the calls are posted to the transport's event loop and it is not a handler's (setting
+     * null goes back to the transport's event loop).
+     */
+    var callbackHandler: Handler?
+        get() = (callbackDispatcher.loop as? HandlerEventLoop)?.handler
+        set(value) { callbackDispatcher.loop = if(value != null) HandlerEventLoop(value) else transport.eventLoop }
+    /**
+     * Executor delegate calls are run on instead of the callback handler (null by default). It should run tasks one at a time
+     * (ex. Executors.newSingleThreadExecutor()) or calls may arrive out of order.
+     */
+    var callbackExecutor: Executor?
+        get() = callbackDispatcher.executor
+        set(value) { callbackDispatcher.executor = value }
+
+    // Streamed writes (write without response)
+    /**
+     * The maximum number of streamed writes (writeCharacteristicStream) queued or in flight at once.
+     * Each streamed write takes a credit which is returned when onCharacteristicWrite is called for it.
+     */
+    var streamWindow = 8
+    /**
+     * The number of streamed writes that can be started right now
+     */
+    val streamCredits: Int
+        get() = Math.max(0, streamWindow - streamInFlight.get())
+    /**
+     * The throughput of successful streamed writes in bytes per second (since the first streamed write or resetStreamStatistics)
+     */
+    val streamThroughput: Double
+        get() {
+            val start = streamStartTime.get()
+            if(start == 0L)
+                return 0.0
+            val elapsed = System.nanoTime() - start
+            return if(elapsed <= 0) 0.0 else streamBytes.get() * 1e9 / elapsed
+        }
+    private val streamInFlight = AtomicInteger(0)
+    private val streamBytes = AtomicLong(0)
+    private val streamStartTime = AtomicLong(0)
+
+    // MTU and framed messages
+    /**
+     * The MTU requested after connecting (Android 5.0+). 23 or less skips negotiation. Services are discovered once the MTU
+     * has been negotiated.
+     */
+    var requestedMtu = MessageFraming.MAX_MTU
+    /**
+     * The connection's MTU (23 until negotiated). Values of up to mtu - 3 bytes fit in one write/notification.
+     */
+    @Volatile
+    var mtu = MessageFraming.DEFAULT_MTU
+        private set
+    /**
+     * The largest message accepted on a message characteristic (larger messages are dropped)
+     */
+    var maxMessageSize = MessageFraming.DEFAULT_MAX_MESSAGE_SIZE
+    // Assemblers of the characteristics enabled with enableMessages
+    private val messageAssemblers = ConcurrentHashMap<UUID, MessageAssembler>()
+    private val messageDelegate = delegate as? BLEMessageDelegate
+    private val mtuDelegate = delegate as? BLEMtuDelegate
+    private val serviceDiscoveryStarted = AtomicBoolean(false)
+    private val discoverServicesTask = Runnable { startServiceDiscovery() }
+
+    // Connection profile
+    /**
+     * The connection's performance profile (a ConnectionProfile). Applied once services have been discovered and again when it
+     * is changed while connected. Throughput and Auto also negotiate the largest MTU when connecting.
+     */
+    var connectionProfile = ConnectionProfile.Balanced
+        set(value) {
+            field = value
+            eventLoop.post(applyProfileTask)
+        }
+    /**
+     * ConnectionProfile.Auto: number of operations waiting or in progress that switches the connection to Throughput
+     */
+    var autoThroughputDepth = 4
+    /**
+     * ConnectionProfile.Auto: how long the operation queue must be empty before switching back to Balanced (milliseconds)
+     */
+    var autoIdleMillis = 2000L
+    /**
+     * The profile in effect (the profile Auto selected if connectionProfile is Auto)
+     */
+    @Volatile
+    var activeProfile = ConnectionProfile.Balanced
+        private set
+    /**
+     * The connection's transmitter and receiver PHY (1 = 1M, 2 = 2M, 3 = Coded)
+     */
+    @Volatile
+    var txPhy = 1
         private set
+    @Volatile
+    var rxPhy = 1
+        private set
+    private val connectionDelegate = delegate as? BLEConnectionDelegate
+    @Volatile
+    private var servicesDiscovered = false
+    // When the queue was first seen empty by the auto profile check (0 if it is not empty)
+    private var autoIdleSince = 0L
+    private val autoProfileTask = Runnable { checkAutoProfile() }
+    private val applyProfileTask = Runnable { applyConnectionProfile() }
 
     // Keep track of detected devices
-    private var deviceAddresses = ArrayList<String>()
+    private val scanRegistry = ScanRegistry()
+    // Software scan batch (latest result per device) and whether a flush is scheduled. Synchronized on scanBatch.
+    private val scanBatch = LinkedHashMap<String, DiscoveredDevice>()
+    private var scanBatchScheduled = false
+    private var scanBatchDelay = 0L
+    private val flushScanBatchTask = Runnable { flushScanBatch() }
+    /**
+     * The bluetooth devices found by scans (only on the device's bluetooth adapter)
+     */
     var devices = ArrayList<BluetoothDevice>()
         private set
 
-    // Android Specific Bluetooth Objects
-    private val mainThread = Handler(Looper.getMainLooper())
-    private val btManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
-    private val btAdapter = btManager.adapter
-    var gattConnection: BluetoothGatt? = null
-        private set
+    // Transport Objects
+    private val eventLoop = transport.eventLoop
+    private val callbackDispatcher = CallbackDispatcher(eventLoop)
+    // The current connection (null once it is disconnected, its events are ignored from then on)
+    @Volatile
+    private var gattClient: GattClient? = null
+    /**
+     * The connection's BluetoothGatt (null if not connected or not on the device's bluetooth adapter)
+     */
+    val gattConnection: BluetoothGatt?
+        get() = (gattClient as? AndroidGattClient)?.gatt
+    private var bluetoothEnabled = false
+    private val powerListener: (Boolean) -> Unit = { handlePowerChange(it) }
 
     // Enable BT Dialog Text
     var REQUEST_BT_TITLE = "Bluetooth Required"
@@ -98,23 +303,49 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * Create a new QuickBLE Client for Gatt central role
      */
     init{
+        gattOperationQueue.metrics = metrics
+        scanRegistry.onNewDevice = {
+            val device = it.device
+            if(device is AndroidDevice)
+                devices.add(device.device)
+        }
         // Watch for Bluetooth Power Changes
-        thread(start = true){
-            var lastState = false
-            while(true){
-                val state = btAdapter.isEnabled
-                if(state != lastState){
-                    lastState = state
-                    if(!state){
-                        stopScanning()
-                        disconnect()
-                    }
-                    mainThread.post {
-                        delegate.onBluetoothPowerChanged(state)
-                    }
-                }
-                Thread.sleep(100)
-            }
+        transport.addPowerListener(powerListener)
+        handlePowerChange(transport.isEnabled)
+    }
+
+    /**
+     * Release the client when it is no longer needed. Stops scanning, disconnects, and stops watching for bluetooth power changes.
+     */
+    fun release(){
+        stopScanning()
+        disconnect()
+        transport.removePowerListener(powerListener)
+        reportMetrics(0, null)
+    }
+
+    /**
+     * Post a delegate call with the callback dispatcher (counted in the metrics' main thread backlog)
+     */
+    private inline fun post(crossinline block: () -> Unit){
+        metrics.mainThreadPosted()
+        callbackDispatcher.dispatch(Runnable {
+            metrics.mainThreadRan()
+            block()
+        })
+    }
+
+    @Synchronized
+    private fun handlePowerChange(state: Boolean){
+        if(state == bluetoothEnabled)
+            return
+        bluetoothEnabled = state
+        if(!state){
+            stopScanning()
+            disconnect()
+        }
+        post {
+            delegate.onBluetoothPowerChanged(state)
         }
     }
 
@@ -136,22 +367,17 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * @return An error code (BtError)
      */
     fun checkBluetooth(): Int{
-        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
-            return BtError.NoBluetooth
-        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE))
-            return BtError.NoBLE
-        if (btAdapter == null || !btAdapter.isEnabled)
-            return BtError.Disabled
-        return BtError.None
+        return transport.checkBluetooth()
     }
     /**
-     * Show a dialog requesting that the user enable bluetooth
+     * Show a dialog requesting that the user enable bluetooth (only on the device's bluetooth adapter)
      */
     fun requestEnableBt(){
-        val builder = AlertDialog.Builder(context, AlertDialog.THEME_DEVICE_DEFAULT_LIGHT)
+        val transport = transport as? AndroidClientTransport ?: return
+        val builder = AlertDialog.Builder(transport.context, AlertDialog.THEME_DEVICE_DEFAULT_LIGHT)
         builder.setTitle(REQUEST_BT_TITLE).setMessage(REQUEST_BT_MESSAGE)
         builder.setPositiveButton(REQUEST_BT_CONFIRM, { _, _ ->
-            btAdapter.enable()
+            transport.btAdapter?.enable()
             delegate.onBluetoothRequestResult(true)
         })
         builder.setNegativeButton(REQUEST_BT_DENY, {_, _  ->
@@ -166,35 +392,16 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      */
     fun scanForDevices(): Int{
         if(!isScanning && !isConnected){
-            services.clear()
-            characteristics.clear()
-            descriptors.clear()
-            serviceObjects.clear()
-            characteristicObjects.clear()
-            descriptorObjects.clear()
+            gattTables.clear()
             val error = checkBluetooth()
             if(error != BtError.None){
                 return error
             }
-            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && useNewMethod){
-                val settings = ScanSettings.Builder().setScanMode(scanMode).build()
-                val filters = ArrayList<ScanFilter>()
-                scanServices.forEach {
-                    filters.add(ScanFilter.Builder().setServiceUuid(ParcelUuid(UUID.fromString(it))).build())
-                }
-                btAdapter.bluetoothLeScanner.startScan(filters, settings, scanCallback)
-
-            }else{
-                if(scanServices.size > 0){
-                    val uuids = ArrayList<UUID>()
-                    scanServices.forEach {
-                        uuids.add(UUID.fromString(it))
-                    }
-                    btAdapter.startLeScan(uuids.toTypedArray(), leScanCallback)
-                }else {
-                    btAdapter.startLeScan(leScanCallback)
-                }
-            }
+            // Devices seen by a previous scan are reported again
+            scanRegistry.resetReports()
+            scanBatchDelay = scanReportDelay
+            // The scanner batches in hardware if it can, otherwise advertisements are batched in handleAdvertisement
+            transport.scanner.startScan(scanServices.map { UUID.fromString(it) }, scanMode, scanBatchDelay, scanListener)
             isScanning = true
             return BtError.None
         }else{
@@ -206,12 +413,11 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      */
     fun stopScanning(){
         if(isScanning){
-            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && useNewMethod){
-                btAdapter.bluetoothLeScanner.stopScan(scanCallback)
-            }else{
-                btAdapter.stopLeScan(leScanCallback)
-            }
+            transport.scanner.stopScan()
             isScanning = false
+            // Deliver the software batch now instead of waiting for the delay
+            eventLoop.removeCallbacks(flushScanBatchTask)
+            eventLoop.post(flushScanBatchTask)
         }
     }
 
@@ -219,27 +425,54 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * Connect to a specified device
      * @param deviceAddress The address of the device to connect to
      */
+    @Synchronized
     fun connectToDevice(deviceAddress: String){
-        if(gattConnection != null){
+        if(gattClient != null){
             disconnect()
         }
-        gattConnection = devices.firstOrNull { it.address.toUpperCase().equals(deviceAddress.toUpperCase()) }?.connectGatt(context, false, bluetoothGattCallback)
-        gattConnection?.connect()
+        val device = scanRegistry[deviceAddress.toUpperCase()]?.device as RemoteDevice? ?: return
+        gattClient = transport.connector.connect(device, gattClientListener)
     }
     /**
      * Disconnect from server if connected
      */
     fun disconnect(){
         if(isConnected){
-            services.clear()
-            characteristics.clear()
-            descriptors.clear()
-            serviceObjects.clear()
-            characteristicObjects.clear()
-            descriptorObjects.clear()
-            gattConnection?.disconnect()
-            gattConnection = null
-            isConnected = false
+            val client = gattClient ?: return
+            // Events of this connection are ignored from here on (including its disconnect)
+            gattClient = null
+            client.disconnect()
+            closeConnection(client)
+        }
+    }
+
+    /**
+     * Is a connection the current one. Synchronized with connectToDevice, a connection's first event can arrive before
+     * connect returns.
+     */
+    @Synchronized
+    private fun isCurrent(client: GattClient): Boolean{
+        return client === gattClient
+    }
+
+    /**
+     * Drop a connection that was disconnected (locally or by the server). Fails its queued operations (returning streamed write
+     * credits), clears its handles, closes it and tells the delegate. gattClient must already be cleared.
+     */
+    private fun closeConnection(client: GattClient){
+        isConnected = false
+        // New handles after reconnecting (and the new connection's objects instead of this one's)
+        gattTables.clear()
+        gattOperationQueue.clientDisconnected()
+        eventLoop.removeCallbacks(discoverServicesTask)
+        eventLoop.removeCallbacks(autoProfileTask)
+        servicesDiscovered = false
+        messageAssemblers.values.forEach { it.reset() }
+        client.close()
+        val address = client.device.address
+        val name = client.device.name
+        post {
+            delegate.onDisconnectFromDevice(address, name)
         }
     }
 
@@ -249,54 +482,73 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * @param subscribe Whether not to subscribe to the characteristic (false to unsubscribe)
      */
     fun subscribeToCharacteristic(characteristic: String, subscribe: Boolean = true) {
-        val char = getCharacteristic(UUID.fromString(characteristic))
+        subscribeToCharacteristic(characteristicObjects.handleOf(characteristic), subscribe)
+    }
+    /**
+     * Subscribe to a characteristic to receive notifications when is's value is changed
+     * @param handle The handle of the characteristic to subscribe to (from getCharacteristicHandle)
+     * @param subscribe Whether not to subscribe to the characteristic (false to unsubscribe)
+     */
+    fun subscribeToCharacteristic(handle: Int, subscribe: Boolean = true) {
+        val char = characteristicObjects.byHandle(handle)
         if(char != null){
-            gattConnection?.setCharacteristicNotification(char, subscribe)
-            val descriptor = char.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")) // Client characteristic config UUID
+            gattClient?.setNotification(char, subscribe)
+            val descriptor = char.getDescriptor(CLIENT_CONFIG_DESCRIPTOR)
             if(descriptor != null){
-                descriptor.value = if(subscribe) BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE else BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE
-                gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Write, descriptor, descriptor.value))
+                val value = if(subscribe) ENABLE_NOTIFICATION_VALUE else DISABLE_NOTIFICATION_VALUE
+                gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Write, descriptor, value, CLIENT_CONFIG_DESCRIPTOR_NAME))
             }
         }
     }
+    //endregion
 
+    //region Characteristics and Descriptors
     /**
-     * Add a service (and it's included services, characteristics, and descriptors) to the lists
-     * @param service The service to add
+     * Get a handle for a characteristic. Methods taking a handle skip parsing the characteristic's UUID on every call.
+     * Handles are valid until the client disconnects. An operation on a handle that is no longer valid fails and is reported with the
+     * characteristic's name (or "HANDLE:" followed by the handle if the name is not known).
+     * @param characteristic The characteristic
+     * @return The handle or -1 if the connected server does not have the characteristic
      */
-    private fun addService(service: BluetoothGattService){
-        if(!serviceObjects.contains(service)){
-            if(service.type == BluetoothGattService.SERVICE_TYPE_PRIMARY){
-                service.includedServices.asSequence().filterNot { serviceObjects.contains(it) }.forEach {
-                    addService(it)
-                }
-            }
-            service.characteristics.asSequence().filterNot { characteristicObjects.contains(it) }.forEach {
-                it.descriptors.asSequence().filterNot { descriptorObjects.contains(it) }.forEach {
-                    descriptorObjects.add(it)
-                    descriptors.add(it.uuid.toString().toUpperCase())
-                }
-                characteristicObjects.add(it)
-                characteristics.add(it.uuid.toString().toUpperCase())
-            }
-            serviceObjects.add(service)
-            services.add(service.uuid.toString().toUpperCase())
-        }
+    fun getCharacteristicHandle(characteristic: String): Int{
+        return characteristicObjects.handleOf(characteristic)
+    }
+    /**
+     * Get a handle for a descriptor. Methods taking a handle skip parsing the descriptor's UUID on every call.
+     * Handles are valid until the client disconnects. An operation on a handle that is no longer valid fails and is reported with the
+     * descriptor's name (or "HANDLE:" followed by the handle if the name is not known).
+     * @param descriptor The descriptor
+     * @return The handle or -1 if the connected server does not have the descriptor
+     */
+    fun getDescriptorHandle(descriptor: String): Int{
+        return descriptorObjects.handleOf(descriptor)
     }
-    //endregion
 
-    //region Characteristics and Descriptors
     /**
      * Read a value from a characteristic
      * @param characteristic The characteristic to read
      */
     fun readCharacteristic(characteristic: String){
-        val char = getCharacteristic(UUID.fromString(characteristic))
-        if(char != null){
-            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Read, char, null))
+        val handle = characteristicObjects.handleOf(characteristic)
+        if(handle != -1){
+            readCharacteristic(handle)
         }else{
-            mainThread.post {
-                delegate.onCharacteristicRead(characteristic.toUpperCase(), "", false, null)
+            post {
+                delegate.onCharacteristicRead(characteristic.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
+            }
+        }
+    }
+    /**
+     * Read a value from a characteristic
+     * @param handle The handle of the characteristic to read (from getCharacteristicHandle)
+     */
+    fun readCharacteristic(handle: Int){
+        val entry = characteristicObjects.entryByHandle(handle)
+        if(entry != null){
+            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Read, entry.obj, null, entry.name))
+        }else{
+            post {
+                delegate.onCharacteristicRead(characteristicObjects.nameOf(handle), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
             }
         }
     }
@@ -306,70 +558,345 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * @param data The value to write (as bytes)
      */
     fun writeCharacteristic(characteristic: String, data: ByteArray?){
-        val char = getCharacteristic(UUID.fromString(characteristic))
-        if(char != null){
-            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Write, char, data))
+        val handle = characteristicObjects.handleOf(characteristic)
+        if(handle != -1){
+            writeCharacteristic(handle, data)
         }else{
-            mainThread.post {
+            post {
                 delegate.onCharacteristicWrite(characteristic.toUpperCase(), false, null)
             }
         }
     }
+    /**
+     * Write a value to a characteristic
+     * @param handle The handle of the characteristic to write (from getCharacteristicHandle)
+     * @param data The value to write (as bytes)
+     */
+    fun writeCharacteristic(handle: Int, data: ByteArray?){
+        val entry = characteristicObjects.entryByHandle(handle)
+        if(entry != null){
+            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Write, entry.obj, data, entry.name))
+        }else{
+            post {
+                delegate.onCharacteristicWrite(characteristicObjects.nameOf(handle), false, null)
+            }
+        }
+    }
     /**
      * Read a value from a descriptor
      * @param descriptor The descriptor to read
      */
     fun readDescriptor(descriptor: String){
-        val desc = getDescriptor(UUID.fromString(descriptor))
-        if(desc != null){
-            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Read, desc, null))
+        val handle = descriptorObjects.handleOf(descriptor)
+        if(handle != -1){
+            readDescriptor(handle)
         }else{
-            mainThread.post {
+            post {
                 delegate.onDescriptorRead(descriptor.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
             }
         }
     }
+    /**
+     * Read a value from a descriptor
+     * @param handle The handle of the descriptor to read (from getDescriptorHandle)
+     */
+    fun readDescriptor(handle: Int){
+        val entry = descriptorObjects.entryByHandle(handle)
+        if(entry != null){
+            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Read, entry.obj, null, entry.name))
+        }else{
+            post {
+                delegate.onDescriptorRead(descriptorObjects.nameOf(handle), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
+            }
+        }
+    }
     /**
      * Write a value to a descriptor
      * @param descriptor The descriptor to write
      * @param data The value to write (as bytes)
      */
     fun writeDescriptor(descriptor: String, data: ByteArray?){
-        val desc = getDescriptor(UUID.fromString(descriptor))
-        if(desc != null){
-            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Write, desc, data))
+        val handle = descriptorObjects.handleOf(descriptor)
+        if(handle != -1){
+            writeDescriptor(handle, data)
         }else{
-            mainThread.post {
+            post {
                 delegate.onDescriptorWrite(descriptor.toUpperCase(), false, null)
             }
         }
     }
+    /**
+     * Write a value to a descriptor
+     * @param handle The handle of the descriptor to write (from getDescriptorHandle)
+     * @param data The value to write (as bytes)
+     */
+    fun writeDescriptor(handle: Int, data: ByteArray?){
+        val entry = descriptorObjects.entryByHandle(handle)
+        if(entry != null){
+            gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Write, entry.obj, data, entry.name))
+        }else{
+            post {
+                delegate.onDescriptorWrite(descriptorObjects.nameOf(handle), false, null)
+            }
+        }
+    }
+
+    /**
+     * Write a value to a characteristic without waiting for a response from the server (WRITE_TYPE_NO_RESPONSE).
+     * Use this to stream data at high rates. At most streamWindow streamed writes can be pending at once.
+     * The delegate's onCharacteristicWrite is called for each write (like writeCharacteristic), which returns its credit.
+     * @param characteristic The characteristic to write (must have the WriteNoResponse property)
+     * @param data The value to write (as bytes)
+     * @return Was the write queued (false if there are no credits left, the characteristic does not support writes without
+     *          response, or the client is not connected)
+     */
+    fun writeCharacteristicStream(characteristic: String, data: ByteArray?): Boolean{
+        return writeCharacteristicStream(characteristicObjects.handleOf(characteristic), data)
+    }
+    /**
+     * Write a value to a characteristic without waiting for a response from the server (WRITE_TYPE_NO_RESPONSE).
+     * Use this to stream data at high rates. At most streamWindow streamed writes can be pending at once.
+     * The delegate's onCharacteristicWrite is called for each write (like writeCharacteristic), which returns its credit.
+     * @param handle The handle of the characteristic to write (from getCharacteristicHandle)
+     * @param data The value to write (as bytes)
+     * @return Was the write queued (false if there are no credits left, the characteristic does not support writes without
+     *          response, or the client is not connected)
+     */
+    fun writeCharacteristicStream(handle: Int, data: ByteArray?): Boolean{
+        val entry = characteristicObjects.entryByHandle(handle) ?: return false
+        if(entry.obj.properties and CharProperties.WriteNoResponse == 0)
+            return false
+        // Take a credit
+        while(true){
+            val inFlight = streamInFlight.get()
+            if(inFlight >= streamWindow)
+                return false
+            if(streamInFlight.compareAndSet(inFlight, inFlight + 1))
+                break
+        }
+        streamStartTime.compareAndSet(0, System.nanoTime())
+        if(!gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Write, entry.obj, data, entry.name, true))){
+            streamInFlight.decrementAndGet()
+            return false
+        }
+        return true
+    }
+    /**
+     * Reset streamThroughput. The next streamed write starts a new measurement.
+     */
+    fun resetStreamStatistics(){
+        streamBytes.set(0)
+        streamStartTime.set(0)
+    }
+
+    /**
+     * Use a characteristic as a framed message channel (or stop using it as one). Notifications of the characteristic are
+     * reassembled into messages and given to the delegate's onMessageReceived (BLEMessageDelegate) instead of
+     * onCharacteristicRead. Subscribe to the characteristic to receive them. The server must use the same characteristic as
+     * a message channel.
+     * @param characteristic The characteristic's UUID
+     * @param enable Whether or not to use the characteristic as a message channel
+     */
+    fun enableMessages(characteristic: String, enable: Boolean = true){
+        val uuid = parseUuid(characteristic) ?: return
+        if(enable)
+            messageAssemblers.putIfAbsent(uuid, MessageAssembler(maxMessageSize))
+        else
+            messageAssemblers.remove(uuid)
+    }
+    /**
+     * Write a message of any size (up to maxMessageSize) to a characteristic. The message is split into fragments that fit
+     * the negotiated MTU, which are written in order (with response). The delegate's onMessageSent (BLEMessageDelegate) is
+     * called once every fragment has been written, the fragments are not reported with onCharacteristicWrite.
+     * @param characteristic The characteristic to write
+     * @param message The message
+     * @return Were the fragments queued (false if the characteristic does not exist, the message is too large, or the
+     *          client is not connected)
+     */
+    fun writeMessage(characteristic: String, message: ByteArray): Boolean{
+        return writeMessage(characteristicObjects.handleOf(characteristic), message)
+    }
+    /**
+     * Write a message of any size (up to maxMessageSize) to a characteristic. See writeMessage(String, ByteArray).
+     * @param handle The handle of the characteristic to write (from getCharacteristicHandle)
+     * @param message The message
+     */
+    fun writeMessage(handle: Int, message: ByteArray): Boolean{
+        val entry = characteristicObjects.entryByHandle(handle) ?: return false
+        if(message.size > maxMessageSize)
+            return false
+        val fragments = MessageFraming.fragment(message, MessageFraming.fragmentSize(mtu))
+        val outgoing = OutgoingMessage(entry.name, fragments.size)
+        var queued = 0
+        for(fragment in fragments){
+            val operation = DelayedGattOperation(OperandType.Characteristic, OperationType.Write, entry.obj, fragment, entry.name)
+            operation.message = outgoing
+            if(!gattOperationQueue.queueOperation(operation))
+                break
+            queued++
+        }
+        if(queued == 0)
+            return false
+        // Fragments that could not be queued (disconnected part way) fail the message
+        for(i in queued until fragments.size)
+            handleMessageFragmentDone(outgoing, false)
+        return true
+    }
+
+    /**
+     * Record a message fragment finishing and tell the delegate when it was the last one
+     */
+    private fun handleMessageFragmentDone(message: OutgoingMessage, success: Boolean){
+        if(!message.fragmentDone(success))
+            return
+        val messageDelegate = messageDelegate ?: return
+        post {
+            messageDelegate.onMessageSent(message.name, !message.failed)
+        }
+    }
+
+    /**
+     * Apply connectionProfile to the connection (once services have been discovered). Only runs on the event loop.
+     */
+    private fun applyConnectionProfile(){
+        eventLoop.removeCallbacks(autoProfileTask)
+        if(gattClient == null || !servicesDiscovered)
+            return
+        if(connectionProfile == ConnectionProfile.Auto){
+            autoIdleSince = 0L
+            applyProfile(ConnectionProfile.Balanced)
+            eventLoop.postDelayed(autoProfileTask, AUTO_PROFILE_INTERVAL)
+        }else{
+            applyProfile(connectionProfile)
+        }
+    }
+
+    /**
+     * Request a profile's connection priority and PHY. The parameters are reported to the delegate once the PHY update
+     * completes (or right away if the PHY can not be changed).
+     */
+    private fun applyProfile(profile: Int){
+        val client = gattClient ?: return
+        activeProfile = profile
+        if(!client.requestProfile(profile))
+            reportConnectionParameters(client)
+    }
+
+    private fun reportConnectionParameters(client: GattClient){
+        val connectionDelegate = connectionDelegate ?: return
+        val profile = activeProfile
+        val mtu = mtu
+        val txPhy = txPhy
+        val rxPhy = rxPhy
+        post {
+            connectionDelegate.onConnectionParametersChanged(client.device.address, profile, mtu, txPhy, rxPhy)
+        }
+    }
+
+    /**
+     * ConnectionProfile.Auto: switch to Throughput when the queue builds up and back to Balanced once it has been idle.
+     * Runs on the event loop every AUTO_PROFILE_INTERVAL while connected.
+     */
+    private fun checkAutoProfile(){
+        if(connectionProfile != ConnectionProfile.Auto || gattClient == null || !isConnected)
+            return
+        val depth = gattOperationQueue.depth
+        if(depth >= autoThroughputDepth){
+            autoIdleSince = 0L
+            if(activeProfile != ConnectionProfile.Throughput)
+                applyProfile(ConnectionProfile.Throughput)
+        }else if(depth == 0){
+            val now = System.nanoTime() / 1000000
+            if(autoIdleSince == 0L)
+                autoIdleSince = now
+            else if(activeProfile != ConnectionProfile.Balanced && now - autoIdleSince >= autoIdleMillis)
+                applyProfile(ConnectionProfile.Balanced)
+        }else{
+            autoIdleSince = 0L
+        }
+        eventLoop.postDelayed(autoProfileTask, AUTO_PROFILE_INTERVAL)
+    }
+
+    /**
+     * Discover services (once per connection). Called after the MTU is negotiated or if negotiating it timed out.
+     */
+    private fun startServiceDiscovery(){
+        eventLoop.removeCallbacks(discoverServicesTask)
+        if(serviceDiscoveryStarted.compareAndSet(false, true))
+            gattClient?.discoverServices()
+    }
+
+    /**
+     * @return A snapshot of the client's metrics
+     */
+    fun getMetrics(): BLEMetricsSnapshot{
+        return metrics.snapshot(characteristicObjects.bytesIn(), characteristicObjects.bytesOut())
+    }
+    /**
+     * Deliver snapshots of the client's metrics to a listener periodically (on the callback handler's thread)
+     * @param intervalMillis Time between snapshots
+     * @param listener The listener or null to stop reporting
+     */
+    @Synchronized
+    fun reportMetrics(intervalMillis: Long, listener: BLEMetricsListener?){
+        metricsReporter?.stop()
+        metricsReporter = null
+        if(listener != null && intervalMillis > 0){
+            val reporter = MetricsReporter(callbackDispatcher.loop, intervalMillis, listener, { getMetrics() })
+            metricsReporter = reporter
+            reporter.start()
+        }
+    }
 
     fun handleGattOperationComplete(operation: DelayedGattOperation, success: Boolean){
-        if(operation.operandType == OperandType.Characteristic){
-            // Characteristic
-            if(operation.operationType == OperationType.Read){
-                // Read
-                mainThread.post {
-                    delegate.onCharacteristicRead((operation.operand as BluetoothGattCharacteristic).uuid.toString().toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, success, operation.data)
-                }
-            }else{
-                // Write
-                mainThread.post {
-                    delegate.onCharacteristicWrite((operation.operand as BluetoothGattCharacteristic).uuid.toString().toUpperCase(), success, operation.data)
-                }
+        if(operation.noResponse){
+            // Return the streamed write's credit
+            streamInFlight.decrementAndGet()
+            if(success)
+                streamBytes.addAndGet(operation.data?.size?.toLong() ?: 0L)
+        }
+        if(success && operation.operandType == OperandType.Characteristic){
+            val entry = characteristicObjects.entry((operation.operand as GattCharacteristic).uuid)
+            val size = operation.data?.size?.toLong() ?: 0L
+            if(entry != null){
+                if(operation.operationType == OperationType.Read)
+                    entry.bytesIn.addAndGet(size)
+                else
+                    entry.bytesOut.addAndGet(size)
             }
-        }else{
-            // Descriptor
-            if(operation.operationType == OperationType.Read){
-                // Read
-                mainThread.post {
-                    delegate.onDescriptorRead((operation.operand as BluetoothGattDescriptor).uuid.toString().toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, success, operation.data)
+        }
+        val message = operation.message
+        if(message != null){
+            metrics.recordDelivered(operation)
+            handleMessageFragmentDone(message, success)
+            return
+        }
+        post {
+            metrics.recordDelivered(operation)
+            val data = operation.data
+            if(operation.operandType == OperandType.Characteristic){
+                // Characteristic
+                if(operation.operationType == OperationType.Read){
+                    // Read (data is already a private copy so it is wrapped instead of copied again)
+                    if(bufferDelegate != null)
+                        bufferDelegate.onCharacteristicValue(operation.name, UNKNOWN_WRITING_DEVICE_ADDRESS, success, if(data == null) null else bufferPool.wrap(data))
+                    else
+                        delegate.onCharacteristicRead(operation.name, UNKNOWN_WRITING_DEVICE_ADDRESS, success, data)
+                }else{
+                    // Write
+                    delegate.onCharacteristicWrite(operation.name, success, operation.data)
                 }
             }else{
-                // Write
-                mainThread.post {
-                    delegate.onDescriptorWrite((operation.operand as BluetoothGattDescriptor).uuid.toString().toUpperCase(), success, operation.data)
+                // Descriptor
+                if(operation.operationType == OperationType.Read){
+                    // Read
+                    if(bufferDelegate != null)
+                        bufferDelegate.onDescriptorValue(operation.name, UNKNOWN_WRITING_DEVICE_ADDRESS, success, if(data == null) null else bufferPool.wrap(data))
+                    else
+                        delegate.onDescriptorRead(operation.name, UNKNOWN_WRITING_DEVICE_ADDRESS, success, data)
+                }else{
+                    // Write
+                    delegate.onDescriptorWrite(operation.name, success, operation.data)
                 }
             }
         }
@@ -377,24 +904,24 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
 
     /**
      * Get a descriptor object from a UUID
-     * @return The BluetoothGattDescriptor or null
+     * @return The GattDescriptor or null
      */
-    private fun getDescriptor(uuid: UUID): BluetoothGattDescriptor?{
-        return descriptorObjects.asSequence().firstOrNull { it.uuid == uuid }
+    private fun getDescriptor(uuid: UUID): GattDescriptor?{
+        return descriptorObjects[uuid]
     }
     /**
      * Get a characteristic object from a UUID
-     * @return The BluetoothGattCharacteristic or null
+     * @return The GattCharacteristic or null
      */
-    private fun getCharacteristic(uuid: UUID): BluetoothGattCharacteristic?{
-        return characteristicObjects.asSequence().firstOrNull { it.uuid == uuid }
+    private fun getCharacteristic(uuid: UUID): GattCharacteristic?{
+        return characteristicObjects[uuid]
     }
     /**
      * Get a service object from a UUID
-     * @return The BluetoothGattService or null
+     * @return The GattService or null
      */
-    private fun getService(uuid: UUID): BluetoothGattService?{
-        return serviceObjects.asSequence().firstOrNull { it.uuid == uuid }
+    private fun getService(uuid: UUID): GattService?{
+        return serviceObjects[uuid]
     }
 
     /**
@@ -403,7 +930,7 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * @return Whether or not the server has the service
      */
     fun hasService(service: String): Boolean{
-        return services.contains(service.toUpperCase());
+        return serviceObjects.contains(service);
     }
     /**
      * Check if the server has a characteristic
@@ -411,7 +938,7 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * @return Whether or not the server has the characteristic
      */
     fun hasCharacteristic(characteristic: String): Boolean{
-        return characteristics.contains(characteristic.toUpperCase());
+        return characteristicObjects.contains(characteristic);
     }
     /**
      * Check if the server has a descriptor
@@ -419,122 +946,192 @@ class BLEClient (val context: Context, val delegate: BLEDelegate, val useNewMeth
      * @return Whether or not the server has the descriptor
      */
     fun hasDescriptor(descriptor: String): Boolean{
-        return descriptors.contains(descriptor.toUpperCase());
+        return descriptorObjects.contains(descriptor);
     }
 
     //endregion
 
-    //region LeScanCallback (Old Method)
-    private val leScanCallback = BluetoothAdapter.LeScanCallback { device, rssi, scanRecord ->
-        if(device != null){
-            if(!deviceAddresses.contains(device.address)) {
-                devices.add(device)
-                deviceAddresses.add(device.address)
+    /**
+     * Handle an advertisement reported by the scanner. The device is reported to the delegate if the scan report policy allows
+     * it (added to the software batch when batching).
+     * @param timestampNanos When the advertisement was received (SystemClock.elapsedRealtimeNanos on android)
+     */
+    private fun handleAdvertisement(device: RemoteDevice, rssi: Int, timestampNanos: Long){
+        val discovered = discover(device, rssi, timestampNanos) ?: return
+        if(scanBatchDelay <= 0){
+            post {
+                delegate.onDeviceDiscovered(discovered.address, discovered.name, discovered.rssi)
             }
-            mainThread.post {
-                delegate.onDeviceDiscovered(device.address.toUpperCase(), device.name, rssi)
+            return
+        }
+        var schedule = false
+        synchronized(scanBatch){
+            scanBatch[discovered.address] = discovered
+            if(!scanBatchScheduled){
+                scanBatchScheduled = true
+                schedule = true
             }
         }
+        if(schedule)
+            eventLoop.postDelayed(flushScanBatchTask, scanBatchDelay)
     }
-    //endregion
 
-    //region ScanCallback (New Method)
-    private val scanCallback = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
-        object:ScanCallback(){
-            @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-            override fun onScanFailed(errorCode: Int) {
-                super.onScanFailed(errorCode)
-            }
-            @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-            override fun onScanResult(callbackType: Int, result: ScanResult?) {
-                super.onScanResult(callbackType, result)
-                if(result != null){
-                    if(!deviceAddresses.contains(result.device.address)) {
-                        devices.add(result.device)
-                        deviceAddresses.add(result.device.address)
-                    }
-                    mainThread.post {
-                        delegate.onDeviceDiscovered(result.device.address.toUpperCase(), result.device.name, result.rssi)
-                    }
-                }
+    /**
+     * Record an advertisement in the scan registry
+     * @return The device to report or null if the scan report policy skips it
+     */
+    private fun discover(device: RemoteDevice, rssi: Int, timestampNanos: Long): DiscoveredDevice?{
+        // Addresses are uppercase so the address can be used as the registry key without converting it
+        val scanned = scanRegistry.onAdvertisement(device.address, rssi, device) ?: return null
+        return DiscoveredDevice(scanned.address, device.name, scanned.rssi, timestampNanos)
+    }
+
+    /**
+     * Deliver the software scan batch. Only runs on the event loop (the scan batch timer), the batch is delivered with the
+     * callback dispatcher.
+     */
+    private fun flushScanBatch(){
+        val batch = synchronized(scanBatch){
+            scanBatchScheduled = false
+            val values = scanBatch.values.toTypedArray()
+            scanBatch.clear()
+            values
+        }
+        if(batch.isNotEmpty())
+            post { deliverScanBatch(batch) }
+    }
+
+    /**
+     * Report a batch of scan results. Only runs as a delegate call (see post).
+     */
+    private fun deliverScanBatch(batch: Array<DiscoveredDevice>){
+        val batchDelegate = delegate as? BLEScanBatchDelegate
+        if(batchDelegate != null){
+            batchDelegate.onDevicesDiscovered(batch)
+        }else{
+            batch.forEach { delegate.onDeviceDiscovered(it.address, it.name, it.rssi) }
+        }
+    }
+
+    //region BLEScanListener
+    private val scanListener = object: BLEScanListener {
+        override fun onAdvertisement(device: RemoteDevice, rssi: Int, timestampNanos: Long) {
+            handleAdvertisement(device, rssi, timestampNanos)
+        }
+        override fun onAdvertisements(batch: List<Advertisement>) {
+            // Batched by the scanner. Keep the latest result of each device and report the batch with one post.
+            val found = LinkedHashMap<String, DiscoveredDevice>()
+            batch.forEach {
+                val discovered = discover(it.device, it.rssi, it.timestampNanos)
+                if(discovered != null)
+                    found[discovered.address] = discovered
             }
-            @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-            override fun onBatchScanResults(results: MutableList<ScanResult>?) {
-                super.onBatchScanResults(results)
-                if(results != null){
-                    results.asSequence().forEach {
-                        devices.add(it.device)
-                        mainThread.post {
-                            delegate.onDeviceDiscovered(it.device.address.toUpperCase(), it.device.name, it.rssi)
-                        }
-                    }
+            if(found.isNotEmpty()){
+                val devices = found.values.toTypedArray()
+                post {
+                    deliverScanBatch(devices)
                 }
             }
         }
-    else null
+    }
     //endregion
 
-    //region BluetoothGattCallback
-    private val bluetoothGattCallback = object:BluetoothGattCallback(){
-        override fun onCharacteristicRead(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
-            super.onCharacteristicRead(gatt, characteristic, status)
-            gattOperationQueue.onCharacteristicRead(characteristic, status)
-        }
-        override fun onCharacteristicWrite(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
-            super.onCharacteristicWrite(gatt, characteristic, status)
-            gattOperationQueue.onCharacteristicWrite(characteristic, status)
-        }
-        override fun onServicesDiscovered(gatt: BluetoothGatt?, status: Int) {
-            super.onServicesDiscovered(gatt, status)
-            if(gatt != null){
-                gatt.services.asSequence().forEach {
-                    addService(it)
+    //region GattClientListener
+    private val gattClientListener = object: GattClientListener {
+        override fun onOperationComplete(client: GattClient, data: ByteArray?, status: Int) {
+            if(client === gattClient)
+                gattOperationQueue.onOperationComplete(data, status)
+        }
+        override fun onServicesDiscovered(client: GattClient, services: List<GattService>, status: Int) {
+            if(client !== gattClient)
+                return
+            services.forEach {
+                gattTables.addService(it)
+            }
+            servicesDiscovered = true
+            eventLoop.post(applyProfileTask)
+            post {
+                delegate.onServicesDiscovered()
+            }
+        }
+        override fun onNotification(client: GattClient, characteristic: UUID, value: ByteArray) {
+            if(client !== gattClient)
+                return
+            val entry = characteristicObjects.entry(characteristic)
+            entry?.bytesIn?.addAndGet(value.size.toLong())
+            val name = entry?.name ?: characteristic.toString().toUpperCase()
+            val assembler = messageAssemblers[characteristic]
+            if(assembler != null){
+                // Fragments of a characteristic arrive one at a time (in order) on the transport's thread
+                val message = assembler.onFragment(value)
+                if(message != null && messageDelegate != null){
+                    post {
+                        messageDelegate.onMessageReceived(name, UNKNOWN_WRITING_DEVICE_ADDRESS, message)
+                    }
+                }
+            }else if(bufferDelegate != null){
+                // Copy into a pooled array (the value is only valid during the call)
+                val buffer = bufferPool.acquire(value)
+                post {
+                    bufferDelegate.onCharacteristicValue(name, UNKNOWN_WRITING_DEVICE_ADDRESS, true, buffer)
                 }
-                mainThread.post{
-                    delegate.onServicesDiscovered()
+            }else{
+                val d = Arrays.copyOf(value, value.size)
+                post {
+                    delegate.onCharacteristicRead(name, UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
                 }
             }
         }
-        override fun onDescriptorWrite(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
-            super.onDescriptorWrite(gatt, descriptor, status)
-            gattOperationQueue.onDescriptorWrite(descriptor, status)
-        }
-        override fun onCharacteristicChanged(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?) {
-            super.onCharacteristicChanged(gatt, characteristic)
-            if(characteristic != null){
-                val d = Arrays.copyOf(characteristic.value, characteristic.value.size)
-                mainThread.post {
-                    delegate.onCharacteristicRead(characteristic.uuid.toString().toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
+        override fun onPhyUpdate(client: GattClient, txPhy: Int, rxPhy: Int, status: Int) {
+            if(client === gattClient){
+                if(status == GattStatus.Success){
+                    this@BLEClient.txPhy = txPhy
+                    this@BLEClient.rxPhy = rxPhy
                 }
+                reportConnectionParameters(client)
             }
         }
-        override fun onDescriptorRead(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
-            super.onDescriptorRead(gatt, descriptor, status)
-            gattOperationQueue.onDescriptorRead(descriptor, status)
-        }
-        override fun onConnectionStateChange(gatt: BluetoothGatt?, status: Int, newState: Int) {
-            super.onConnectionStateChange(gatt, status, newState)
-            if(gatt != null && gatt == gattConnection){
-                if(newState == BluetoothProfile.STATE_CONNECTED){
-                    gatt.discoverServices()
-                    mainThread.post {
-                        delegate.onConnectToDevice(gatt.device.address.toUpperCase(), gatt.device.name, true)
+        override fun onMtuChanged(client: GattClient, mtu: Int, status: Int) {
+            if(client === gattClient){
+                if(status == GattStatus.Success){
+                    this@BLEClient.mtu = mtu
+                    if(mtuDelegate != null){
+                        post {
+                            mtuDelegate.onMtuChanged(client.device.address, mtu)
+                        }
                     }
-                    isConnected = true
                 }
-                if(newState == BluetoothProfile.STATE_DISCONNECTED){
-                    services.clear()
-                    characteristics.clear()
-                    descriptors.clear()
-                    gattOperationQueue.clientDisconnected()
-                    mainThread.post {
-                        delegate.onDisconnectFromDevice(gatt.device.address.toUpperCase(), gatt.device.name)
-                    }
-                    isConnected = false
+                startServiceDiscovery()
+            }
+        }
+        override fun onConnectionStateChange(client: GattClient, connected: Boolean) {
+            if(!isCurrent(client))
+                return
+            if(connected){
+                mtu = MessageFraming.DEFAULT_MTU
+                txPhy = 1
+                rxPhy = 1
+                servicesDiscovered = false
+                serviceDiscoveryStarted.set(false)
+                val profile = connectionProfile
+                val mtuRequest = if(profile == ConnectionProfile.Throughput || profile == ConnectionProfile.Auto) MessageFraming.MAX_MTU else requestedMtu
+                if(mtuRequest > MessageFraming.DEFAULT_MTU && client.requestMtu(mtuRequest)){
+                    // Only one GATT operation at a time so services are discovered once onMtuChanged is called
+                    // (or after a timeout, some stacks never call it)
+                    eventLoop.postDelayed(discoverServicesTask, MTU_TIMEOUT)
+                }else{
+                    startServiceDiscovery()
                 }
+                post {
+                    delegate.onConnectToDevice(client.device.address, client.device.name, true)
+                }
+                isConnected = true
+            }else{
+                gattClient = null
+                closeConnection(client)
             }
         }
     }
     //endregion
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,571 @@
+package com.mb3hel.quickble
+
+import android.bluetooth.*
+import android.content.Context
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.support.annotation.RequiresApi
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A peripheral connected (or being connected to) by a BLEClientPool. Each connection has its own BluetoothGatt, operation
+ * queue and GATT tables, so operations on one peripheral never wait for another peripheral's operations. Handles from
+ * getCharacteristicHandle/getDescriptorHandle are only valid for the connection they came from.
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+class BLEPeripheralConnection internal constructor(private val pool: BLEClientPool, val device: BluetoothDevice) {
+    /**
+     * The peripheral's address (the pool's key for this connection)
+     */
+    val address: String = device.address.toUpperCase()
+    val name: String?
+        get() = device.name
+
+    val gattOperationQueue = GattOperationQueue(BluetoothGattTransport({ isConnected }, { gatt }),
+            { operation, success -> pool.handleGattOperationComplete(this, operation, success) })
+
+    /**
+     * Runtime metrics of this connection (queue depth, operation latencies, failures, bytes per characteristic)
+     */
+    val metrics = BLEMetrics()
+
+    /**
+     * Is the peripheral connected (false while the connection is pending or being attempted)
+     */
+    @Volatile
+    var isConnected = false
+        internal set
+    /**
+     * The connection's MTU (23 until negotiated)
+     */
+    @Volatile
+    var mtu = MessageFraming.DEFAULT_MTU
+        internal set
+
+    /**
+     * The services available on the peripheral
+     */
+    val services = CopyOnWriteArrayList<String>()
+    /**
+     * The characteristics available on the peripheral
+     */
+    val characteristics = CopyOnWriteArrayList<String>()
+    /**
+     * The descriptors available on the peripheral
+     */
+    val descriptors = CopyOnWriteArrayList<String>()
+
+    // Platform Specific Objects
+    internal val gattTables = RemoteGattTables(services, characteristics, descriptors)
+    internal val serviceObjects = gattTables.serviceObjects
+    internal val characteristicObjects = gattTables.characteristicObjects
+    internal val descriptorObjects = gattTables.descriptorObjects
+
+    @Volatile
+    internal var gatt: BluetoothGatt? = null
+    // Holds one of the pool's connection attempt slots. Guarded by the pool's lock.
+    internal var connecting = false
+    internal val serviceDiscoveryStarted = AtomicBoolean(false)
+    internal val discoverServicesTask = Runnable { pool.startServiceDiscovery(this) }
+    internal val connectTimeoutTask = Runnable { pool.connectTimedOut(this) }
+
+    init{
+        gattOperationQueue.metrics = metrics
+    }
+
+    /**
+     * Get a handle for a characteristic. Handles are valid until the connection is closed.
+     * @return The handle or -1 if the peripheral does not have the characteristic
+     */
+    fun getCharacteristicHandle(characteristic: String): Int{
+        return characteristicObjects.handleOf(characteristic)
+    }
+    /**
+     * Get a handle for a descriptor. Handles are valid until the connection is closed.
+     * @return The handle or -1 if the peripheral does not have the descriptor
+     */
+    fun getDescriptorHandle(descriptor: String): Int{
+        return descriptorObjects.handleOf(descriptor)
+    }
+
+    fun hasService(service: String): Boolean{
+        return serviceObjects.contains(service)
+    }
+    fun hasCharacteristic(characteristic: String): Boolean{
+        return characteristicObjects.contains(characteristic)
+    }
+    fun hasDescriptor(descriptor: String): Boolean{
+        return descriptorObjects.contains(descriptor)
+    }
+
+    /**
+     * @return A snapshot of the connection's metrics
+     */
+    fun getMetrics(): BLEMetricsSnapshot{
+        return metrics.snapshot(characteristicObjects.bytesIn(), characteristicObjects.bytesOut())
+    }
+}
+
+/**
+ * A client connected to many peripherals at once (BLEClient has one connection). Connections are addressed by the
+ * peripheral's address. Each connection has its own operation queue and GATT tables (see BLEPeripheralConnection). The queues
+ * share the GATT event loop thread and the pool watches bluetooth power once, so a connection only costs its BluetoothGatt.
+ * The pool does not scan. Use a BLEClient to find peripherals (or connect to known addresses).
+ * Android only lets a client have one connection attempt in flight reliably, so attempts beyond maxConcurrentConnects wait in
+ * a queue and start (in order) as earlier attempts finish.
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+class BLEClientPool(val context: Context, val delegate: BLEPoolDelegate) {
+
+    //region Variables and Properties
+
+    /**
+     * The maximum number of connections (connected, being connected, or waiting to connect). Most controllers support 7
+     * connections, newer ones more. connect fails once the pool is full.
+     */
+    var maxConnections = 7
+    /**
+     * The maximum number of connection attempts in progress at once. Other attempts wait until one finishes.
+     */
+    var maxConcurrentConnects = 1
+        set(value) {
+            field = value
+            synchronized(this){ startPendingConnects() }
+        }
+    /**
+     * Time allowed for a connection attempt in milliseconds before it is cancelled (onConnectToDevice with success false).
+     * Frees the attempt's slot for the next peripheral instead of waiting for the stack's own (~30 second) timeout.
+     */
+    var connectTimeout = 10000L
+    /**
+     * The MTU requested after connecting (Android 5.0+). 23 or less skips negotiation. Services are discovered once the MTU
+     * has been negotiated.
+     */
+    var requestedMtu = MessageFraming.MAX_MTU
+
+    /**
+     * How delegate calls are delivered (a CallbackDelivery)
+     */
+    var callbackDelivery: Int
+        get() = callbackDispatcher.mode
+        set(value) { callbackDispatcher.mode = value }
+    /**
+     * Time between deliveries of queued delegate calls in milliseconds (CallbackDelivery.Interval)
+     */
+    var callbackInterval: Long
+        get() = callbackDispatcher.intervalMillis
+        set(value) { callbackDispatcher.intervalMillis = value }
+    /**
+     * The handler delegate calls are posted to (the main thread by default)
+     */
+    var callbackHandler: Handler
+        get() = (callbackDispatcher.loop as HandlerEventLoop).handler
+        set(value) { callbackDispatcher.loop = HandlerEventLoop(value) }
+    /**
+     * Executor delegate calls are run on instead of the callback handler (null by default). It should run tasks one at a time.
+     */
+    var callbackExecutor: Executor?
+        get() = callbackDispatcher.executor
+        set(value) { callbackDispatcher.executor = value }
+
+    /**
+     * The number of connected peripherals
+     */
+    val connectedCount: Int
+        get() = connections.values.count { it.isConnected }
+
+    // Connections by address. Changed only while holding the pool's lock.
+    private val connections = ConcurrentHashMap<String, BLEPeripheralConnection>()
+    // Connections waiting for an attempt slot (in the order connect was called) and the number of attempts in progress
+    private val pendingConnects = ArrayDeque<BLEPeripheralConnection>()
+    private var connecting = 0
+
+    // Android Specific Bluetooth Objects
+    private val mainThread = Handler(Looper.getMainLooper())
+    private val callbackDispatcher = CallbackDispatcher(HandlerEventLoop(mainThread))
+    private val btManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
+    private val btAdapter = btManager.adapter
+    private var bluetoothEnabled = false
+    private val powerListener: (Boolean) -> Unit = { handlePowerChange(it) }
+    //endregion
+
+    /**
+     * Create a new QuickBLE client pool for the Gatt central role
+     */
+    init{
+        BluetoothPowerMonitor.register(context, powerListener)
+        handlePowerChange(btAdapter?.isEnabled == true)
+    }
+
+    /**
+     * Release the pool when it is no longer needed. Closes every connection and stops watching for bluetooth power changes.
+     */
+    fun release(){
+        disconnectAll()
+        BluetoothPowerMonitor.unregister(powerListener)
+    }
+
+    private inline fun post(crossinline block: () -> Unit){
+        callbackDispatcher.dispatch(Runnable { block() })
+    }
+
+    @Synchronized
+    private fun handlePowerChange(state: Boolean){
+        if(state == bluetoothEnabled)
+            return
+        bluetoothEnabled = state
+        if(!state)
+            disconnectAll()
+        post {
+            delegate.onBluetoothPowerChanged(state)
+        }
+    }
+
+    //region Connections
+    /**
+     * Connect to a peripheral. The result is reported to onConnectToDevice (once per call that returned true).
+     * @param deviceAddress The address of the peripheral
+     * @return Was the connection added to the pool (true if it already is). False if the address is not valid, bluetooth is
+     *          off, or the pool already has maxConnections connections.
+     */
+    @Synchronized
+    fun connect(deviceAddress: String): Boolean{
+        val address = deviceAddress.toUpperCase()
+        if(connections.containsKey(address))
+            return true
+        if(btAdapter == null || !bluetoothEnabled || !BluetoothAdapter.checkBluetoothAddress(address) || connections.size >= maxConnections)
+            return false
+        val connection = BLEPeripheralConnection(this, btAdapter.getRemoteDevice(address))
+        connections[address] = connection
+        pendingConnects.add(connection)
+        startPendingConnects()
+        return true
+    }
+
+    /**
+     * Disconnect from a peripheral. A connection that has not been made yet is cancelled (onConnectToDevice with success false).
+     * @param deviceAddress The address of the peripheral
+     */
+    @Synchronized
+    fun disconnect(deviceAddress: String){
+        val connection = connections[deviceAddress.toUpperCase()] ?: return
+        if(connection.isConnected){
+            // Closed once the stack reports the disconnect
+            connection.gatt?.disconnect()
+        }else{
+            closeConnection(connection)
+            post {
+                delegate.onConnectToDevice(connection.address, connection.name, false)
+            }
+        }
+    }
+
+    /**
+     * Close every connection (including pending ones) without waiting for the stack
+     */
+    @Synchronized
+    fun disconnectAll(){
+        ArrayList(connections.values).forEach { connection ->
+            val wasConnected = connection.isConnected
+            connection.gatt?.disconnect()
+            closeConnection(connection)
+            post {
+                if(wasConnected)
+                    delegate.onDisconnectFromDevice(connection.address, connection.name)
+                else
+                    delegate.onConnectToDevice(connection.address, connection.name, false)
+            }
+        }
+    }
+
+    /**
+     * @return The connection to a peripheral or null if the pool has none
+     */
+    operator fun get(deviceAddress: String): BLEPeripheralConnection?{
+        return connections[deviceAddress.toUpperCase()]
+    }
+
+    /**
+     * @return Every connection in the pool (in no particular order)
+     */
+    fun getConnections(): List<BLEPeripheralConnection>{
+        return ArrayList(connections.values)
+    }
+
+    /**
+     * Start waiting connection attempts while there are free attempt slots
+     * DO NOT CALL THIS WITHOUT SYNCHRONIZING ON THE POOL FIRST!!!!
+     */
+    private fun startPendingConnects(){
+        while(connecting < Math.max(1, maxConcurrentConnects) && pendingConnects.isNotEmpty()){
+            val connection = pendingConnects.poll()
+            connecting++
+            connection.connecting = true
+            connection.gatt = if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                connection.device.connectGatt(context, false, bluetoothGattCallback, BluetoothDevice.TRANSPORT_LE)
+            else
+                connection.device.connectGatt(context, false, bluetoothGattCallback)
+            if(connection.gatt == null){
+                connections.remove(connection.address, connection)
+                releaseConnectSlot(connection)
+                post {
+                    delegate.onConnectToDevice(connection.address, connection.name, false)
+                }
+            }else{
+                mainThread.postDelayed(connection.connectTimeoutTask, connectTimeout)
+            }
+        }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT SYNCHRONIZING ON THE POOL FIRST!!!!
+     */
+    private fun releaseConnectSlot(connection: BLEPeripheralConnection){
+        if(connection.connecting){
+            connection.connecting = false
+            connecting--
+        }
+        mainThread.removeCallbacks(connection.connectTimeoutTask)
+    }
+
+    /**
+     * Remove a connection from the pool and close its BluetoothGatt. Queued operations fail.
+     * DO NOT CALL THIS WITHOUT SYNCHRONIZING ON THE POOL FIRST!!!!
+     */
+    private fun closeConnection(connection: BLEPeripheralConnection){
+        connections.remove(connection.address, connection)
+        pendingConnects.remove(connection)
+        releaseConnectSlot(connection)
+        mainThread.removeCallbacks(connection.discoverServicesTask)
+        connection.isConnected = false
+        connection.gatt?.close()
+        connection.gatt = null
+        connection.gattOperationQueue.clientDisconnected()
+        connection.gattTables.clear()
+        startPendingConnects()
+    }
+
+    @Synchronized
+    internal fun connectTimedOut(connection: BLEPeripheralConnection){
+        if(connection.isConnected || connections[connection.address] !== connection)
+            return
+        closeConnection(connection)
+        post {
+            delegate.onConnectToDevice(connection.address, connection.name, false)
+        }
+    }
+
+    /**
+     * Discover services (once per connection). Called after the MTU is negotiated or if negotiating it timed out.
+     */
+    internal fun startServiceDiscovery(connection: BLEPeripheralConnection){
+        mainThread.removeCallbacks(connection.discoverServicesTask)
+        if(connection.serviceDiscoveryStarted.compareAndSet(false, true))
+            connection.gatt?.discoverServices()
+    }
+
+    /**
+     * @return The pool's connection that owns a BluetoothGatt or null if it has been closed
+     */
+    private fun connectionOf(gatt: BluetoothGatt?): BLEPeripheralConnection?{
+        if(gatt == null)
+            return null
+        val connection = connections[gatt.device.address.toUpperCase()]
+        return if(connection != null && connection.gatt === gatt) connection else null
+    }
+    //endregion
+
+    //region Characteristics and Descriptors
+    /**
+     * Subscribe to a characteristic of a peripheral to receive notifications (onCharacteristicRead) when it's value changes
+     * @param subscribe Whether not to subscribe to the characteristic (false to unsubscribe)
+     */
+    fun subscribeToCharacteristic(deviceAddress: String, characteristic: String, subscribe: Boolean = true){
+        val connection = this[deviceAddress] ?: return
+        val char = connection.characteristicObjects.byHandle(connection.characteristicObjects.handleOf(characteristic)) ?: return
+        connection.gatt?.setCharacteristicNotification(char.platform as BluetoothGattCharacteristic, subscribe)
+        val descriptor = char.getDescriptor(CLIENT_CONFIG_DESCRIPTOR)
+        if(descriptor != null){
+            val value = if(subscribe) ENABLE_NOTIFICATION_VALUE else DISABLE_NOTIFICATION_VALUE
+            connection.gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Write, descriptor, value, CLIENT_CONFIG_DESCRIPTOR_NAME))
+        }
+    }
+
+    fun readCharacteristic(deviceAddress: String, characteristic: String){
+        queueOperation(deviceAddress, OperandType.Characteristic, OperationType.Read, this[deviceAddress]?.getCharacteristicHandle(characteristic) ?: -1, null, characteristic)
+    }
+    /**
+     * @param handle The handle of the characteristic (from the connection's getCharacteristicHandle)
+     */
+    fun readCharacteristic(deviceAddress: String, handle: Int){
+        queueOperation(deviceAddress, OperandType.Characteristic, OperationType.Read, handle, null, null)
+    }
+    fun writeCharacteristic(deviceAddress: String, characteristic: String, data: ByteArray?){
+        queueOperation(deviceAddress, OperandType.Characteristic, OperationType.Write, this[deviceAddress]?.getCharacteristicHandle(characteristic) ?: -1, data, characteristic)
+    }
+    fun writeCharacteristic(deviceAddress: String, handle: Int, data: ByteArray?){
+        queueOperation(deviceAddress, OperandType.Characteristic, OperationType.Write, handle, data, null)
+    }
+    fun readDescriptor(deviceAddress: String, descriptor: String){
+        queueOperation(deviceAddress, OperandType.Descriptor, OperationType.Read, this[deviceAddress]?.getDescriptorHandle(descriptor) ?: -1, null, descriptor)
+    }
+    /**
+     * @param handle The handle of the descriptor (from the connection's getDescriptorHandle)
+     */
+    fun readDescriptor(deviceAddress: String, handle: Int){
+        queueOperation(deviceAddress, OperandType.Descriptor, OperationType.Read, handle, null, null)
+    }
+    fun writeDescriptor(deviceAddress: String, descriptor: String, data: ByteArray?){
+        queueOperation(deviceAddress, OperandType.Descriptor, OperationType.Write, this[deviceAddress]?.getDescriptorHandle(descriptor) ?: -1, data, descriptor)
+    }
+    fun writeDescriptor(deviceAddress: String, handle: Int, data: ByteArray?){
+        queueOperation(deviceAddress, OperandType.Descriptor, OperationType.Write, handle, data, null)
+    }
+
+    /**
+     * Queue an operation on a peripheral's queue. If the peripheral is not connected or does not have the operand the
+     * operation fails right away.
+     * @param name The operand as given by the caller (reported if the operation fails) or null if it was given by handle
+     */
+    private fun queueOperation(deviceAddress: String, operandType: OperandType, operationType: OperationType, handle: Int, data: ByteArray?, name: String?){
+        val connection = this[deviceAddress]
+        val entry = if(operandType == OperandType.Characteristic) connection?.characteristicObjects?.entryByHandle(handle)
+                    else connection?.descriptorObjects?.entryByHandle(handle)
+        if(connection == null || entry == null ||
+                !connection.gattOperationQueue.queueOperation(DelayedGattOperation(operandType, operationType, entry.obj, data, entry.name))){
+            val address = deviceAddress.toUpperCase()
+            val operandName = entry?.name ?: name?.toUpperCase() ?: connection?.gattTables?.nameOf(operandType, handle) ?: GattTable.handleName(handle)
+            post {
+                deliver(address, operandType, operationType, operandName, false, data)
+            }
+        }
+    }
+
+    internal fun handleGattOperationComplete(connection: BLEPeripheralConnection, operation: DelayedGattOperation, success: Boolean){
+        if(success && operation.operandType == OperandType.Characteristic){
+            val entry = connection.characteristicObjects.entry((operation.operand as GattCharacteristic).uuid)
+            val size = operation.data?.size?.toLong() ?: 0L
+            if(entry != null){
+                if(operation.operationType == OperationType.Read)
+                    entry.bytesIn.addAndGet(size)
+                else
+                    entry.bytesOut.addAndGet(size)
+            }
+        }
+        post {
+            connection.metrics.recordDelivered(operation)
+            deliver(connection.address, operation.operandType, operation.operationType, operation.name, success, operation.data)
+        }
+    }
+
+    private fun deliver(address: String, operandType: OperandType, operationType: OperationType, name: String, success: Boolean, data: ByteArray?){
+        if(operandType == OperandType.Characteristic){
+            if(operationType == OperationType.Read)
+                delegate.onCharacteristicRead(address, name, success, data)
+            else
+                delegate.onCharacteristicWrite(address, name, success, data)
+        }else{
+            if(operationType == OperationType.Read)
+                delegate.onDescriptorRead(address, name, success, data)
+            else
+                delegate.onDescriptorWrite(address, name, success, data)
+        }
+    }
+    //endregion
+
+    //region BluetoothGattCallback
+    // One callback for every connection. Events are routed by the BluetoothGatt they are for.
+    private val bluetoothGattCallback = object:BluetoothGattCallback(){
+        override fun onCharacteristicRead(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
+            super.onCharacteristicRead(gatt, characteristic, status)
+            // Copy now. The characteristic's value can change before the queue's event loop runs.
+            connectionOf(gatt)?.gattOperationQueue?.onOperationComplete(copyOf(characteristic?.value), status)
+        }
+        override fun onCharacteristicWrite(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
+            super.onCharacteristicWrite(gatt, characteristic, status)
+            connectionOf(gatt)?.gattOperationQueue?.onOperationComplete(null, status)
+        }
+        override fun onDescriptorRead(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
+            super.onDescriptorRead(gatt, descriptor, status)
+            connectionOf(gatt)?.gattOperationQueue?.onOperationComplete(copyOf(descriptor?.value), status)
+        }
+        override fun onDescriptorWrite(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
+            super.onDescriptorWrite(gatt, descriptor, status)
+            connectionOf(gatt)?.gattOperationQueue?.onOperationComplete(null, status)
+        }
+        override fun onServicesDiscovered(gatt: BluetoothGatt?, status: Int) {
+            super.onServicesDiscovered(gatt, status)
+            val connection = connectionOf(gatt) ?: return
+            gattServicesOf(gatt!!.services).forEach {
+                connection.gattTables.addService(it)
+            }
+            post {
+                delegate.onServicesDiscovered(connection.address)
+            }
+        }
+        override fun onCharacteristicChanged(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?) {
+            super.onCharacteristicChanged(gatt, characteristic)
+            val connection = connectionOf(gatt) ?: return
+            if(characteristic != null){
+                val value = characteristic.value
+                val entry = connection.characteristicObjects.entry(characteristic.uuid)
+                entry?.bytesIn?.addAndGet(value.size.toLong())
+                val name = entry?.name ?: characteristic.uuid.toString().toUpperCase()
+                val d = Arrays.copyOf(value, value.size)
+                post {
+                    delegate.onCharacteristicRead(connection.address, name, true, d)
+                }
+            }
+        }
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+        override fun onMtuChanged(gatt: BluetoothGatt?, mtu: Int, status: Int) {
+            super.onMtuChanged(gatt, mtu, status)
+            val connection = connectionOf(gatt) ?: return
+            if(status == BluetoothGatt.GATT_SUCCESS)
+                connection.mtu = mtu
+            startServiceDiscovery(connection)
+        }
+        override fun onConnectionStateChange(gatt: BluetoothGatt?, status: Int, newState: Int) {
+            super.onConnectionStateChange(gatt, status, newState)
+            val connection = connectionOf(gatt) ?: return
+            if(newState == BluetoothProfile.STATE_CONNECTED){
+                synchronized(this@BLEClientPool){
+                    // The attempt is over, let the next peripheral connect
+                    releaseConnectSlot(connection)
+                    startPendingConnects()
+                }
+                connection.mtu = MessageFraming.DEFAULT_MTU
+                connection.serviceDiscoveryStarted.set(false)
+                connection.isConnected = true
+                if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && requestedMtu > MessageFraming.DEFAULT_MTU && gatt!!.requestMtu(requestedMtu)){
+                    // Services are discovered once onMtuChanged is called (or after a timeout, some stacks never call it)
+                    mainThread.postDelayed(connection.discoverServicesTask, MTU_TIMEOUT)
+                }else{
+                    startServiceDiscovery(connection)
+                }
+                post {
+                    delegate.onConnectToDevice(connection.address, connection.name, true)
+                }
+            }
+            if(newState == BluetoothProfile.STATE_DISCONNECTED){
+                val wasConnected = connection.isConnected
+                synchronized(this@BLEClientPool){
+                    closeConnection(connection)
+                }
+                post {
+                    if(wasConnected)
+                        delegate.onDisconnectFromDevice(connection.address, connection.name)
+                    else
+                        delegate.onConnectToDevice(connection.address, connection.name, false)
+                }
+            }
+        }
+    }
+    //endregion
+
+}
@@ -27,3 +27,131 @@ interface BLEDelegate{
     fun onBluetoothRequestResult(choseToEnable: Boolean)
 
 }
+
+/**
+ * Optional callbacks for BLEServer batch writes (writeCharacteristics). Implement this on the same object as BLEDelegate.
+ * If the delegate does not implement it, batch writes are reported with the normal per characteristic callbacks.
+ */
+interface BLEBatchDelegate{
+    /**
+     * Called once for a batch write
+     * @param characteristics The characteristics written (in the order given to writeCharacteristics)
+     * @param success Were all of the values written
+     * @param values The values written (same order as characteristics)
+     */
+    fun onCharacteristicsWrite(characteristics: Array<String>, success: Boolean, values: Array<ByteArray?>)
+    /**
+     * Called once all notifications for a batch write have been sent
+     * @param characteristics The characteristics that were notified
+     * @param success Were all notifications sent
+     */
+    fun onNotificationsSent(characteristics: Array<String>, success: Boolean)
+}
+
+/**
+ * A device found while scanning (delivered in batches to BLEScanBatchDelegate)
+ * @param timestampNanos When the advertisement was received (SystemClock.elapsedRealtimeNanos)
+ */
+class DiscoveredDevice(val address: String, val name: String?, val rssi: Int, val timestampNanos: Long)
+
+/**
+ * Optional callback for BLEClient batched scanning (scanReportDelay). Implement this on the same object as BLEDelegate.
+ * If the delegate does not implement it, each device in a batch is reported with onDeviceDiscovered.
+ */
+interface BLEScanBatchDelegate{
+    /**
+     * Called once per batch of scan results
+     * @param devices The devices found since the last batch (each device at most once, with its latest RSSI)
+     */
+    fun onDevicesDiscovered(devices: Array<DiscoveredDevice>)
+}
+
+/**
+ * Optional callbacks that receive values as read-only ByteBuffers over pooled arrays instead of new ByteArrays. Implement this
+ * on the same object as BLEDelegate. When the delegate implements it, values received from the remote device (client:
+ * notifications and reads, server: write requests) are delivered here instead of to onCharacteristicRead/onDescriptorRead.
+ * Call release on each value when done with it (it may be kept past the callback until then).
+ */
+interface BLEBufferDelegate{
+    /**
+     * A characteristic value was received
+     * @param value The value or null if the read failed
+     */
+    fun onCharacteristicValue(characteristic: String, writingDeviceAddress: String, success: Boolean, value: PooledBuffer?)
+    /**
+     * A descriptor value was received
+     * @param value The value or null if the read failed
+     */
+    fun onDescriptorValue(descriptor: String, writingDeviceAddress: String, success: Boolean, value: PooledBuffer?)
+}
+
+/**
+ * Optional callback for MTU negotiation. Implement this on the same object as BLEDelegate.
+ */
+interface BLEMtuDelegate{
+    /**
+     * Called when the MTU of a connection changes (client: after connecting, server: when a central negotiates it)
+     * @param deviceAddress The address of the other device
+     * @param mtu The negotiated MTU (the largest value in one write/notification is mtu - 3 bytes)
+     */
+    fun onMtuChanged(deviceAddress: String, mtu: Int)
+}
+
+/**
+ * Optional callbacks for framed messages (enableMessages, writeMessage/notifyMessage). Implement this on the same object as
+ * BLEDelegate. Fragments of a message are not reported with the normal read/write callbacks.
+ */
+interface BLEMessageDelegate{
+    /**
+     * A whole message was received
+     * @param characteristic The characteristic the message was sent on
+     * @param deviceAddress The address of the device that sent it (UNKNOWN_WRITING_DEVICE_ADDRESS for a client)
+     */
+    fun onMessageReceived(characteristic: String, deviceAddress: String, message: ByteArray)
+    /**
+     * Every fragment of a message was written/notified
+     * @param success Were all fragments sent
+     */
+    fun onMessageSent(characteristic: String, success: Boolean)
+}
+
+/**
+ * Optional callback for BLEClient connection profiles. Implement this on the same object as BLEDelegate.
+ */
+interface BLEConnectionDelegate{
+    /**
+     * Called when a connection profile has been applied (after connecting, when connectionProfile changes, or when Auto
+     * switches profiles) and when the PHY changes
+     * @param deviceAddress The address of the server
+     * @param profile The ConnectionProfile in effect (never Auto, the profile Auto selected)
+     * @param mtu The connection's MTU
+     * @param txPhy The transmitter PHY (1 = 1M, 2 = 2M, 3 = Coded)
+     * @param rxPhy The receiver PHY (1 = 1M, 2 = 2M, 3 = Coded)
+     */
+    fun onConnectionParametersChanged(deviceAddress: String, profile: Int, mtu: Int, txPhy: Int, rxPhy: Int)
+}
+
+/**
+ * Delegate of a BLEClientPool. Every callback carries the address of the peripheral it is about since the pool is connected
+ * to many at once.
+ */
+interface BLEPoolDelegate{
+    /**
+     * A connection attempt finished
+     * @param success Is the peripheral connected (false if the attempt failed or timed out)
+     */
+    fun onConnectToDevice(address: String, name: String?, success: Boolean)
+    fun onDisconnectFromDevice(address: String, name: String?)
+    /**
+     * The peripheral's services, characteristics and descriptors are available (BLEPeripheralConnection.characteristics)
+     */
+    fun onServicesDiscovered(address: String)
+    /**
+     * A characteristic was read or notified
+     */
+    fun onCharacteristicRead(address: String, characteristic: String, success: Boolean, value: ByteArray?)
+    fun onCharacteristicWrite(address: String, characteristic: String, success: Boolean, value: ByteArray?)
+    fun onDescriptorRead(address: String, descriptor: String, success: Boolean, value: ByteArray?)
+    fun onDescriptorWrite(address: String, descriptor: String, success: Boolean, value: ByteArray?)
+    fun onBluetoothPowerChanged(enabled: Boolean)
+}
@@ -2,34 +2,66 @@ package com.mb3hel.quickble
 
 import android.app.AlertDialog
 import android.bluetooth.*
-import android.bluetooth.le.AdvertiseCallback
-import android.bluetooth.le.AdvertiseData
-import android.bluetooth.le.AdvertiseSettings
 import android.content.Context
-import android.content.pm.PackageManager
 import android.os.Build
 import android.os.Handler
-import android.os.Looper
-import android.os.ParcelUuid
 import android.support.annotation.RequiresApi
 import android.util.Log
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.collections.ArrayList
-import kotlin.concurrent.thread
 
+/**
+ * A QuickBLE server. Runs on a BLEServerTransport, the device's bluetooth adapter when created with a context.
+ */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-class BLEServer (val context: Context, val delegate: BLEDelegate){
+class BLEServer (val transport: BLEServerTransport, val delegate: BLEDelegate){
+
+    /**
+     * Create a server on the device's bluetooth adapter
+     */
+    constructor(context: Context, delegate: BLEDelegate): this(AndroidServerTransport(context), delegate)
 
     //region Variables and Properties
 
-    private val notificationCoordinator = NotificationCoordinator(this)
+    /**
+     * The context of a server on the device's bluetooth adapter (null on other transports)
+     */
+    val context: Context?
+        get() = (transport as? AndroidServerTransport)?.context
+
+    // Notifications are sent on the GATT server while it is open
+    private val notificationCoordinator = NotificationCoordinator(object: GattServerTransport {
+        override val isRunning: Boolean
+            get() = gattServer?.isRunning == true
+
+        override fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean{
+            return gattServer?.sendNotification(device, characteristic, data) ?: false
+        }
+    }, { handleNotificationSetSent(it) })
+
+    /**
+     * Runtime metrics (notification sets waiting, notification round trip times, failures, bytes per characteristic,
+     * main thread backlog). Use getMetrics for a snapshot or reportMetrics to have snapshots delivered periodically.
+     */
+    val metrics = BLEMetrics()
+    private var metricsReporter: MetricsReporter? = null
+
+    /**
+     * Pool of arrays for values delivered to a BLEBufferDelegate
+     */
+    val bufferPool = BufferPool()
+    private val bufferDelegate = delegate as? BLEBufferDelegate
 
     private val UNKNOWN_WRITING_DEVICE_ADDRESS = "unknown";
 
     // Platform Specific Objects
-    private var serviceObjects = ArrayList<BluetoothGattService>()
-    private var characteristicObjects = ArrayList<BluetoothGattCharacteristic>()
-    private var descriptorObjects = ArrayList<BluetoothGattDescriptor>()
+    private val serviceObjects = GattTable<GattService>()
+    private val characteristicObjects = GattTable<GattCharacteristic>()
+    private val descriptorObjects = GattTable<GattDescriptor>()
     // UUIDs for Gatt Objects
     /**
      * The services available on the server
@@ -58,6 +90,89 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
     var advertiseDeviceName = true
     var notifyChangingDevice = false
     var readInternalWrites = false
+    /**
+     * The executor notifications are sent from (defaults to a single thread shared by all servers).
+     * Should run tasks one at a time.
+     */
+    var notificationExecutor: Executor
+        get() = notificationCoordinator.executor
+        set(value) { notificationCoordinator.executor = value }
+    /**
+     * When a characteristic changes faster than notifications can be sent, replace the value of a notification still waiting
+     * to be sent instead of queuing another one (latest value wins). Bounds the notification queue and keeps devices at most
+     * one value behind. onNotificationSent is still called once per write.
+     */
+    var coalesceNotifications: Boolean
+        get() = notificationCoordinator.coalesce
+        set(value) { notificationCoordinator.coalesce = value }
+    /**
+     * How delegate calls are delivered (a CallbackDelivery). Immediate (default) posts each call to the callback handler (or
+     * executor). PerFrame and Interval queue calls and deliver all of them together once per frame or every callbackInterval
+     * milliseconds (in order). Direct calls the delegate on the binder thread the event arrived on (no thread hop, the
+     * delegate must be thread safe and return quickly).
+     */
+    var callbackDelivery: Int
+        get() = callbackDispatcher.mode
+        set(value) { callbackDispatcher.mode = value }
+    /**
+     * Time between deliveries of queued delegate calls in milliseconds (CallbackDelivery.Interval)
+     */
+    var callbackInterval: Long
+        get() = callbackDispatcher.intervalMillis
+        set(value) { callbackDispatcher.intervalMillis = value }
+    /**
+     * The handler delegate calls are posted to (the main thread by default). PerFrame needs a handler on a looper thread
+     * with a Choreographer. Null when the calls are posted to the transport's event loop and it is not a handler's (setting
+     * null goes back to the transport's event loop).
+     */
+    var callbackHandler: Handler?
+        get() = (callbackDispatcher.loop as? HandlerEventLoop)?.handler
+        set(value) { callbackDispatcher.loop = if(value != null) HandlerEventLoop(value) else transport.eventLoop }
+    /**
+     * Executor delegate calls are run on instead of the callback handler (null by default). It should run tasks one at a time
+     * (ex. Executors.newSingleThreadExecutor()) or calls may arrive out of order.
+     */
+    var callbackExecutor: Executor?
+        get() = callbackDispatcher.executor
+        set(value) { callbackDispatcher.executor = value }
+    /**
+     * Respond to read/write requests directly on the binder thread the request arrived on (skips the response executor)
+     */
+    var respondInline = false
+    /**
+     * The executor responses to read/write requests are sent from (defaults to a small bounded pool shared by all servers)
+     */
+    var responseExecutor: Executor = Dispatchers.responses
+    /**
+     * The number of responses to read/write requests that are waiting to be sent. A value that keeps growing means the
+     * response executor is saturated.
+     */
+    val pendingResponses: Int
+        get() = pendingResponseCount.get()
+    private val pendingResponseCount = AtomicInteger(0)
+
+    // MTU and framed messages
+    /**
+     * The largest message accepted on a message characteristic (larger messages are dropped)
+     */
+    var maxMessageSize = MessageFraming.DEFAULT_MAX_MESSAGE_SIZE
+    // The MTU negotiated by each connected device (devices that have not negotiated use the default of 23)
+    private val deviceMtus = ConcurrentHashMap<RemoteDevice, Int>()
+    // Assemblers of the characteristics enabled with enableMessages (one per writing device)
+    private val messageAssemblers = ConcurrentHashMap<UUID, ConcurrentHashMap<RemoteDevice, MessageAssembler>>()
+    private val messageDelegate = delegate as? BLEMessageDelegate
+    private val mtuDelegate = delegate as? BLEMtuDelegate
+
+    // Prepared (long) writes
+    /**
+     * The maximum number of bytes of prepared writes each central can have waiting to be executed. Prepare requests past
+     * the limit fail with GattStatus.PrepareQueueFull. Changes apply to centrals that start a new transaction.
+     */
+    var maxPreparedWriteSize = 64 * 1024
+    // Each central's prepared writes waiting for onExecuteWrite
+    private val preparedWrites = ConcurrentHashMap<RemoteDevice, PreparedWriteQueue>()
+    // Each central's long read in progress (value copied at offset 0, continuations served from the copy)
+    private val longReads = LongReadSnapshots()
 
     // Status
     /**
@@ -71,13 +186,16 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
     var isAdvertising = false
         private set
 
-    // Android Specific Bluetooth Objects
-    private val btManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
-    private val btAdapter = btManager.adapter
-    private var btAdvertiser = btAdapter.bluetoothLeAdvertiser
-    internal var gattServer: BluetoothGattServer? = null
-    private val mainThread = Handler(Looper.getMainLooper())
-    private var connectedDevices = ArrayList<BluetoothDevice>()
+    // Transport Objects
+    @Volatile
+    private var gattServer: GattServer? = null
+    private val callbackDispatcher = CallbackDispatcher(transport.eventLoop)
+    private var connectedDevices = ArrayList<RemoteDevice>()
+    // Replaced (never changed) when a device connects or disconnects so notification sets can share it without copying
+    @Volatile
+    private var connectedSnapshot = arrayOf<RemoteDevice>()
+    private var bluetoothEnabled = false
+    private val powerListener: (Boolean) -> Unit = { handlePowerChange(it) }
 
     // Enable BT Dialog Text
     var REQUEST_BT_TITLE = "Bluetooth Required"
@@ -91,22 +209,67 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * Create a new QuickBLE server for Gatt Peripheral role
      */
     init{
+        notificationCoordinator.metrics = metrics
+        notificationCoordinator.onNotificationStarted = { characteristic, data ->
+            characteristicObjects.entry((characteristic as GattCharacteristic).uuid)?.bytesOut?.addAndGet(data?.size?.toLong() ?: 0L)
+        }
         // Watch for Bluetooth Power Changes
-        thread(start = true){
-            var lastState = false
-            while(true){
-                val state = btAdapter.isEnabled
-                if(state != lastState){
-                    lastState = state
-                    if(!state){
-                        btAdvertiser.stopAdvertising(advertiseCallback)
-                    }
-                    mainThread.post {
-                        delegate.onBluetoothPowerChanged(state)
-                    }
-                }
-                Thread.sleep(100)
-            }
+        transport.addPowerListener(powerListener)
+        handlePowerChange(transport.isEnabled)
+    }
+
+    /**
+     * Release the server when it is no longer needed. Stops the server and stops watching for bluetooth power changes.
+     */
+    fun release(){
+        stopServer()
+        transport.removePowerListener(powerListener)
+        reportMetrics(0, null)
+    }
+
+    /**
+     * @return A snapshot of the server's metrics
+     */
+    fun getMetrics(): BLEMetricsSnapshot{
+        return metrics.snapshot(characteristicObjects.bytesIn(), characteristicObjects.bytesOut())
+    }
+    /**
+     * Deliver snapshots of the server's metrics to a listener periodically (on the callback handler's thread)
+     * @param intervalMillis Time between snapshots
+     * @param listener The listener or null to stop reporting
+     */
+    @Synchronized
+    fun reportMetrics(intervalMillis: Long, listener: BLEMetricsListener?){
+        metricsReporter?.stop()
+        metricsReporter = null
+        if(listener != null && intervalMillis > 0){
+            val reporter = MetricsReporter(callbackDispatcher.loop, intervalMillis, listener, { getMetrics() })
+            metricsReporter = reporter
+            reporter.start()
+        }
+    }
+
+    /**
+     * Post a delegate call with the callback dispatcher (counted in the metrics' main thread backlog)
+     */
+    private inline fun post(crossinline block: () -> Unit){
+        metrics.mainThreadPosted()
+        callbackDispatcher.dispatch(Runnable {
+            metrics.mainThreadRan()
+            block()
+        })
+    }
+
+    @Synchronized
+    private fun handlePowerChange(state: Boolean){
+        if(state == bluetoothEnabled)
+            return
+        bluetoothEnabled = state
+        if(!state){
+            transport.advertiser.stopAdvertising()
+        }
+        post {
+            delegate.onBluetoothPowerChanged(state)
         }
     }
 
@@ -117,10 +280,11 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param service The UUID of the service
      */
     fun addService(service: String){
-        if(!services.contains(service.toUpperCase())){
-            val s = BluetoothGattService(UUID.fromString(service), BluetoothGattService.SERVICE_TYPE_PRIMARY)
-            services.add(service.toUpperCase())
-            serviceObjects.add(s)
+        val uuid = UUID.fromString(service)
+        if(!serviceObjects.contains(uuid)){
+            val s = GattService(uuid, true)
+            serviceObjects.add(uuid, s)
+            services.add(serviceObjects.name(uuid)!!)
         }
     }
     /**
@@ -130,14 +294,15 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return Was the service successfully added
      */
     fun addIncludedService(service: String, parentService: String): Boolean{
-        if(!services.contains(service.toUpperCase()) && services.contains(parentService.toUpperCase())){
+        val uuid = UUID.fromString(service)
+        if(!serviceObjects.contains(uuid)){
             val parent = getService(UUID.fromString(parentService))
             if(parent == null)
                 return false
-            val s = BluetoothGattService(UUID.fromString(service), BluetoothGattService.SERVICE_TYPE_SECONDARY)
-            parent.addService(s)
-            serviceObjects.add(s)
-            services.add(service.toUpperCase())
+            val s = GattService(uuid, false)
+            parent.includedServices.add(s)
+            serviceObjects.add(uuid, s)
+            services.add(serviceObjects.name(uuid)!!)
             return true;
         }
         return false
@@ -151,7 +316,8 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return Was the characteristic successfully added
      */
     fun addCharacteristic(characteristic: String, parentService: String, properties: Int = CharProperties.Read or CharProperties.Write or CharProperties.Notify, permissions: Int = CharPermissions.Read or CharPermissions.Write): Boolean{
-        if(!characteristics.contains(characteristic.toUpperCase()) && services.contains(parentService.toUpperCase())){
+        val uuid = UUID.fromString(characteristic)
+        if(!characteristicObjects.contains(uuid)){
             val parent = getService(UUID.fromString(parentService))
             if(parent == null)
                 return false
@@ -160,10 +326,10 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
             if((properties and CharProperties.SignedWrite) == CharProperties.SignedWrite){
                 perms = perms or BluetoothGattCharacteristic.PROPERTY_SIGNED_WRITE
             }
-            val c = BluetoothGattCharacteristic(UUID.fromString(characteristic), properties, perms)
-            parent.addCharacteristic(c)
-            characteristicObjects.add(c)
-            characteristics.add(characteristic.toUpperCase())
+            val c = GattCharacteristic(uuid, properties, perms)
+            parent.characteristics.add(c)
+            characteristicObjects.add(uuid, c)
+            characteristics.add(characteristicObjects.name(uuid)!!)
             addDescriptor("00002902-0000-1000-8000-00805f9b34fb", characteristic, DescPermissions.Read or DescPermissions.Write) // Client Characteristic Config Descriptor needed for notifications on android
             return true
         }
@@ -177,14 +343,15 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return Was the descriptor successfully added
      */
     fun addDescriptor(descriptor: String, parentCharacteristic: String, permissions: Int = DescPermissions.Read or DescPermissions.Write): Boolean{
-        if(!descriptors.contains(descriptor.toUpperCase()) && characteristics.contains(parentCharacteristic.toUpperCase())){
+        val uuid = UUID.fromString(descriptor)
+        if(!descriptorObjects.contains(uuid)){
             val parent = getCharacteristic(UUID.fromString(parentCharacteristic))
             if(parent == null)
                 return false
-            val d = BluetoothGattDescriptor(UUID.fromString(descriptor), permissions)
-            parent.addDescriptor(d)
-            descriptorObjects.add(d)
-            descriptors.add(descriptor.toUpperCase())
+            val d = GattDescriptor(uuid, permissions)
+            parent.descriptors.add(d)
+            descriptorObjects.add(uuid, d)
+            descriptors.add(descriptorObjects.name(uuid)!!)
         }
         return false
     }
@@ -222,22 +389,17 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return An error code (BtError)
      */
     fun checkBluetooth(): Int{
-        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
-            return BtError.NoBluetooth
-        if (!context.packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE))
-            return BtError.NoBLE
-        if (btAdapter == null || !btAdapter.isEnabled)
-            return BtError.Disabled
-        return if (!btAdapter.isMultipleAdvertisementSupported) BtError.NoServer else BtError.None
+        return transport.checkBluetooth()
     }
     /**
-     * Show a dialog requesting that the user enable bluetooth
+     * Show a dialog requesting that the user enable bluetooth (only on the device's bluetooth adapter)
      */
     fun requestEnableBt(){
-        val builder = AlertDialog.Builder(context, AlertDialog.THEME_DEVICE_DEFAULT_LIGHT)
+        val transport = transport as? AndroidServerTransport ?: return
+        val builder = AlertDialog.Builder(transport.context, AlertDialog.THEME_DEVICE_DEFAULT_LIGHT)
         builder.setTitle(REQUEST_BT_TITLE).setMessage(REQUEST_BT_MESSAGE)
         builder.setPositiveButton(REQUEST_BT_CONFIRM, { _, _ ->
-            btAdapter.enable()
+            transport.btAdapter?.enable()
             delegate.onBluetoothRequestResult(true)
         })
         builder.setNegativeButton(REQUEST_BT_DENY, { _, _ ->
@@ -250,21 +412,20 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return An error code (BtError)
      */
     fun startServer(): Int {
-        btAdvertiser = btAdapter.bluetoothLeAdvertiser
         if(!isRunning) {
             if(isAdvertising){
-                btAdapter.bluetoothLeAdvertiser?.stopAdvertising(advertiseCallback)
+                transport.advertiser.stopAdvertising()
                 isAdvertising = false
             }
             val error = checkBluetooth()
             if (error != BtError.None)
                 return error
-            gattServer = btManager.openGattServer(context, gattServerCallback)
-            serviceObjects.asSequence().forEach {
-                gattServer?.addService(it)
-                Thread.sleep(100) // Prevent status 133 (GATT_ERROR) on some devices
+            val server = transport.openServer(gattServerListener)
+            gattServer = server
+            serviceObjects.values().forEach {
+                server?.addService(it)
             }
-            btAdapter.bluetoothLeAdvertiser?.startAdvertising(buildAdvertiseSettings(), buildAdvertiseData(), advertiseCallback)
+            transport.advertiser.startAdvertising(advertiseOptions(), advertiseCallback)
             isRunning = true
             isAdvertising = true
             return BtError.None
@@ -279,15 +440,18 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
         if(isRunning){
             // Don't close abruptly on the coordinator
             notificationCoordinator.serverStopped()
+            preparedWrites.clear()
+            longReads.clear()
             connectedDevices.forEach {
                 gattServer?.cancelConnection(it)
             }
             if(isAdvertising) {
-                btAdapter.bluetoothLeAdvertiser?.stopAdvertising(advertiseCallback)
+                transport.advertiser.stopAdvertising()
                 isAdvertising = false
             }
 
             gattServer?.close()
+            gattServer = null
             isRunning = false
         }
     }
@@ -295,9 +459,8 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * Start advertising if the server is running
      */
     fun startAdvertising(){
-        btAdvertiser = btAdapter.bluetoothLeAdvertiser
         if(isRunning && !isAdvertising){
-            btAdapter.bluetoothLeAdvertiser?.startAdvertising(buildAdvertiseSettings(), buildAdvertiseData(), advertiseCallback)
+            transport.advertiser.startAdvertising(advertiseOptions(), advertiseCallback)
             isAdvertising = true
         }
     }
@@ -306,7 +469,7 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      */
     fun stopAdvertising(){
         if(isRunning){
-            btAdapter.bluetoothLeAdvertiser?.stopAdvertising(advertiseCallback)
+            transport.advertiser.stopAdvertising()
             isAdvertising = false
         }
     }
@@ -317,19 +480,23 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param deviceAddress The address of the device to send the notification to
      */
     fun notifyDevice(characteristic: String, deviceAddress: String){
-        val char = getCharacteristic(UUID.fromString(characteristic))
+        notifyDevice(characteristicObjects.handleOf(characteristic), deviceAddress)
+    }
+    /**
+     * Send a notification of a characteristic's value to a certain device
+     * @param handle The handle of the characteristic to notify the value of (from getCharacteristicHandle)
+     * @param deviceAddress The address of the device to send the notification to
+     */
+    fun notifyDevice(handle: Int, deviceAddress: String){
+        val char = characteristicObjects.byHandle(handle)
         if(char == null){
             return
         }
-        val device = connectedDevices.firstOrNull { it.address.toUpperCase().equals(deviceAddress.toUpperCase())}
+        val device = connectedSnapshot.firstOrNull { it.address.equals(deviceAddress, true) }
         if(device == null)
             return
 
-        var d: ByteArray? = null
-        synchronized(char) {
-            d = Arrays.copyOf(char.value, char.value.size)
-        }
-        notificationCoordinator.queueNotifications(NotificationSet(char, arrayOf(device), d))
+        notificationCoordinator.queueNotifications(NotificationSet(char, arrayOf(device), copyValue(char)))
 
     }
 
@@ -338,38 +505,262 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param characteristic The characteristic to notify the value of
      * @param device The device that just changed the characteristic
      */
-    private fun notifyDevices(characteristic: BluetoothGattCharacteristic, device: BluetoothDevice?){
-        val devices = ArrayList<BluetoothDevice?>()
-        devices.addAll(connectedDevices)
-        if(device != null)
-            devices.remove(device)
-        var d: ByteArray? = null
+    private fun notifyDevices(characteristic: GattCharacteristic, device: RemoteDevice?){
+        // One set (value and device snapshot) is shared by every device notified
+        notificationCoordinator.queueNotifications(NotificationSet(characteristic, connectedSnapshot, copyValue(characteristic), device))
+    }
+
+    /**
+     * Copy a characteristic's value (empty if it has none)
+     */
+    private fun copyValue(characteristic: GattCharacteristic): ByteArray{
+        // Synchronized so a write and its copy are not split by another write
         synchronized(characteristic) {
-            d = Arrays.copyOf(characteristic.value, characteristic.value.size)
+            val d = characteristic.value ?: return ByteArray(0)
+            return Arrays.copyOf(d, d.size)
+        }
+    }
+
+    private fun addConnectedDevice(device: RemoteDevice){
+        connectedDevices.add(device)
+        connectedSnapshot = connectedDevices.toTypedArray()
+    }
+
+    private fun removeConnectedDevice(device: RemoteDevice){
+        connectedDevices.remove(device)
+        connectedSnapshot = connectedDevices.toTypedArray()
+        deviceMtus.remove(device)
+        messageAssemblers.values.forEach { it.remove(device) }
+        preparedWrites.remove(device)
+        longReads.remove(device)
+    }
+
+    /**
+     * @return The MTU negotiated by a connected device (23 if it has not negotiated one or is not connected)
+     */
+    fun getMtu(deviceAddress: String): Int{
+        val device = connectedSnapshot.firstOrNull { it.address.equals(deviceAddress, true) } ?: return MessageFraming.DEFAULT_MTU
+        return deviceMtus[device] ?: MessageFraming.DEFAULT_MTU
+    }
+
+    /**
+     * Use a characteristic as a framed message channel (or stop using it as one). Writes to the characteristic are
+     * reassembled into messages (separately for each central) and given to the delegate's onMessageReceived
+     * (BLEMessageDelegate). They do not change the characteristic's value and are not reported with onCharacteristicRead.
+     * The central must use the same characteristic as a message channel.
+     * @param characteristic The characteristic's UUID
+     * @param enable Whether or not to use the characteristic as a message channel
+     */
+    fun enableMessages(characteristic: String, enable: Boolean = true){
+        val uuid = parseUuid(characteristic) ?: return
+        if(enable)
+            messageAssemblers.putIfAbsent(uuid, ConcurrentHashMap())
+        else
+            messageAssemblers.remove(uuid)
+    }
+    /**
+     * Notify every connected device of a message of any size (up to maxMessageSize). The message is split into fragments
+     * that fit the smallest MTU of the connected devices, which are notified in order. The delegate's onMessageSent
+     * (BLEMessageDelegate) is called once every fragment has been sent, the fragments are not reported with onNotificationSent.
+     * @param characteristic The characteristic to notify
+     * @param message The message
+     * @return Were the fragments queued (false if the characteristic does not exist, the message is too large, or no
+     *          devices are connected)
+     */
+    fun notifyMessage(characteristic: String, message: ByteArray): Boolean{
+        return notifyMessage(characteristicObjects.handleOf(characteristic), message)
+    }
+    /**
+     * Notify every connected device of a message of any size (up to maxMessageSize). See notifyMessage(String, ByteArray).
+     * @param handle The handle of the characteristic to notify (from getCharacteristicHandle)
+     * @param message The message
+     */
+    fun notifyMessage(handle: Int, message: ByteArray): Boolean{
+        val entry = characteristicObjects.entryByHandle(handle) ?: return false
+        val devices = connectedSnapshot
+        if(message.size > maxMessageSize || devices.isEmpty() || !isRunning)
+            return false
+        var mtu = Int.MAX_VALUE
+        devices.forEach { mtu = Math.min(mtu, deviceMtus[it] ?: MessageFraming.DEFAULT_MTU) }
+        val fragments = MessageFraming.fragment(message, MessageFraming.fragmentSize(mtu))
+        val outgoing = OutgoingMessage(entry.name, fragments.size)
+        val sets = ArrayList<NotificationSet>(fragments.size)
+        for(fragment in fragments){
+            val set = NotificationSet(entry.obj, devices, fragment)
+            set.message = outgoing
+            sets.add(set)
+        }
+        notificationCoordinator.queueNotifications(sets)
+        return true
+    }
+
+    /**
+     * Record a message fragment finishing and tell the delegate when it was the last one
+     */
+    private fun handleMessageFragmentDone(message: OutgoingMessage, success: Boolean){
+        if(!message.fragmentDone(success))
+            return
+        val messageDelegate = messageDelegate ?: return
+        post {
+            messageDelegate.onMessageSent(message.name, !message.failed)
+        }
+    }
+
+    /**
+     * Add a fragment written by a central to its message and tell the delegate if the message is complete
+     */
+    private fun handleMessageFragment(entry: GattEntry<GattCharacteristic>, assemblers: ConcurrentHashMap<RemoteDevice, MessageAssembler>,
+                                      device: RemoteDevice, fragment: ByteArray){
+        val assembler = assemblers.getOrPut(device) { MessageAssembler(maxMessageSize) }
+        // A central's writes arrive one at a time (it waits for each response)
+        val message = synchronized(assembler) { assembler.onFragment(fragment) } ?: return
+        val messageDelegate = messageDelegate ?: return
+        post {
+            messageDelegate.onMessageReceived(entry.name, device.address, message)
+        }
+    }
+
+    /**
+     * Apply a central's write to a characteristic (a message fragment if the characteristic is a message channel)
+     */
+    private fun applyCharacteristicWrite(entry: GattEntry<GattCharacteristic>, device: RemoteDevice?, value: ByteArray?){
+        val assemblers = messageAssemblers[entry.obj.uuid]
+        if(assemblers != null && device != null){
+            if(value != null)
+                handleMessageFragment(entry, assemblers, device, value)
+        }else{
+            handleCharacteristicWrite(entry, device, value)
+        }
+    }
+
+    /**
+     * Set a descriptor's value from a central's write and tell the delegate
+     */
+    private fun handleDescriptorWrite(desc: GattDescriptor, device: RemoteDevice?, value: ByteArray?){
+        val name = nameOf(desc)
+        desc.value = value
+        val written = value ?: ByteArray(0)
+        if(bufferDelegate != null){
+            val buffer = bufferPool.acquire(written)
+            post {
+                bufferDelegate.onDescriptorValue(name, device!!.address, true, buffer)
+            }
+        }else{
+            val d = Arrays.copyOf(written, written.size)
+            post {
+                delegate.onDescriptorRead(name, device!!.address, true, d)
+            }
         }
-        notificationCoordinator.queueNotifications(NotificationSet(characteristic, devices.toTypedArray(), d))
     }
+
+    /**
+     * Add a chunk of a prepared write to the central's queue
+     * @return The status to respond with
+     */
+    private fun prepareWrite(device: RemoteDevice?, attribute: Any, offset: Int, value: ByteArray?): Int{
+        if(device == null)
+            return GattStatus.Failure
+        val queue = preparedWrites.getOrPut(device) { PreparedWriteQueue(maxPreparedWriteSize) }
+        return queue.add(attribute, offset, value ?: ByteArray(0))
+    }
+
+    /**
+     * @return The most bytes of a value that fit in one read response to a device (MTU - 1)
+     */
+    private fun readLength(device: RemoteDevice?): Int{
+        val mtu = (if(device == null) null else deviceMtus[device]) ?: MessageFraming.DEFAULT_MTU
+        return mtu - 1
+    }
+
     /**
-     * Build advertise settings based on options
+     * Commit (or cancel) a central's prepared writes. Every attribute is checked before any value is changed so a
+     * transaction is applied completely or not at all.
+     * @return The status to respond with
      */
-    private fun buildAdvertiseSettings(): AdvertiseSettings{
-        return AdvertiseSettings.Builder().setAdvertiseMode(advertiseMode).setTxPowerLevel(advertiseTxPower).setConnectable(true).setTimeout(0).build()
+    private fun executeWrite(device: RemoteDevice?, execute: Boolean): Int{
+        val queue = (if(device == null) null else preparedWrites[device]) ?: return GattStatus.Success
+        if(!execute){
+            queue.clear()
+            return GattStatus.Success
+        }
+        val values = queue.execute()
+        for(attribute in values.keys){
+            val exists = when(attribute){
+                is GattCharacteristic -> characteristicObjects.entry(attribute.uuid)?.obj === attribute
+                is GattDescriptor -> getDescriptor(attribute.uuid) === attribute
+                else -> false
+            }
+            if(!exists)
+                return GattStatus.Failure
+        }
+        values.forEach { (attribute, value) ->
+            if(attribute is GattCharacteristic)
+                applyCharacteristicWrite(characteristicObjects.entry(attribute.uuid)!!, device, value)
+            else
+                handleDescriptorWrite(attribute as GattDescriptor, device, value)
+        }
+        return GattStatus.Success
     }
+
     /**
-     * Build advertise data based on advertise services
+     * Set a characteristic's value from a central's write, tell the delegate and notify the other devices
      */
-    private fun buildAdvertiseData(): AdvertiseData{
-        val data = AdvertiseData.Builder()
-        data.setIncludeDeviceName(advertiseDeviceName)
+    private fun handleCharacteristicWrite(entry: GattEntry<GattCharacteristic>, device: RemoteDevice?, value: ByteArray?){
+        val char = entry.obj
+        val name = entry.name
+        val written = value ?: ByteArray(0)
+        if(bufferDelegate != null){
+            var buffer: PooledBuffer? = null
+            synchronized(char) {
+                char.value = value
+                buffer = bufferPool.acquire(written)
+            }
+            post {
+                bufferDelegate.onCharacteristicValue(name, device!!.address, true, buffer)
+            }
+        }else{
+            var d: ByteArray? = null
+            synchronized(char) {
+                char.value = value
+                d = Arrays.copyOf(written, written.size)
+            }
 
-        advertiseServices.asSequence().forEach {
-            data.addServiceUuid(ParcelUuid(UUID.fromString(it)))
+            post {
+                delegate.onCharacteristicRead(name, device!!.address,true, d)
+            }
         }
-        return data.build()
+        notifyDevices(char, device)
+    }
+    /**
+     * The advertising options (advertiseMode, advertiseTxPower, advertiseDeviceName and advertiseServices)
+     */
+    private fun advertiseOptions(): AdvertiseOptions{
+        return AdvertiseOptions(advertiseMode, advertiseTxPower, advertiseDeviceName, advertiseServices.map { UUID.fromString(it) })
     }
     //endregion
 
     //region Characteristics and Descriptors
+    /**
+     * Get a handle for a characteristic. Methods taking a handle skip parsing the characteristic's UUID on every call.
+     * Handles are valid until clearGatt is called. An operation on a handle that is no longer valid fails and is reported with the
+     * characteristic's name (or "HANDLE:" followed by the handle if the name is not known).
+     * @param characteristic The characteristic
+     * @return The handle or -1 if the server does not have the characteristic
+     */
+    fun getCharacteristicHandle(characteristic: String): Int{
+        return characteristicObjects.handleOf(characteristic)
+    }
+    /**
+     * Get a handle for a descriptor. Methods taking a handle skip parsing the descriptor's UUID on every call.
+     * Handles are valid until clearGatt is called. An operation on a handle that is no longer valid fails and is reported with the
+     * descriptor's name (or "HANDLE:" followed by the handle if the name is not known).
+     * @param descriptor The descriptor
+     * @return The handle or -1 if the server does not have the descriptor
+     */
+    fun getDescriptorHandle(descriptor: String): Int{
+        return descriptorObjects.handleOf(descriptor)
+    }
+
     /**
      * Write a value to a characteristic
      * @param characteristic The characteristic to write
@@ -377,25 +768,112 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param notify Whether or not to notify subscribed devices
      */
     fun writeCharacteristic(characteristic: String, data: ByteArray?, notify: Boolean = true){
+        val handle = characteristicObjects.handleOf(characteristic)
+        if(handle != -1){
+            writeCharacteristic(handle, data, notify)
+        }else{
+            postCharacteristicWrite(characteristic.toUpperCase(), false, data)
+        }
+    }
+    /**
+     * Write a value to a characteristic
+     * @param handle The handle of the characteristic to write (from getCharacteristicHandle)
+     * @param data The value to write (as bytes)
+     * @param notify Whether or not to notify subscribed devices
+     */
+    fun writeCharacteristic(handle: Int, data: ByteArray?, notify: Boolean = true){
         var success = false
-        val char = getCharacteristic(UUID.fromString(characteristic))
+        val entry = characteristicObjects.entryByHandle(handle)
+        val char = entry?.obj
         if(char != null){
-            // Synchronized b/c notification may temporarily lock to send a custom value
+            // Synchronized so a notification's copy of the value is not split by the write
             synchronized(char) {
-                if (char.setValue(data)) {
-                    success = true
-                }
+                char.value = data
+                success = true
             }
 
             if(success && notify){
                 notifyDevices(char, null)
             }
         }
-        mainThread.post {
+        postCharacteristicWrite(entry?.name ?: characteristicObjects.nameOf(handle), success, data)
+    }
+    /**
+     * Write values to several characteristics at once. Notifications for all of them are queued in one step. If the delegate
+     * implements BLEBatchDelegate the batch is reported with one onCharacteristicsWrite call and one onNotificationsSent call.
+     * @param values The values to write (as bytes) by characteristic
+     * @param notify Whether or not to notify subscribed devices
+     */
+    fun writeCharacteristics(values: Map<String, ByteArray?>, notify: Boolean = true){
+        val batchDelegate = delegate as? BLEBatchDelegate
+        val names = arrayOfNulls<String>(values.size)
+        val written = arrayOfNulls<ByteArray>(values.size)
+        val results = BooleanArray(values.size)
+        val sets = ArrayList<NotificationSet>(values.size)
+        // Every set in the batch notifies the same devices
+        val devices = if(notify) connectedSnapshot else arrayOf()
+        var success = true
+        var i = 0
+        for((characteristic, data) in values){
+            val uuid = parseUuid(characteristic)
+            val entry = if(uuid == null) null else characteristicObjects.entry(uuid)
+            names[i] = entry?.name ?: characteristic.toUpperCase()
+            written[i] = if(data == null) null else Arrays.copyOf(data, data.size)
+            var ok = false
+            if(entry != null){
+                val char = entry.obj
+                var d: ByteArray? = null
+                // Synchronized so a notification's copy of the value is not split by the write
+                synchronized(char) {
+                    char.value = data
+                    ok = true
+                    if(notify)
+                        d = if(data == null) ByteArray(0) else Arrays.copyOf(data, data.size)
+                }
+                if(ok && notify)
+                    sets.add(NotificationSet(char, devices, d))
+            }
+            results[i] = ok
+            success = success && ok
+            i++
+        }
+        val characteristics = Array(names.size) { names[it]!! }
+
+        post {
+            if(batchDelegate != null){
+                batchDelegate.onCharacteristicsWrite(characteristics, success, written)
+            }else{
+                for(j in characteristics.indices){
+                    delegate.onCharacteristicWrite(characteristics[j], results[j], written[j])
+                }
+            }
+            if(readInternalWrites){
+                for(j in characteristics.indices){
+                    delegate.onCharacteristicRead(characteristics[j], UNKNOWN_WRITING_DEVICE_ADDRESS, results[j], written[j])
+                }
+            }
+        }
+
+        if(notify){
+            if(batchDelegate != null){
+                val batch = NotificationBatch(Array(sets.size) { nameOf(sets[it].characteristic) })
+                if(sets.isEmpty()){
+                    post {
+                        batchDelegate.onNotificationsSent(batch.characteristics, false)
+                    }
+                    return
+                }
+                sets.forEach { it.batch = batch }
+            }
+            notificationCoordinator.queueNotifications(sets)
+        }
+    }
+    private fun postCharacteristicWrite(characteristic: String, success: Boolean, data: ByteArray?){
+        post {
             val d = if(data == null) null else Arrays.copyOf(data, data.size)
-            delegate.onCharacteristicWrite(characteristic.toUpperCase(), success, d)
+            delegate.onCharacteristicWrite(characteristic, success, d)
             if(readInternalWrites){
-                delegate.onCharacteristicRead(characteristic.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, success, d)
+                delegate.onCharacteristicRead(characteristic, UNKNOWN_WRITING_DEVICE_ADDRESS, success, d)
             }
         }
     }
@@ -404,20 +882,29 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param characteristic The characteristic to read
      */
     fun readCharacteristic(characteristic: String){
-        val char = getCharacteristic(UUID.fromString(characteristic))
-        if(char != null){
-            // Synchronized b/c notification may temporarily lock to send a custom value
-            var d: ByteArray? = null
-            synchronized(char) {
-                d = Arrays.copyOf(char.value, char.value.size)
+        val handle = characteristicObjects.handleOf(characteristic)
+        if(handle != -1){
+            readCharacteristic(handle)
+        }else{
+            post {
+                delegate.onCharacteristicRead(characteristic.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
             }
-
-            mainThread.post {
-                delegate.onCharacteristicRead(characteristic.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
+        }
+    }
+    /**
+     * Read a value from a characteristic
+     * @param handle The handle of the characteristic to read (from getCharacteristicHandle)
+     */
+    fun readCharacteristic(handle: Int){
+        val entry = characteristicObjects.entryByHandle(handle)
+        if(entry != null){
+            val d = copyValue(entry.obj)
+            post {
+                delegate.onCharacteristicRead(entry.name, UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
             }
         }else{
-            mainThread.post {
-                delegate.onCharacteristicRead(characteristic.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
+            post {
+                delegate.onCharacteristicRead(characteristicObjects.nameOf(handle), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
             }
         }
     }
@@ -427,18 +914,34 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param data The value to write (as bytes)
      */
     fun writeDescriptor(descriptor: String, data: ByteArray?){
+        val handle = descriptorObjects.handleOf(descriptor)
+        if(handle != -1){
+            writeDescriptor(handle, data)
+        }else{
+            postDescriptorWrite(descriptor.toUpperCase(), false, data)
+        }
+    }
+    /**
+     * Write a value to a descriptor
+     * @param handle The handle of the descriptor to write (from getDescriptorHandle)
+     * @param data The value to write (as bytes)
+     */
+    fun writeDescriptor(handle: Int, data: ByteArray?){
         var success = false
-        val desc = getDescriptor(UUID.fromString(descriptor))
+        val entry = descriptorObjects.entryByHandle(handle)
+        val desc = entry?.obj
         if(desc != null){
-            if(desc.setValue(data)){
-                success = true
-            }
+            desc.value = data
+            success = true
         }
-        mainThread.post {
+        postDescriptorWrite(entry?.name ?: descriptorObjects.nameOf(handle), success, data)
+    }
+    private fun postDescriptorWrite(descriptor: String, success: Boolean, data: ByteArray?){
+        post {
             val d = if(data == null) null else Arrays.copyOf(data, data.size)
-            delegate.onDescriptorWrite(descriptor.toUpperCase(), success, d)
+            delegate.onDescriptorWrite(descriptor, success, d)
             if(readInternalWrites){
-                delegate.onDescriptorRead(descriptor.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
+                delegate.onDescriptorRead(descriptor, UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
             }
         }
     }
@@ -447,45 +950,93 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @param descriptor The descriptor to read
      */
     fun readDescriptor(descriptor: String){
-        val desc = getDescriptor(UUID.fromString(descriptor))
-        if(desc != null){
-            val d = Arrays.copyOf(desc.value, desc.value.size)
-            mainThread.post {
-                delegate.onDescriptorRead(descriptor.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
-            }
+        val handle = descriptorObjects.handleOf(descriptor)
+        if(handle != -1){
+            readDescriptor(handle)
         }else{
-            mainThread.post {
+            post {
                 delegate.onDescriptorRead(descriptor.toUpperCase(), UNKNOWN_WRITING_DEVICE_ADDRESS,false, null)
             }
         }
     }
+    /**
+     * Read a value from a descriptor
+     * @param handle The handle of the descriptor to read (from getDescriptorHandle)
+     */
+    fun readDescriptor(handle: Int){
+        val entry = descriptorObjects.entryByHandle(handle)
+        if(entry != null){
+            val value = entry.obj.value ?: ByteArray(0)
+            val d = Arrays.copyOf(value, value.size)
+            post {
+                delegate.onDescriptorRead(entry.name, UNKNOWN_WRITING_DEVICE_ADDRESS, true, d)
+            }
+        }else{
+            post {
+                delegate.onDescriptorRead(descriptorObjects.nameOf(handle), UNKNOWN_WRITING_DEVICE_ADDRESS, false, null)
+            }
+        }
+    }
 
     internal fun handleNotificationSetSent(notificationSet: NotificationSet){
-        mainThread.post{
-            delegate.onNotificationSent(notificationSet.characteristic.uuid.toString().toUpperCase(), notificationSet.errorCount == 0)
+        val message = notificationSet.message
+        if(message != null){
+            handleMessageFragmentDone(message, notificationSet.errorCount == 0)
+            return
+        }
+        val batch = notificationSet.batch
+        if(batch != null){
+            // Only the last set of a batch is reported
+            if(notificationSet.errorCount != 0)
+                batch.failed = true
+            if(batch.remaining.decrementAndGet() == 0){
+                post {
+                    (delegate as BLEBatchDelegate).onNotificationsSent(batch.characteristics, !batch.failed)
+                }
+            }
+            return
+        }
+        post {
+            delegate.onNotificationSent(nameOf(notificationSet.characteristic), notificationSet.errorCount == 0)
         }
     }
 
+    /**
+     * @return The canonical UUID string of a characteristic on the server
+     */
+    private fun nameOf(characteristic: Any): String{
+        return nameOf(characteristic as GattCharacteristic)
+    }
+    private fun nameOf(characteristic: GattCharacteristic): String{
+        return characteristicObjects.name(characteristic.uuid) ?: characteristic.uuid.toString().toUpperCase()
+    }
+    /**
+     * @return The canonical UUID string of a descriptor on the server
+     */
+    private fun nameOf(descriptor: GattDescriptor): String{
+        return descriptorObjects.name(descriptor.uuid) ?: descriptor.uuid.toString().toUpperCase()
+    }
+
     /**
      * Get a descriptor object from a UUID
-     * @return The BluetoothGattDescriptor or null
+     * @return The GattDescriptor or null
      */
-    private fun getDescriptor(uuid: UUID): BluetoothGattDescriptor?{
-        return descriptorObjects.asSequence().firstOrNull { it.uuid == uuid }
+    private fun getDescriptor(uuid: UUID): GattDescriptor?{
+        return descriptorObjects[uuid]
     }
     /**
      * Get a characteristic object from a UUID
-     * @return The BluetoothGattCharacteristic or null
+     * @return The GattCharacteristic or null
      */
-    private fun getCharacteristic(uuid: UUID): BluetoothGattCharacteristic?{
-        return characteristicObjects.asSequence().firstOrNull { it.uuid == uuid }
+    private fun getCharacteristic(uuid: UUID): GattCharacteristic?{
+        return characteristicObjects[uuid]
     }
     /**
      * Get a service object from a UUID
-     * @return The BluetoothGattService or null
+     * @return The GattService or null
      */
-    private fun getService(uuid: UUID): BluetoothGattService?{
-        return serviceObjects.asSequence().firstOrNull { it.uuid == uuid }
+    private fun getService(uuid: UUID): GattService?{
+        return serviceObjects[uuid]
     }
 
     /**
@@ -494,7 +1045,7 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return Whether or not the server has the service
      */
     fun hasService(service: String): Boolean{
-        return services.contains(service.toUpperCase())
+        return serviceObjects.contains(service)
     }
     /**
      * Check if the server has a characteristic
@@ -502,7 +1053,7 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return Whether or not the server has the characteristic
      */
     fun hasCharacteristic(characteristic: String): Boolean{
-        return characteristics.contains(characteristic.toUpperCase());
+        return characteristicObjects.contains(characteristic);
     }
     /**
      * Check if the server has a descriptor
@@ -510,137 +1061,143 @@ class BLEServer (val context: Context, val delegate: BLEDelegate){
      * @return Whether or not the server has the descriptor
      */
     fun hasDescriptor(descriptor: String): Boolean{
-        return descriptors.contains(descriptor.toUpperCase());
+        return descriptorObjects.contains(descriptor);
     }
 
     //endregion
 
-    //region BluetoothGattServerCallback
-    private val gattServerCallback = object: BluetoothGattServerCallback(){
-        override fun onNotificationSent(device: BluetoothDevice?, status: Int) {
-            super.onNotificationSent(device, status)
+    /**
+     * Respond to a read/write request on the response executor (or inline if respondInline is set)
+     */
+    private fun sendResponse(device: RemoteDevice, requestId: Int, status: Int, offset: Int, value: ByteArray?){
+        if(respondInline){
+            gattServer?.sendResponse(device, requestId, status, offset, value)
+            return
+        }
+        pendingResponseCount.incrementAndGet()
+        try{
+            responseExecutor.execute {
+                try{
+                    gattServer?.sendResponse(device, requestId, status, offset, value)
+                }finally {
+                    pendingResponseCount.decrementAndGet()
+                }
+            }
+        }catch (e: RejectedExecutionException){
+            // Never drop a response. The central would wait for it until the connection times out.
+            pendingResponseCount.decrementAndGet()
+            gattServer?.sendResponse(device, requestId, status, offset, value)
+        }
+    }
+
+    //region GattServerListener
+    private val gattServerListener = object: GattServerListener {
+        override fun onNotificationSent(device: RemoteDevice, status: Int) {
             notificationCoordinator.onNotificationSent(device, status)
         }
-        override fun onDescriptorReadRequest(device: BluetoothDevice?, requestId: Int, offset: Int, descriptor: BluetoothGattDescriptor?) {
-            super.onDescriptorReadRequest(device, requestId, offset, descriptor)
-            var status = BluetoothGatt.GATT_FAILURE
+        override fun onMtuChanged(device: RemoteDevice, mtu: Int) {
+            deviceMtus[device] = mtu
+            if(mtuDelegate != null){
+                post {
+                    mtuDelegate.onMtuChanged(device.address, mtu)
+                }
+            }
+        }
+        override fun onDescriptorReadRequest(device: RemoteDevice, requestId: Int, offset: Int, descriptor: UUID) {
+            var status = GattStatus.Failure
             var value: ByteArray? = null
-            if(descriptor != null){
-                val desc = getDescriptor(descriptor.uuid)
-                if(desc != null){
-                    status = BluetoothGatt.GATT_SUCCESS
-                    value = desc.value
+            val desc = getDescriptor(descriptor)
+            if(desc != null){
+                value = longReads.read(device, desc, offset, readLength(device)) {
+                    val d = desc.value ?: ByteArray(0)
+                    Arrays.copyOf(d, d.size)
                 }
+                status = if(value == null) GattStatus.InvalidOffset else GattStatus.Success
             }
-            thread(start = true){
-                gattServer?.sendResponse(device, requestId, status, offset, value)
-            }
-        }
-        override fun onDescriptorWriteRequest(device: BluetoothDevice?, requestId: Int, descriptor: BluetoothGattDescriptor?, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?) {
-            super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value)
-            var status = BluetoothGatt.GATT_FAILURE
-            if(descriptor != null){
-                val desc = getDescriptor(descriptor.uuid)
-                if(desc != null){
-                    status = BluetoothGatt.GATT_SUCCESS
-                    desc.value = value
-                    val d = Arrays.copyOf(desc.value, desc.value.size)
-                    mainThread.post {
-                        delegate.onDescriptorRead(desc.uuid.toString().toUpperCase(), device!!.address.toUpperCase(), true, d)
-                    }
+            sendResponse(device, requestId, status, offset, value)
+        }
+        override fun onDescriptorWriteRequest(device: RemoteDevice, requestId: Int, descriptor: UUID, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?) {
+            var status = GattStatus.Failure
+            val desc = getDescriptor(descriptor)
+            if(desc != null){
+                if(preparedWrite){
+                    // Applied when the central executes the write
+                    status = prepareWrite(device, desc, offset, value)
+                }else{
+                    status = GattStatus.Success
+                    handleDescriptorWrite(desc, device, value)
                 }
             }
             if(responseNeeded){
-                thread(start = true){
-                    gattServer?.sendResponse(device, requestId, status, offset, if(status == BluetoothGatt.GATT_SUCCESS) value else null)
-                }
+                sendResponse(device, requestId, status, offset, if(status == GattStatus.Success) value else null)
             }
         }
-        override fun onCharacteristicWriteRequest(device: BluetoothDevice?, requestId: Int, characteristic: BluetoothGattCharacteristic?, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?) {
-            super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value)
-            var status = BluetoothGatt.GATT_FAILURE
-            if(characteristic != null){
-                val char = getCharacteristic(characteristic.uuid)
-                if(char != null){
-                    status = BluetoothGatt.GATT_SUCCESS
-                    var d: ByteArray? = null
-                    synchronized(char) {
-                        char.value = value
-                        d = Arrays.copyOf(char.value, char.value.size)
-                    }
-
-                    mainThread.post {
-                        delegate.onCharacteristicRead(char.uuid.toString().toUpperCase(), device!!.address.toUpperCase(),true, d)
-                    }
-                    notifyDevices(char, device)
+        override fun onCharacteristicWriteRequest(device: RemoteDevice, requestId: Int, characteristic: UUID, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?) {
+            var status = GattStatus.Failure
+            val entry = characteristicObjects.entry(characteristic)
+            if(entry != null){
+                entry.bytesIn.addAndGet(value?.size?.toLong() ?: 0L)
+                if(preparedWrite){
+                    // Applied when the central executes the write
+                    status = prepareWrite(device, entry.obj, offset, value)
+                }else{
+                    status = GattStatus.Success
+                    applyCharacteristicWrite(entry, device, value)
                 }
             }
             if(responseNeeded){
-                thread(start = true){
-                    gattServer?.sendResponse(device, requestId, status, offset, if(status == BluetoothGatt.GATT_SUCCESS) value else null)
-                }
+                sendResponse(device, requestId, status, offset, if(status == GattStatus.Success) value else null)
             }
         }
-        override fun onCharacteristicReadRequest(device: BluetoothDevice?, requestId: Int, offset: Int, characteristic: BluetoothGattCharacteristic?) {
-            super.onCharacteristicReadRequest(device, requestId, offset, characteristic)
-            var status = BluetoothGatt.GATT_FAILURE
+        override fun onExecuteWrite(device: RemoteDevice, requestId: Int, execute: Boolean) {
+            sendResponse(device, requestId, executeWrite(device, execute), 0, null)
+        }
+        override fun onCharacteristicReadRequest(device: RemoteDevice, requestId: Int, offset: Int, characteristic: UUID) {
+            var status = GattStatus.Failure
             var value: ByteArray? = null
-            if(characteristic != null){
-                val char = getCharacteristic(characteristic.uuid)
-                if(char != null){
-                    status = BluetoothGatt.GATT_SUCCESS
-                    synchronized(char) {
-                        value = Arrays.copyOf(char.value, char.value.size)
-                    }
-
+            val entry = characteristicObjects.entry(characteristic)
+            if(entry != null){
+                val char = entry.obj
+                // Only the requested part is copied for continuations (offset > 0) of a long read
+                value = longReads.read(device, char, offset, readLength(device)) {
+                    copyValue(char)
                 }
+                status = if(value == null) GattStatus.InvalidOffset else GattStatus.Success
+                entry.bytesOut.addAndGet(value?.size?.toLong() ?: 0L)
             }
-            thread(start = true){
-                gattServer?.sendResponse(device, requestId, status, offset, value)
-            }
+            sendResponse(device, requestId, status, offset, value)
         }
-        override fun onConnectionStateChange(device: BluetoothDevice?, status: Int, newState: Int) {
-            super.onConnectionStateChange(device, status, newState)
-            if(device != null){
-                if(status == BluetoothGatt.GATT_SUCCESS){
-                    if(!connectedDevices.contains(device) && newState == BluetoothGatt.STATE_CONNECTED){
-                        connectedDevices.add(device)
-                        mainThread.post {
-                            delegate.onDeviceConnected(device.address.toUpperCase(), device.name)
-                        }
-                    }
-                    if(connectedDevices.contains(device) && newState == BluetoothGatt.STATE_DISCONNECTED){
-                        mainThread.post {
-                            delegate.onDeviceDisconnected(device.address.toUpperCase(), device.name)
-                        }
-                        connectedDevices.remove(device)
+        override fun onConnectionStateChange(device: RemoteDevice, status: Int, connected: Boolean) {
+            if(status == GattStatus.Success){
+                if(!connectedDevices.contains(device) && connected){
+                    addConnectedDevice(device)
+                    post {
+                        delegate.onDeviceConnected(device.address, device.name)
                     }
-                }else if(connectedDevices.contains(device)){
-                    mainThread.post{
-                        delegate.onDeviceDisconnected(device.address.toUpperCase(), device.name)
+                }
+                if(connectedDevices.contains(device) && !connected){
+                    post {
+                        delegate.onDeviceDisconnected(device.address, device.name)
                     }
-                    connectedDevices.remove(device)
+                    removeConnectedDevice(device)
+                    notificationCoordinator.deviceDisconnected(device)
+                }
+            }else if(connectedDevices.contains(device)){
+                post {
+                    delegate.onDeviceDisconnected(device.address, device.name)
                 }
+                removeConnectedDevice(device)
+                notificationCoordinator.deviceDisconnected(device)
             }
         }
     }
     //endregion
 
-    //region AdvertiseCallback
-    private val advertiseCallback = object: AdvertiseCallback(){
-        override fun onStartSuccess(settingsInEffect: AdvertiseSettings?) {
-            super.onStartSuccess(settingsInEffect)
-            mainThread.post {
-                delegate.onAdvertise(AdvertiseError.None)
-            }
-        }
-
-        override fun onStartFailure(errorCode: Int) {
-            super.onStartFailure(errorCode)
-            mainThread.post {
-                delegate.onAdvertise(errorCode)
-            }
+    //region Advertise callback
+    private val advertiseCallback: (Int) -> Unit = { error ->
+        post {
+            delegate.onAdvertise(error)
         }
     }
     //endregion
-}
\ No newline at end of file
+}
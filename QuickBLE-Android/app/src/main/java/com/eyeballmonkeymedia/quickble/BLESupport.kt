@@ -4,28 +4,9 @@ import android.bluetooth.BluetoothAdapter
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
-import android.os.Handler
+import android.content.IntentFilter
+import java.util.concurrent.CopyOnWriteArrayList
 
-interface BtError {
-    companion object {
-        val None = 0
-        val NoBluetooth = 1
-        val NoBLE = 2
-        val Disabled = 3
-        val NoServer = 4
-        val AlreadyRunning = 5
-    }
-}
-interface AdvertiseError {
-    companion object {
-        val None = 0
-        val DataTooLarge = 1
-        val TooManyAdvertisers = 2
-        val AlreadyStarted = 3
-        val InternalError = 4
-        val FeatureUnsupported = 5
-    }
-}
 interface DescPermissions {
     companion object {
         val Read = 1
@@ -79,4 +60,98 @@ interface ScanMode{
         val LowLatency = 2
         val NotApplicable = -255
     }
-}
\ No newline at end of file
+}
+interface CallbackDelivery{
+    companion object {
+        val Immediate = 0 // Each delegate call is posted on its own
+        val PerFrame = 1 // Delegate calls are queued and delivered together once per frame (Choreographer)
+        val Interval = 2 // Delegate calls are queued and delivered together every callbackInterval milliseconds
+        val Direct = 3 // Delegate calls are made right away on the thread the event arrived on (binder thread)
+    }
+}
+/**
+ * Connection performance profiles for BLEClient (values match android's CONNECTION_PRIORITY constants)
+ */
+interface ConnectionProfile{
+    companion object {
+        val Balanced = 0 // Default connection interval, 1M PHY
+        val Throughput = 1 // Shortest connection interval, 2M PHY (Android 8.0+ when supported) and the largest MTU
+        val LowPower = 2 // Longest connection interval, 1M PHY
+        val Auto = 3 // Throughput while operations are queued (autoThroughputDepth), Balanced once the queue has been idle (autoIdleMillis)
+    }
+}
+
+/**
+ * Process-wide bluetooth power state monitor shared by all clients and servers. A single BroadcastReceiver for
+ * BluetoothAdapter.ACTION_STATE_CHANGED is registered while at least one listener is registered. Clients and servers
+ * unregister in their release method, so the receiver is removed when the last one is released.
+ */
+internal object BluetoothPowerMonitor {
+    private val listeners = CopyOnWriteArrayList<(Boolean) -> Unit>()
+    private var context: Context? = null
+
+    private val receiver = object: BroadcastReceiver(){
+        override fun onReceive(context: Context?, intent: Intent?) {
+            if(intent?.action != BluetoothAdapter.ACTION_STATE_CHANGED)
+                return
+            val state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR)
+            val enabled = when(state){
+                BluetoothAdapter.STATE_ON -> true
+                BluetoothAdapter.STATE_TURNING_OFF, BluetoothAdapter.STATE_OFF -> false
+                else -> return
+            }
+            listeners.forEach { it(enabled) }
+        }
+    }
+
+    /**
+     * Start receiving power state changes
+     * @param context Any context (the application context is used to register the receiver)
+     * @param listener Called with the new state (may be called more than once for the same state)
+     */
+    @Synchronized
+    fun register(context: Context, listener: (Boolean) -> Unit){
+        listeners.add(listener)
+        if(this.context == null){
+            val appContext = context.applicationContext ?: context
+            appContext.registerReceiver(receiver, IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED))
+            this.context = appContext
+        }
+    }
+
+    /**
+     * Stop receiving power state changes. The receiver is unregistered when the last listener is removed.
+     */
+    @Synchronized
+    fun unregister(listener: (Boolean) -> Unit){
+        if(listeners.remove(listener) && listeners.isEmpty()){
+            context?.unregisterReceiver(receiver)
+            context = null
+        }
+    }
+}
+
+/**
+ * Delivers snapshots of a client's/server's metrics to a listener on an event loop until stopped
+ */
+internal class MetricsReporter(private val loop: EventLoop, private val intervalMillis: Long, private val listener: BLEMetricsListener,
+                               private val snapshot: () -> BLEMetricsSnapshot): Runnable {
+    @Volatile
+    private var stopped = false
+
+    fun start(){
+        loop.postDelayed(this, intervalMillis)
+    }
+
+    fun stop(){
+        stopped = true
+        loop.removeCallbacks(this)
+    }
+
+    override fun run(){
+        if(stopped)
+            return
+        listener.onMetrics(snapshot())
+        loop.postDelayed(this, intervalMillis)
+    }
+}
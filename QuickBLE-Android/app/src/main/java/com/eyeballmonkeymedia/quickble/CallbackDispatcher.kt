@@ -0,0 +1,128 @@
+package com.mb3hel.quickble
+
+import android.os.Looper
+import android.view.Choreographer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Delivers a client's/server's delegate calls on its event loop (the main thread by default on android) or on its executor if
+ * one is set.
+ * With CallbackDelivery.Immediate every call is its own post, which is what the delegate has always seen. At high event rates
+ * (ex. 1 kHz of notifications) that is one looper message per event. PerFrame and Interval instead add calls to a lock free
+ * queue and deliver everything queued in a single drain, once per frame or once per interval. A drain only runs the calls that
+ * were queued when it started. Calls dispatched while it runs wait for the next drain, so a steady stream of events can not
+ * hold the event loop's thread. All calls go through one queue and are run in the order they were dispatched, so the order of
+ * events (per characteristic and overall) is kept.
+ * CallbackDelivery.Direct skips the thread hop and makes calls on the thread the event arrived on.
+ * Frames come from the Choreographer of a handler's looper (HandlerEventLoop). Other event loops drain every FRAME_MILLIS.
+ */
+internal class CallbackDispatcher(@Volatile var loop: EventLoop) {
+    /**
+     * Where delegate calls are run. Null runs them on the event loop. Should run tasks one at a time (in order).
+     * The event loop is still used to time PerFrame and Interval drains.
+     */
+    @Volatile
+    var executor: Executor? = null
+    /**
+     * A CallbackDelivery
+     */
+    @Volatile
+    var mode = CallbackDelivery.Immediate
+    /**
+     * Time between drains (CallbackDelivery.Interval)
+     */
+    @Volatile
+    var intervalMillis = 16L
+
+    private val events = ConcurrentLinkedQueue<Runnable>()
+    // Number of calls in events (ConcurrentLinkedQueue.size walks the whole queue)
+    private val queued = AtomicInteger()
+    private val drainScheduled = AtomicBoolean(false)
+
+    // Allocated once so scheduling a drain does not allocate
+    private val drainTask = Runnable { drain() }
+    // Already on the event loop's thread, so drain right away unless there is an executor (no second looper message)
+    private val loopDrainTask = Runnable { drainOnLoop() }
+    private val frameCallback = Choreographer.FrameCallback { drainOnLoop() }
+    private val postFrameTask = Runnable { Choreographer.getInstance().postFrameCallback(frameCallback) }
+
+    fun dispatch(event: Runnable){
+        // Calls still queued from a previous mode are delivered first
+        val mode = mode
+        if(mode == CallbackDelivery.Direct && events.isEmpty()){
+            event.run()
+            return
+        }
+        if(mode == CallbackDelivery.Immediate && events.isEmpty()){
+            run(event)
+            return
+        }
+        events.add(event)
+        queued.incrementAndGet()
+        if(drainScheduled.compareAndSet(false, true))
+            scheduleDrain()
+    }
+
+    private fun scheduleDrain(){
+        val loop = loop
+        when(mode){
+            CallbackDelivery.PerFrame -> {
+                if(loop !is HandlerEventLoop)
+                    loop.postDelayed(loopDrainTask, FRAME_MILLIS)
+                // The choreographer belongs to the handler's thread
+                else if(Looper.myLooper() == loop.handler.looper)
+                    Choreographer.getInstance().postFrameCallback(frameCallback)
+                else
+                    loop.post(postFrameTask)
+            }
+            CallbackDelivery.Interval -> loop.postDelayed(loopDrainTask, intervalMillis)
+            else -> run(drainTask)
+        }
+    }
+
+    /**
+     * Run a task on the executor (or post it to the event loop if there is no executor)
+     */
+    private fun run(task: Runnable){
+        val executor = executor
+        if(executor != null)
+            executor.execute(task)
+        else
+            loop.post(task)
+    }
+
+    /**
+     * Drain from the event loop's thread (frame callback or interval)
+     */
+    private fun drainOnLoop(){
+        val executor = executor
+        if(executor != null)
+            executor.execute(drainTask)
+        else
+            drain()
+    }
+
+    /**
+     * Run the calls queued when the drain starts. Only runs on the event loop's thread (or the executor).
+     */
+    private fun drain(){
+        // Calls dispatched from here on schedule the next drain, so they are left for it
+        drainScheduled.set(false)
+        var count = queued.get()
+        while(count-- > 0){
+            val event = events.poll() ?: return
+            queued.decrementAndGet()
+            event.run()
+        }
+    }
+
+    companion object {
+        /**
+         * Time between PerFrame drains on an event loop without a Choreographer (about 60 frames a second)
+         */
+        const val FRAME_MILLIS = 16L
+    }
+}
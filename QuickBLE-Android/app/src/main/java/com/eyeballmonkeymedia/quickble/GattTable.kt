@@ -0,0 +1,208 @@
+package com.mb3hel.quickble
+
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * An object in a GattTable
+ * @param handle The compact handle used to refer to the object without its UUID
+ * @param obj The GATT object
+ * @param name The canonical (uppercase) UUID string given to the delegate. Computed once so callbacks do not allocate strings.
+ */
+internal class GattEntry<T: Any>(val handle: Int, val obj: T, val name: String){
+    // Bytes received/sent (characteristics only, for BLEMetrics)
+    val bytesIn = AtomicLong()
+    val bytesOut = AtomicLong()
+}
+
+/**
+ * A UUID indexed table of GATT objects (services, characteristics, or descriptors). Lookups are hash based so they do not
+ * get slower as the server gets more characteristics. The GATT callbacks look objects up on every operation.
+ * If more than one object has the same UUID (ex. the client characteristic config descriptor) the first one added is kept,
+ * which matches the order objects are discovered or added in.
+ *
+ * Each object also gets an int handle. The low 16 bits are the object's index in the table and the high bits are the
+ * table's generation, which changes when the table is cleared so handles from a previous connection are rejected.
+ */
+internal class GattTable<T: Any> {
+    private val entries = ConcurrentHashMap<UUID, GattEntry<T>>()
+    // Entries in the order they were added (the order the server's services must be added in). Index is the handle's low bits.
+    private val ordered = CopyOnWriteArrayList<GattEntry<T>>()
+    @Volatile
+    private var generation = 0
+    // Names of the objects before the table was last cleared (index is the handle's low bits) and their generation, so an
+    // operation on a handle from the previous connection can still be reported by name
+    @Volatile
+    private var previousNames: Array<String> = emptyArray()
+    @Volatile
+    private var previousGeneration = -1
+
+    val size: Int
+        get() = entries.size
+
+    operator fun get(uuid: UUID): T? = entries[uuid]?.obj
+
+    fun contains(uuid: UUID): Boolean = entries.containsKey(uuid)
+
+    /**
+     * Check if the table contains an object
+     * @param uuid The UUID as a string (any case)
+     * @return Whether or not there is an object with the UUID (false if the string is not a valid UUID)
+     */
+    fun contains(uuid: String): Boolean{
+        val u = parseUuid(uuid) ?: return false
+        return entries.containsKey(u)
+    }
+
+    /**
+     * Get the handle of an object
+     * @return The handle or -1 if there is no object with the UUID
+     */
+    fun handleOf(uuid: UUID): Int{
+        return entries[uuid]?.handle ?: -1
+    }
+
+    /**
+     * Get the handle of an object
+     * @param uuid The UUID as a string (any case)
+     * @return The handle or -1 if there is no object with the UUID (or the string is not a valid UUID)
+     */
+    fun handleOf(uuid: String): Int{
+        val u = parseUuid(uuid) ?: return -1
+        return handleOf(u)
+    }
+
+    /**
+     * Get an object's entry (object, handle, and name)
+     * @return The entry or null if there is no object with the UUID
+     */
+    fun entry(uuid: UUID): GattEntry<T>?{
+        return entries[uuid]
+    }
+
+    /**
+     * Get the canonical (uppercase) UUID string of an object
+     * @return The name or null if there is no object with the UUID
+     */
+    fun name(uuid: UUID): String?{
+        return entries[uuid]?.name
+    }
+
+    /**
+     * Get an object from its handle
+     * @return The object or null if the handle is not valid (or is from before the table was cleared)
+     */
+    fun byHandle(handle: Int): T?{
+        return entryByHandle(handle)?.obj
+    }
+
+    /**
+     * Get an object's entry from its handle
+     * @return The entry or null if the handle is not valid (or is from before the table was cleared)
+     */
+    fun entryByHandle(handle: Int): GattEntry<T>?{
+        if(handle < 0 || (handle ushr 16) != generation)
+            return null
+        return try{
+            ordered[handle and 0xFFFF]
+        }catch (e: IndexOutOfBoundsException){
+            null
+        }
+    }
+
+    /**
+     * Get the name of the object a handle refers to. Handles from before the table was last cleared still resolve, so the
+     * failure of an operation on a stale handle can be reported with the object's name.
+     * @return The name or handleName(handle) if the handle is not one of this table's (or is older than the last clear)
+     */
+    fun nameOf(handle: Int): String{
+        if(handle >= 0){
+            val index = handle and 0xFFFF
+            val handleGeneration = handle ushr 16
+            if(handleGeneration == generation){
+                val entry = ordered.getOrNull(index)
+                if(entry != null)
+                    return entry.name
+            }else if(handleGeneration == previousGeneration){
+                val name = previousNames.getOrNull(index)
+                if(name != null)
+                    return name
+            }
+        }
+        return handleName(handle)
+    }
+
+    /**
+     * Add an object to the table
+     * @return Was the object added (false if an object with the same UUID is already in the table)
+     */
+    fun add(uuid: UUID, obj: T): Boolean{
+        synchronized(this){
+            if(entries.containsKey(uuid) || ordered.size > 0xFFFF)
+                return false
+            val entry = GattEntry((generation shl 16) or ordered.size, obj, uuid.toString().toUpperCase())
+            entries[uuid] = entry
+            ordered.add(entry)
+            return true
+        }
+    }
+
+    /**
+     * @return Bytes received by each object (by name)
+     */
+    fun bytesIn(): Map<String, Long>{
+        val bytes = LinkedHashMap<String, Long>()
+        ordered.forEach { bytes[it.name] = it.bytesIn.get() }
+        return bytes
+    }
+
+    /**
+     * @return Bytes sent by each object (by name)
+     */
+    fun bytesOut(): Map<String, Long>{
+        val bytes = LinkedHashMap<String, Long>()
+        ordered.forEach { bytes[it.name] = it.bytesOut.get() }
+        return bytes
+    }
+
+    /**
+     * @return The objects in the order they were added
+     */
+    fun values(): List<T> = ordered.map { it.obj }
+
+    fun clear(){
+        synchronized(this){
+            // Clearing an empty table again keeps the names of the last objects
+            if(ordered.isNotEmpty()){
+                previousNames = Array(ordered.size) { ordered[it].name }
+                previousGeneration = generation
+            }
+            entries.clear()
+            ordered.clear()
+            generation = (generation + 1) and 0x7FFF
+        }
+    }
+
+    companion object {
+        /**
+         * The name failures are reported with for a handle that does not refer to an object ("HANDLE:" followed by the handle)
+         */
+        fun handleName(handle: Int): String{
+            return "HANDLE:$handle"
+        }
+    }
+}
+
+/**
+ * Parse a UUID string
+ * @return The UUID or null if the string is not a valid UUID
+ */
+internal fun parseUuid(uuid: String): UUID?{
+    return try{
+        UUID.fromString(uuid)
+    }catch (e: IllegalArgumentException){
+        null
+    }
+}
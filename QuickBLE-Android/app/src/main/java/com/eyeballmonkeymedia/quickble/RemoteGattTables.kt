@@ -0,0 +1,71 @@
+package com.mb3hel.quickble
+
+import java.util.*
+
+internal val CLIENT_CONFIG_DESCRIPTOR: UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb") // Client characteristic config UUID
+internal val CLIENT_CONFIG_DESCRIPTOR_NAME = CLIENT_CONFIG_DESCRIPTOR.toString().toUpperCase()
+internal const val MTU_TIMEOUT = 1000L // Time to wait for onMtuChanged before discovering services anyway (ms)
+// Client config values (BluetoothGattDescriptor's are not constants, so are not set outside of android)
+internal val ENABLE_NOTIFICATION_VALUE = byteArrayOf(1, 0)
+internal val DISABLE_NOTIFICATION_VALUE = byteArrayOf(0, 0)
+
+/**
+ * Copy a value given to a BluetoothGattCallback. The object's value can change before the queue's event loop runs.
+ */
+internal fun copyOf(value: ByteArray?): ByteArray?{
+    return if(value == null) null else Arrays.copyOf(value, value.size)
+}
+
+/**
+ * The GATT tables of a connected server (BLEClient's connection or one of a BLEClientPool's) and the lists of names given to
+ * the app. The lists are the owner's (ex. BLEClient.services) and are kept in step with the tables.
+ */
+internal class RemoteGattTables(private val services: MutableList<String>, private val characteristics: MutableList<String>,
+                                private val descriptors: MutableList<String>) {
+    val serviceObjects = GattTable<GattService>()
+    val characteristicObjects = GattTable<GattCharacteristic>()
+    val descriptorObjects = GattTable<GattDescriptor>()
+
+    /**
+     * Add a discovered service (and it's included services, characteristics, and descriptors)
+     */
+    fun addService(service: GattService){
+        if(serviceObjects[service.uuid] !== service){
+            if(service.primary){
+                service.includedServices.asSequence().filter { serviceObjects[it.uuid] !== it }.forEach {
+                    addService(it)
+                }
+            }
+            service.characteristics.asSequence().filter { characteristicObjects[it.uuid] !== it }.forEach {
+                it.descriptors.asSequence().filter { d -> descriptorObjects[d.uuid] !== d }.forEach { d ->
+                    descriptorObjects.add(d.uuid, d)
+                    descriptors.add(descriptorObjects.name(d.uuid)!!)
+                }
+                characteristicObjects.add(it.uuid, it)
+                characteristics.add(characteristicObjects.name(it.uuid)!!)
+            }
+            serviceObjects.add(service.uuid, service)
+            services.add(serviceObjects.name(service.uuid)!!)
+        }
+    }
+
+    /**
+     * Name an operand for a failure (the object's name, or GattTable.handleName if the handle is not valid)
+     */
+    fun nameOf(operandType: OperandType, handle: Int): String{
+        return if(operandType == OperandType.Characteristic) characteristicObjects.nameOf(handle) else descriptorObjects.nameOf(handle)
+    }
+
+    /**
+     * Clear the tables and lists. New handles are given out after reconnecting (and the new connection's objects are used
+     * instead of the previous one's).
+     */
+    fun clear(){
+        services.clear()
+        characteristics.clear()
+        descriptors.clear()
+        serviceObjects.clear()
+        characteristicObjects.clear()
+        descriptorObjects.clear()
+    }
+}
@@ -0,0 +1,237 @@
+package com.mb3hel.quickble
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * A BLEClient against a BLEServer over a LoopbackRadio. Runs on a plain JVM, the android classes are never touched.
+ */
+class BLEClientServerTest {
+    /**
+     * Records delegate calls so tests can wait for them
+     */
+    class Events: BLEDelegate, BLEMessageDelegate {
+        class Event(val name: String, val args: List<Any?>)
+
+        private val events = LinkedBlockingQueue<Event>()
+
+        private fun add(name: String, vararg args: Any?){
+            events.add(Event(name, args.toList()))
+        }
+
+        /**
+         * Wait for the next call of a delegate method (calls of other methods before it are skipped)
+         */
+        fun await(name: String): Event{
+            val deadline = System.currentTimeMillis() + TIMEOUT
+            while(true){
+                val event = events.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS) ?: throw AssertionError("$name was not called")
+                if(event.name == name)
+                    return event
+            }
+        }
+
+        override fun onAdvertise(error: Int) = add("onAdvertise", error)
+        override fun onDeviceConnected(address: String, name: String?) = add("onDeviceConnected", address, name)
+        override fun onDeviceDisconnected(address: String, name: String?) = add("onDeviceDisconnected", address, name)
+        override fun onNotificationSent(characteristic: String, success: Boolean) = add("onNotificationSent", characteristic, success)
+        override fun onDeviceDiscovered(address: String, name: String?, rssi: Int) = add("onDeviceDiscovered", address, name, rssi)
+        override fun onConnectToDevice(address: String, name: String?, success: Boolean) = add("onConnectToDevice", address, name, success)
+        override fun onDisconnectFromDevice(address: String, name: String?) = add("onDisconnectFromDevice", address, name)
+        override fun onServicesDiscovered() = add("onServicesDiscovered")
+        override fun onCharacteristicRead(characteristic: String, writingDeviceAddress: String, success: Boolean, value: ByteArray?) = add("onCharacteristicRead", characteristic, writingDeviceAddress, success, value)
+        override fun onCharacteristicWrite(characteristic: String, success: Boolean, value: ByteArray?) = add("onCharacteristicWrite", characteristic, success, value)
+        override fun onDescriptorRead(descriptor: String, writingDeviceAddress: String, success: Boolean, value: ByteArray?) = add("onDescriptorRead", descriptor, writingDeviceAddress, success, value)
+        override fun onDescriptorWrite(descriptor: String, success: Boolean, value: ByteArray?) = add("onDescriptorWrite", descriptor, success, value)
+        override fun onBluetoothPowerChanged(enabled: Boolean) = add("onBluetoothPowerChanged", enabled)
+        override fun onBluetoothRequestResult(choseToEnable: Boolean) = add("onBluetoothRequestResult", choseToEnable)
+        override fun onMessageReceived(characteristic: String, deviceAddress: String, message: ByteArray) = add("onMessageReceived", characteristic, deviceAddress, message)
+        override fun onMessageSent(characteristic: String, success: Boolean) = add("onMessageSent", characteristic, success)
+    }
+
+    private lateinit var radio: LoopbackRadio
+    private lateinit var server: BLEServer
+    private lateinit var client: BLEClient
+    private val serverEvents = Events()
+    private val clientEvents = Events()
+
+    @Before
+    fun setUp(){
+        radio = LoopbackRadio(LoopbackLinkConfig(latencyMillis = 1, mtu = MTU, random = Random(1)))
+        server = BLEServer(LoopbackServerTransport(radio, SERVER_ADDRESS, "Server"), serverEvents)
+        server.addService(SERVICE)
+        server.addCharacteristic(CHARACTERISTIC, SERVICE)
+        server.advertiseService(SERVICE, true)
+        client = BLEClient(LoopbackClientTransport(radio, CLIENT_ADDRESS), clientEvents)
+    }
+
+    @After
+    fun tearDown(){
+        client.release()
+        server.release()
+        radio.shutdown()
+    }
+
+    /**
+     * Start the server, find it and connect to it
+     */
+    private fun connect(){
+        assertEquals(BtError.None, server.startServer())
+        assertEquals(AdvertiseError.None, serverEvents.await("onAdvertise").args[0])
+        client.scanForService(SERVICE)
+        assertEquals(BtError.None, client.scanForDevices())
+        assertEquals(listOf(SERVER_ADDRESS, "Server", -50), clientEvents.await("onDeviceDiscovered").args)
+        client.stopScanning()
+        client.connectToDevice(SERVER_ADDRESS)
+        assertEquals(listOf(SERVER_ADDRESS, "Server", true), clientEvents.await("onConnectToDevice").args)
+        clientEvents.await("onServicesDiscovered")
+        assertEquals(CLIENT_ADDRESS, serverEvents.await("onDeviceConnected").args[0])
+    }
+
+    private fun subscribe(characteristic: String){
+        client.subscribeToCharacteristic(characteristic)
+        val write = clientEvents.await("onDescriptorWrite")
+        assertEquals(CLIENT_CONFIG, write.args[0])
+        assertEquals(true, write.args[1])
+    }
+
+    private fun bytes(size: Int): ByteArray{
+        return ByteArray(size) { it.toByte() }
+    }
+
+    @Test
+    fun connectsToTheServerItFinds(){
+        connect()
+
+        assertTrue(client.isConnected)
+        assertTrue(client.hasService(SERVICE))
+        assertTrue(client.hasCharacteristic(CHARACTERISTIC))
+        assertTrue(client.hasDescriptor(CLIENT_CONFIG))
+        // Negotiated up to what the link supports
+        assertEquals(MTU, client.mtu)
+        assertEquals(MTU, server.getMtu(CLIENT_ADDRESS))
+    }
+
+    @Test
+    fun scanOnlyReportsServersWithTheService(){
+        assertEquals(BtError.None, server.startServer())
+        client.scanForService("0000FFF0-0000-1000-8000-00805F9B34FB")
+        client.scanForDevices()
+        val other = BLEServer(LoopbackServerTransport(radio, "00:00:00:00:BB:BB"), Events())
+        other.addService("0000FFF0-0000-1000-8000-00805F9B34FB")
+        other.advertiseService("0000FFF0-0000-1000-8000-00805F9B34FB", true)
+        other.startServer()
+
+        assertEquals("00:00:00:00:BB:BB", clientEvents.await("onDeviceDiscovered").args[0])
+        other.release()
+    }
+
+    @Test
+    fun readsAndWritesCharacteristics(){
+        connect()
+        server.writeCharacteristic(CHARACTERISTIC, byteArrayOf(1, 2, 3), false)
+
+        client.readCharacteristic(CHARACTERISTIC)
+        val read = clientEvents.await("onCharacteristicRead")
+        assertEquals(true, read.args[2])
+        assertArrayEquals(byteArrayOf(1, 2, 3), read.args[3] as ByteArray)
+
+        client.writeCharacteristic(CHARACTERISTIC, byteArrayOf(4, 5))
+        assertEquals(true, clientEvents.await("onCharacteristicWrite").args[1])
+        val written = serverEvents.await("onCharacteristicRead")
+        assertEquals(listOf(CHARACTERISTIC, CLIENT_ADDRESS, true), written.args.subList(0, 3))
+        assertArrayEquals(byteArrayOf(4, 5), written.args[3] as ByteArray)
+    }
+
+    @Test
+    fun longValuesTakeSeveralRequests(){
+        connect()
+        val value = bytes(MTU * 3 + 7)
+        server.writeCharacteristic(CHARACTERISTIC, value, false)
+
+        // Read blob requests until a response is short
+        client.readCharacteristic(CHARACTERISTIC)
+        assertArrayEquals(value, clientEvents.await("onCharacteristicRead").args[3] as ByteArray)
+
+        // Prepared writes, applied once executed
+        val written = bytes(MTU * 2 + 1).reversedArray()
+        client.writeCharacteristic(CHARACTERISTIC, written)
+        assertEquals(true, clientEvents.await("onCharacteristicWrite").args[1])
+        assertArrayEquals(written, serverEvents.await("onCharacteristicRead").args[3] as ByteArray)
+        client.readCharacteristic(CHARACTERISTIC)
+        assertArrayEquals(written, clientEvents.await("onCharacteristicRead").args[3] as ByteArray)
+    }
+
+    @Test
+    fun subscribedClientsGetNotifications(){
+        connect()
+        subscribe(CHARACTERISTIC)
+        assertArrayEquals(byteArrayOf(1, 0), serverEvents.await("onDescriptorRead").args[3] as ByteArray)
+
+        server.writeCharacteristic(CHARACTERISTIC, byteArrayOf(9, 8, 7))
+
+        val notification = clientEvents.await("onCharacteristicRead")
+        assertEquals(CHARACTERISTIC, notification.args[0])
+        assertArrayEquals(byteArrayOf(9, 8, 7), notification.args[3] as ByteArray)
+        assertEquals(listOf(CHARACTERISTIC, true), serverEvents.await("onNotificationSent").args)
+    }
+
+    @Test
+    fun messagesAreReassembledOnBothEnds(){
+        server.enableMessages(CHARACTERISTIC)
+        client.enableMessages(CHARACTERISTIC)
+        connect()
+        subscribe(CHARACTERISTIC)
+
+        val request = bytes(1000)
+        assertTrue(client.writeMessage(CHARACTERISTIC, request))
+        val received = serverEvents.await("onMessageReceived")
+        assertEquals(listOf(CHARACTERISTIC, CLIENT_ADDRESS), received.args.subList(0, 2))
+        assertArrayEquals(request, received.args[2] as ByteArray)
+        assertEquals(listOf(CHARACTERISTIC, true), clientEvents.await("onMessageSent").args)
+
+        val reply = bytes(700).reversedArray()
+        assertTrue(server.notifyMessage(CHARACTERISTIC, reply))
+        assertArrayEquals(reply, clientEvents.await("onMessageReceived").args[2] as ByteArray)
+        assertEquals(listOf(CHARACTERISTIC, true), serverEvents.await("onMessageSent").args)
+    }
+
+    @Test
+    fun disconnectingIsSeenByBothEnds(){
+        connect()
+
+        client.disconnect()
+
+        assertEquals(SERVER_ADDRESS, clientEvents.await("onDisconnectFromDevice").args[0])
+        assertEquals(CLIENT_ADDRESS, serverEvents.await("onDeviceDisconnected").args[0])
+        assertFalse(client.isConnected)
+        assertFalse(client.hasCharacteristic(CHARACTERISTIC))
+    }
+
+    @Test
+    fun stoppingTheServerDisconnectsTheClient(){
+        connect()
+
+        server.stopServer()
+
+        assertEquals(SERVER_ADDRESS, clientEvents.await("onDisconnectFromDevice").args[0])
+        assertFalse(client.isConnected)
+        client.readCharacteristic(CHARACTERISTIC)
+        assertEquals(false, clientEvents.await("onCharacteristicRead").args[2])
+    }
+
+    companion object {
+        const val TIMEOUT = 5000L
+        const val MTU = 64
+        const val SERVER_ADDRESS = "00:00:00:00:AA:01"
+        const val CLIENT_ADDRESS = "00:00:00:00:AA:02"
+        const val SERVICE = "0000180D-0000-1000-8000-00805F9B34FB"
+        const val CHARACTERISTIC = "00002A37-0000-1000-8000-00805F9B34FB"
+        const val CLIENT_CONFIG = "00002902-0000-1000-8000-00805F9B34FB"
+    }
+}
@@ -0,0 +1,93 @@
+package com.mb3hel.quickble.benchmarks
+
+import com.mb3hel.quickble.*
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * GattOperationQueue with stubbed completions. Each subclass runs the benchmarks with a different number of producer threads.
+ *  - enqueue: average cost of queueOperation alone. Each call queues a batch of ENQUEUE_BATCH operations on a second queue
+ *    whose event loop never runs (nothing is started or completed). The queue is emptied before each call, outside the measurement.
+ *  - throughput: operations completed per second (all producers)
+ *  - roundTrip: time from queueOperation to the completion callback (percentiles in the sample results)
+ * Run with the gc profiler (default in build.gradle) for the allocation rate.
+ */
+@State(Scope.Benchmark)
+abstract class GattOperationQueueBenchmark {
+    private lateinit var executor: ExecutorService
+    private lateinit var queue: GattOperationQueue
+    private val window = Window(WINDOW_SIZE)
+    private lateinit var idleQueue: GattOperationQueue
+
+    @Setup(Level.Trial)
+    fun setUp(){
+        executor = Dispatchers.newDispatcher("QuickBLE-Benchmark-Gatt")
+        val transport = StubClientTransport()
+        queue = GattOperationQueue(transport, { operation, _ -> (operation.operand as Completion).complete() }, executor)
+        transport.queue = queue
+        idleQueue = GattOperationQueue(IdleClientTransport(), { _, _ -> }, IdleExecutor)
+    }
+
+    // Each call of enqueue takes about a millisecond so emptying before every call does not distort the measurement
+    @Setup(Level.Invocation)
+    fun emptyIdleQueue(){
+        idleQueue.clientDisconnected()
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown(){
+        executor.shutdownNow()
+    }
+
+    @State(Scope.Thread)
+    open class Producer {
+        val data = ByteArray(20)
+        val waiter = Waiter()
+        // Allocated up front so enqueue measures queueOperation instead of creating operations. The idle queue never starts
+        // them so they can be queued again once it has been emptied.
+        val operations = Array(ENQUEUE_BATCH) { DelayedGattOperation(OperandType.Characteristic, OperationType.Write, it, data) }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OperationsPerInvocation(ENQUEUE_BATCH)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    fun enqueue(producer: Producer){
+        val operations = producer.operations
+        for(i in operations.indices)
+            idleQueue.queueOperation(operations[i])
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    fun throughput(producer: Producer){
+        window.acquire()
+        queue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Write, window, producer.data))
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    fun roundTrip(producer: Producer){
+        val waiter = producer.waiter
+        waiter.reset()
+        queue.queueOperation(DelayedGattOperation(OperandType.Characteristic, OperationType.Write, waiter, producer.data))
+        waiter.await()
+    }
+
+    companion object {
+        const val WINDOW_SIZE = 1024
+        const val ENQUEUE_BATCH = 50000
+    }
+}
+
+@Threads(1)
+open class GattOperationQueue1Producer: GattOperationQueueBenchmark()
+
+@Threads(4)
+open class GattOperationQueue4Producers: GattOperationQueueBenchmark()
+
+@Threads(16)
+open class GattOperationQueue16Producers: GattOperationQueueBenchmark()
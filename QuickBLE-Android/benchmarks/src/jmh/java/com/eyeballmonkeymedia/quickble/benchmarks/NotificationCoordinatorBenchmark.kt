@@ -0,0 +1,114 @@
+package com.mb3hel.quickble.benchmarks
+
+import com.mb3hel.quickble.*
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * NotificationCoordinator with stubbed onNotificationSent callbacks. Each producer notifies every device of a value
+ * (one NotificationSet per call). Each subclass runs the benchmarks with a different number of producer threads.
+ *  - enqueue: average cost of queueNotifications alone. Each call queues a batch of ENQUEUE_BATCH sets on a second coordinator
+ *    whose event loop never runs (nothing is sent). The coordinator is emptied before each call, outside the measurement.
+ *  - throughput: notification sets completed per second (all producers)
+ *  - roundTrip: time from queueNotifications to the set being reported sent (percentiles in the sample results)
+ * Run with the gc profiler (default in build.gradle) for the allocation rate.
+ */
+@State(Scope.Benchmark)
+abstract class NotificationCoordinatorBenchmark {
+    /**
+     * Number of connected devices each set notifies
+     */
+    @JvmField
+    @Param("1", "8")
+    var devices = 1
+
+    private lateinit var executor: ExecutorService
+    private lateinit var coordinator: NotificationCoordinator
+    private lateinit var connected: Array<Any?>
+    private val window = Window(WINDOW_SIZE)
+    private lateinit var idleCoordinator: NotificationCoordinator
+
+    @Setup(Level.Trial)
+    fun setUp(){
+        executor = Dispatchers.newDispatcher("QuickBLE-Benchmark-Notify")
+        val transport = StubServerTransport()
+        coordinator = NotificationCoordinator(transport, { (it.characteristic as Completion).complete() }, executor)
+        transport.coordinator = coordinator
+        connected = Array(devices) { Any() }
+        idleCoordinator = NotificationCoordinator(IdleServerTransport(), { }, IdleExecutor)
+    }
+
+    // Each call of enqueue takes about a millisecond so emptying before every call does not distort the measurement
+    @Setup(Level.Invocation)
+    fun emptyIdleCoordinator(){
+        idleCoordinator.serverStopped()
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown(){
+        executor.shutdownNow()
+    }
+
+    @State(Scope.Thread)
+    open class Producer {
+        val data = ByteArray(20)
+        val waiter = Waiter()
+        private var sets: Array<NotificationSet>? = null
+
+        /**
+         * Sets for enqueue. Allocated on the first (warmup) call so enqueue measures queueNotifications instead of creating
+         * sets. The idle coordinator never sends them so they can be queued again once it has been emptied.
+         */
+        fun sets(devices: Array<Any?>): Array<NotificationSet>{
+            var sets = sets
+            if(sets == null){
+                sets = Array(ENQUEUE_BATCH) { NotificationSet(it, devices, data) }
+                this.sets = sets
+            }
+            return sets
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OperationsPerInvocation(ENQUEUE_BATCH)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    fun enqueue(producer: Producer){
+        val sets = producer.sets(connected)
+        for(i in sets.indices)
+            idleCoordinator.queueNotifications(sets[i])
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    fun throughput(producer: Producer){
+        window.acquire()
+        coordinator.queueNotifications(NotificationSet(window, connected, producer.data))
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    fun roundTrip(producer: Producer){
+        val waiter = producer.waiter
+        waiter.reset()
+        coordinator.queueNotifications(NotificationSet(waiter, connected, producer.data))
+        waiter.await()
+    }
+
+    companion object {
+        const val WINDOW_SIZE = 1024
+        const val ENQUEUE_BATCH = 50000
+    }
+}
+
+@Threads(1)
+open class NotificationCoordinator1Producer: NotificationCoordinatorBenchmark()
+
+@Threads(4)
+open class NotificationCoordinator4Producers: NotificationCoordinatorBenchmark()
+
+@Threads(16)
+open class NotificationCoordinator16Producers: NotificationCoordinatorBenchmark()
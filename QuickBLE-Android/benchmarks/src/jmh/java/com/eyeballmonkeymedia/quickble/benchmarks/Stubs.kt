@@ -0,0 +1,102 @@
+package com.mb3hel.quickble.benchmarks
+
+import com.mb3hel.quickble.*
+import java.util.concurrent.Executor
+import java.util.concurrent.Semaphore
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Stubbed GATT links. Every operation/notification completes as soon as it is started (a link with no latency) so the
+ * benchmarks measure the queue and coordinator themselves.
+ */
+class StubClientTransport: GattClientTransport {
+    lateinit var queue: GattOperationQueue
+
+    override val isConnected = true
+
+    override fun startOperation(operation: DelayedGattOperation): Boolean{
+        queue.onOperationComplete(operation.data, GattStatus.Success)
+        return true
+    }
+}
+
+class StubServerTransport: GattServerTransport {
+    lateinit var coordinator: NotificationCoordinator
+
+    override val isRunning = true
+
+    override fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean{
+        coordinator.onNotificationSent(device, GattStatus.Success)
+        return true
+    }
+}
+
+/**
+ * Links for measuring the cost of queuing alone. Nothing is ever started (the queue/coordinator is given an executor that
+ * drops its tasks) so nothing completes and the queued work piles up until the benchmark empties it.
+ */
+class IdleClientTransport: GattClientTransport {
+    override val isConnected = true
+
+    override fun startOperation(operation: DelayedGattOperation): Boolean = true
+}
+
+class IdleServerTransport: GattServerTransport {
+    override val isRunning = true
+
+    override fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean = true
+}
+
+/**
+ * Executor that drops every task (the event loop of a queue/coordinator that is never woken up)
+ */
+object IdleExecutor: Executor {
+    override fun execute(command: Runnable){}
+}
+
+/**
+ * Used as the operand (or characteristic) of benchmarked operations so the completion callback knows who to tell
+ */
+interface Completion {
+    fun complete()
+}
+
+/**
+ * Limits the operations in flight so producers can not outrun the event loop (the queue would grow without bound)
+ */
+class Window(size: Int): Completion {
+    private val permits = Semaphore(size)
+
+    fun acquire(){
+        permits.acquireUninterruptibly()
+    }
+
+    override fun complete(){
+        permits.release()
+    }
+}
+
+/**
+ * Lets a producer wait for its own operation to complete
+ */
+class Waiter: Completion {
+    @Volatile
+    private var done = false
+    @Volatile
+    private var thread: Thread? = null
+
+    fun reset(){
+        done = false
+        thread = Thread.currentThread()
+    }
+
+    override fun complete(){
+        done = true
+        LockSupport.unpark(thread)
+    }
+
+    fun await(){
+        while(!done)
+            LockSupport.park(this)
+    }
+}
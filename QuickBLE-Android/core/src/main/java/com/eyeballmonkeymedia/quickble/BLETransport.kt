@@ -0,0 +1,347 @@
+package com.mb3hel.quickble
+
+import java.util.*
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * The platform a BLEClient or BLEServer runs on. A client finds servers with its transport's BLEScanner, connects to one with
+ * its BLEConnector and performs operations through the GattClient it gets. A server opens a GattServer and advertises with a
+ * BLEAdvertiser. Both run their timers and delegate calls on the transport's EventLoop.
+ * The android transports (AndroidTransport.kt) wrap BluetoothAdapter, BluetoothGatt, BluetoothGattServer and
+ * BluetoothLeAdvertiser. The loopback transports (Loopback.kt) connect clients and servers in the same process so they run
+ * on a plain JVM. Listeners are called on the transport's threads (binder threads on android).
+ */
+
+interface BtError {
+    companion object {
+        val None = 0
+        val NoBluetooth = 1
+        val NoBLE = 2
+        val Disabled = 3
+        val NoServer = 4
+        val AlreadyRunning = 5
+    }
+}
+interface AdvertiseError {
+    companion object {
+        val None = 0
+        val DataTooLarge = 1
+        val TooManyAdvertisers = 2
+        val AlreadyStarted = 3
+        val InternalError = 4
+        val FeatureUnsupported = 5
+    }
+}
+
+/**
+ * The thread a client/server runs its timers on and posts delegate calls to (the main looper on android)
+ */
+interface EventLoop {
+    fun post(task: Runnable)
+    fun postDelayed(task: Runnable, delayMillis: Long)
+    /**
+     * Remove every post of a task that has not run yet
+     */
+    fun removeCallbacks(task: Runnable)
+}
+
+/**
+ * An EventLoop on an executor. The executor should have one thread so tasks run in the order they were posted.
+ */
+class ExecutorEventLoop(val executor: ScheduledExecutorService): EventLoop {
+    // Posts that have not run yet by task. Synchronized on itself.
+    private val pending = HashMap<Runnable, ArrayList<Post>>()
+
+    private inner class Post(val task: Runnable): Runnable {
+        var future: Future<*>? = null
+
+        override fun run(){
+            synchronized(pending){
+                // Removed by removeCallbacks after it was scheduled
+                val posts = pending[task] ?: return
+                if(!posts.remove(this))
+                    return
+                if(posts.isEmpty())
+                    pending.remove(task)
+            }
+            task.run()
+        }
+    }
+
+    override fun post(task: Runnable){
+        postDelayed(task, 0)
+    }
+
+    override fun postDelayed(task: Runnable, delayMillis: Long){
+        val post = Post(task)
+        synchronized(pending){
+            val posts = pending.getOrPut(task) { ArrayList() }
+            posts.add(post)
+            try{
+                post.future = executor.schedule(post, delayMillis, TimeUnit.MILLISECONDS)
+            }catch (e: RejectedExecutionException){
+                posts.remove(post)
+                if(posts.isEmpty())
+                    pending.remove(task)
+                QuickBLELog.w("Event loop is shut down: ", e)
+            }
+        }
+    }
+
+    override fun removeCallbacks(task: Runnable){
+        synchronized(pending){
+            pending.remove(task)?.forEach { it.future?.cancel(false) }
+        }
+    }
+}
+
+/**
+ * A device on the other end of a link (a server found by a scan or a client connected to a server). Transports give the
+ * same device equal objects (they are used as map keys).
+ */
+interface RemoteDevice {
+    /**
+     * The device's address (uppercase)
+     */
+    val address: String
+    val name: String?
+}
+
+//region Client
+/**
+ * An advertisement received while scanning
+ * @param timestampNanos When it was received (SystemClock.elapsedRealtimeNanos on android)
+ */
+class Advertisement(val device: RemoteDevice, val rssi: Int, val timestampNanos: Long)
+
+interface BLEScanListener {
+    /**
+     * An advertisement was received
+     * @param timestampNanos When it was received (SystemClock.elapsedRealtimeNanos on android)
+     */
+    fun onAdvertisement(device: RemoteDevice, rssi: Int, timestampNanos: Long)
+    /**
+     * Advertisements batched by the scanner (in the order they were received)
+     */
+    fun onAdvertisements(batch: List<Advertisement>)
+}
+
+/**
+ * Finds advertising servers
+ */
+interface BLEScanner {
+    /**
+     * Can the scan mode be chosen (BLEClient.scanMode)
+     */
+    val supportsScanMode: Boolean
+
+    /**
+     * Start scanning. Only one scan runs at a time.
+     * @param services Only report servers advertising one of these services (every server if empty)
+     * @param mode A ScanMode (ignored if supportsScanMode is false)
+     * @param reportDelay Batch advertisements for this long (milliseconds) and report them with onAdvertisements if the
+     *          scanner can (0 reports each advertisement when it arrives)
+     * @return Does the scanner batch the advertisements (if not each one is reported with onAdvertisement)
+     */
+    fun startScan(services: List<UUID>, mode: Int, reportDelay: Long, listener: BLEScanListener): Boolean
+    /**
+     * Stop scanning. Advertisements the scanner is still holding are reported first.
+     */
+    fun stopScan()
+}
+
+interface BLEConnector {
+    /**
+     * Connect to a server. The listener's onConnectionStateChange is called once the connection is up (or has failed).
+     * @param device The server (as its advertisements reported it)
+     * @return The connection or null if it could not be started
+     */
+    fun connect(device: RemoteDevice, listener: GattClientListener): GattClient?
+}
+
+/**
+ * A client's connection to a server (BluetoothGatt on android). Only one request is in flight at a time, the client's
+ * GattOperationQueue starts operations and requestMtu/discoverServices are only called while the queue is idle.
+ */
+interface GattClient: GattClientTransport {
+    /**
+     * The server
+     */
+    val device: RemoteDevice
+
+    /**
+     * Negotiate the MTU. onMtuChanged is called with the result.
+     * @return Was the request started (if not the MTU stays 23)
+     */
+    fun requestMtu(mtu: Int): Boolean
+    /**
+     * Discover the server's services. onServicesDiscovered is called with them.
+     */
+    fun discoverServices(): Boolean
+    /**
+     * Start (or stop) passing a characteristic's notifications to the listener. Subscribing on the server is a write of its
+     * client config descriptor, which is queued separately.
+     */
+    fun setNotification(characteristic: GattCharacteristic, enable: Boolean): Boolean
+    /**
+     * Request the connection interval and PHY of a ConnectionProfile
+     * @return Will onPhyUpdate be called (false if the PHY can not be changed)
+     */
+    fun requestProfile(profile: Int): Boolean
+    /**
+     * Start disconnecting. onConnectionStateChange is called once disconnected (unless the client is closed first).
+     */
+    fun disconnect()
+    /**
+     * Release the connection. The listener is not called again.
+     */
+    fun close()
+}
+
+interface GattClientListener {
+    /**
+     * The connection came up or went down (a failed attempt is reported as a disconnect)
+     */
+    fun onConnectionStateChange(client: GattClient, connected: Boolean)
+    fun onMtuChanged(client: GattClient, mtu: Int, status: Int)
+    /**
+     * @param services The server's services (included services are also reachable through their parent)
+     */
+    fun onServicesDiscovered(client: GattClient, services: List<GattService>, status: Int)
+    /**
+     * An operation started by startOperation finished
+     * @param data The value read (the listener's own copy) or null for writes
+     */
+    fun onOperationComplete(client: GattClient, data: ByteArray?, status: Int)
+    /**
+     * A notification or indication arrived
+     * @param characteristic The characteristic's UUID
+     * @param value The value (only valid during the call, copy it to keep it)
+     */
+    fun onNotification(client: GattClient, characteristic: UUID, value: ByteArray)
+    fun onPhyUpdate(client: GattClient, txPhy: Int, rxPhy: Int, status: Int)
+}
+
+/**
+ * What a BLEClient runs on
+ */
+interface BLEClientTransport {
+    val eventLoop: EventLoop
+    val scanner: BLEScanner
+    val connector: BLEConnector
+    /**
+     * Is bluetooth on
+     */
+    val isEnabled: Boolean
+
+    /**
+     * Check that the platform can be a client
+     * @return An error code (BtError)
+     */
+    fun checkBluetooth(): Int
+    /**
+     * Start watching for bluetooth being turned on or off. The listener is called with the new state (may be called more
+     * than once for the same state).
+     */
+    fun addPowerListener(listener: (Boolean) -> Unit)
+    fun removePowerListener(listener: (Boolean) -> Unit)
+}
+//endregion
+
+//region Server
+/**
+ * @param mode An AdvertiseMode
+ * @param txPower An AdvertiseTxPower
+ * @param includeDeviceName Put the device's name in the advertisement
+ * @param services The services advertised (scanners can look for them)
+ */
+class AdvertiseOptions(val mode: Int, val txPower: Int, val includeDeviceName: Boolean, val services: List<UUID>)
+
+interface BLEAdvertiser {
+    /**
+     * Start advertising
+     * @param callback Called with an AdvertiseError once advertising has started (AdvertiseError.None) or failed
+     */
+    fun startAdvertising(options: AdvertiseOptions, callback: (Int) -> Unit)
+    fun stopAdvertising()
+}
+
+/**
+ * A server's GATT database and connections (BluetoothGattServer on android). Notifications are sent by the server's
+ * NotificationCoordinator (sendNotification), the transport reports them sent with the listener's onNotificationSent.
+ */
+interface GattServer: GattServerTransport {
+    /**
+     * Add a service with its characteristics, descriptors and included services. An included service is also added on its
+     * own (before or after its parent).
+     * @return Was the service added
+     */
+    fun addService(service: GattService): Boolean
+    /**
+     * Respond to a read/write request. Every request the listener gets must be responded to once (writes only when a
+     * response is needed).
+     */
+    fun sendResponse(device: RemoteDevice, requestId: Int, status: Int, offset: Int, value: ByteArray?): Boolean
+    /**
+     * Disconnect a client
+     */
+    fun cancelConnection(device: RemoteDevice)
+    /**
+     * Close the server. Clients are disconnected and the listener is not called again.
+     */
+    fun close()
+}
+
+interface GattServerListener {
+    /**
+     * A client connected or disconnected
+     * @param status GattStatus.Success unless the connection failed (the device is disconnected)
+     */
+    fun onConnectionStateChange(device: RemoteDevice, status: Int, connected: Boolean)
+    fun onMtuChanged(device: RemoteDevice, mtu: Int)
+    fun onCharacteristicReadRequest(device: RemoteDevice, requestId: Int, offset: Int, characteristic: UUID)
+    fun onCharacteristicWriteRequest(device: RemoteDevice, requestId: Int, characteristic: UUID, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?)
+    fun onDescriptorReadRequest(device: RemoteDevice, requestId: Int, offset: Int, descriptor: UUID)
+    fun onDescriptorWriteRequest(device: RemoteDevice, requestId: Int, descriptor: UUID, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?)
+    /**
+     * Commit (execute true) or cancel a client's prepared writes
+     */
+    fun onExecuteWrite(device: RemoteDevice, requestId: Int, execute: Boolean)
+    /**
+     * A notification started with sendNotification was sent
+     */
+    fun onNotificationSent(device: RemoteDevice, status: Int)
+}
+
+/**
+ * What a BLEServer runs on
+ */
+interface BLEServerTransport {
+    val eventLoop: EventLoop
+    val advertiser: BLEAdvertiser
+    /**
+     * Is bluetooth on
+     */
+    val isEnabled: Boolean
+
+    /**
+     * Check that the platform can be a server
+     * @return An error code (BtError)
+     */
+    fun checkBluetooth(): Int
+    /**
+     * Open the GATT server
+     * @param listener Gets the server's connections and requests
+     * @return The server or null if it could not be opened
+     */
+    fun openServer(listener: GattServerListener): GattServer?
+    /**
+     * Start watching for bluetooth being turned on or off (see BLEClientTransport.addPowerListener)
+     */
+    fun addPowerListener(listener: (Boolean) -> Unit)
+    fun removePowerListener(listener: (Boolean) -> Unit)
+}
+//endregion
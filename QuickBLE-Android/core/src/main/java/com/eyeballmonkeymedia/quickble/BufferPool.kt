@@ -0,0 +1,133 @@
+package com.mb3hel.quickble
+
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A value delivered to a BLEBufferDelegate. The value is a read-only view (buffer) over a pooled array so receiving it does not
+ * allocate a new array once the pool is warm. Call release when done with the value so its array can be reused. Each value is
+ * its own PooledBuffer (only the arrays are pooled), so releasing a value again never affects a later value that got its
+ * array. The value can not be used after release (buffer and toByteArray throw IllegalStateException). A value that is never
+ * released is garbage collected like any other object, its array just does not go back to the pool.
+ */
+class PooledBuffer internal constructor(private val pool: BufferPool?, array: ByteArray, length: Int) {
+    // Null once released
+    @Volatile
+    private var array: ByteArray? = array
+    private var view: ByteBuffer? = null
+
+    /**
+     * Number of bytes in the value
+     */
+    val size = length
+
+    /**
+     * Read-only view of the value (position 0, limit size)
+     */
+    val buffer: ByteBuffer
+        get(){
+            synchronized(this){
+                val array = array ?: throw IllegalStateException("PooledBuffer used after release")
+                val view = view ?: ByteBuffer.wrap(array, 0, size).slice().asReadOnlyBuffer()
+                this.view = view
+                return view
+            }
+        }
+
+    /**
+     * @return A copy of the value
+     */
+    fun toByteArray(): ByteArray{
+        val array = array ?: throw IllegalStateException("PooledBuffer used after release")
+        return array.copyOf(size)
+    }
+
+    /**
+     * Return the buffer's array to its pool. Calling release more than once does nothing.
+     */
+    fun release(){
+        var array: ByteArray? = null
+        synchronized(this){
+            array = this.array
+            this.array = null
+            view = null
+        }
+        val released = array ?: return
+        pool?.recycle(released)
+    }
+}
+
+/**
+ * Pool of byte arrays for PooledBuffers. Arrays are kept in power of two size classes (MIN_BUFFER_SIZE up to maxBufferSize)
+ * with at most maxPooled free arrays per class. Values larger than maxBufferSize get an array of their own that is not pooled.
+ * Acquire and release only use lock free queues so they can be called from binder threads.
+ * @param maxBufferSize The largest array kept in the pool (ATT values are at most 512 bytes)
+ * @param maxPooled The maximum number of free arrays kept for each size class
+ */
+class BufferPool(val maxBufferSize: Int = 512, val maxPooled: Int = 32) {
+    private val classes = Array(sizeClass(maxBufferSize) + 1) { ConcurrentLinkedQueue<ByteArray>() }
+    private val counts = Array(classes.size) { AtomicInteger() }
+
+    /**
+     * Copy a value into a pooled buffer
+     * @param data The value
+     * @param offset Start of the value in data
+     * @param length Number of bytes in the value
+     */
+    fun acquire(data: ByteArray, offset: Int = 0, length: Int = data.size - offset): PooledBuffer{
+        if(length > maxBufferSize)
+            return PooledBuffer(null, Arrays.copyOfRange(data, offset, offset + length), length)
+        val sizeClass = sizeClass(length)
+        var array = classes[sizeClass].poll()
+        if(array != null)
+            counts[sizeClass].decrementAndGet()
+        else
+            array = ByteArray(MIN_BUFFER_SIZE shl sizeClass)
+        System.arraycopy(data, offset, array, 0, length)
+        return PooledBuffer(this, array, length)
+    }
+
+    /**
+     * Wrap a value that is already a private copy (ex. a completed read's data) without copying it. The buffer is not pooled.
+     */
+    fun wrap(data: ByteArray): PooledBuffer{
+        return PooledBuffer(null, data, data.size)
+    }
+
+    internal fun recycle(array: ByteArray){
+        val sizeClass = sizeClass(array.size)
+        // Pool only arrays of exactly the class size (wrapped and oversized arrays are left to the garbage collector)
+        if(array.size != MIN_BUFFER_SIZE shl sizeClass || sizeClass >= classes.size)
+            return
+        if(counts[sizeClass].incrementAndGet() > maxPooled){
+            counts[sizeClass].decrementAndGet()
+            return
+        }
+        classes[sizeClass].add(array)
+    }
+
+    /**
+     * Drop every free array
+     */
+    fun clear(){
+        for(i in classes.indices){
+            while(classes[i].poll() != null)
+                counts[i].decrementAndGet()
+        }
+    }
+
+    companion object {
+        const val MIN_BUFFER_SIZE = 32
+
+        /**
+         * @return Index of the smallest size class that fits length
+         */
+        private fun sizeClass(length: Int): Int{
+            if(length <= MIN_BUFFER_SIZE)
+                return 0
+            return 32 - Integer.numberOfLeadingZeros((length - 1) / MIN_BUFFER_SIZE)
+        }
+    }
+}
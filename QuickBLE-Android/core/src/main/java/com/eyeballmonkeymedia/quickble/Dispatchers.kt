@@ -0,0 +1,55 @@
+package com.mb3hel.quickble
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Long-lived dispatcher threads used by QuickBLE's internal queues (and by the android library's BLEServer).
+ * Dispatching a GATT operation only triggers a non-blocking call on the android Bluetooth stack, so a single thread
+ * per kind of work is enough for every client/server in the process. Creating a new thread for each operation
+ * would cost far more than the operation itself when polling at high rates.
+ */
+object Dispatchers {
+    /**
+     * Default event loop for GattOperationQueues
+     */
+    val gatt: ExecutorService by lazy { newDispatcher("QuickBLE-Gatt") }
+    /**
+     * Default event loop for NotificationCoordinators
+     */
+    val notifications: ExecutorService by lazy { newDispatcher("QuickBLE-Notify") }
+    /**
+     * Default executor for BLEServer read/write request responses. Bounded: once the queue is full responses are sent on
+     * the requesting (binder) thread instead of piling up.
+     */
+    val responses: ExecutorService by lazy { newBoundedPool("QuickBLE-Response", 2, 64) }
+
+    /**
+     * Create a single threaded executor backed by a daemon thread (will not keep the process alive)
+     * @param name The name of the dispatcher thread
+     */
+    fun newDispatcher(name: String): ExecutorService {
+        return Executors.newSingleThreadExecutor { runnable ->
+            val t = Thread(runnable, name)
+            t.isDaemon = true
+            t
+        }
+    }
+
+    /**
+     * Create a bounded pool of daemon threads. When all threads are busy and the queue is full tasks run on the caller's thread.
+     * @param name The base name of the pool's threads
+     * @param maxThreads The maximum number of threads in the pool
+     * @param queueSize The maximum number of waiting tasks
+     */
+    fun newBoundedPool(name: String, maxThreads: Int, queueSize: Int): ExecutorService {
+        val count = AtomicInteger(0)
+        val pool = ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS, ArrayBlockingQueue<Runnable>(queueSize), ThreadFactory { runnable ->
+            val t = Thread(runnable, name + "-" + count.incrementAndGet())
+            t.isDaemon = true
+            t
+        }, ThreadPoolExecutor.CallerRunsPolicy())
+        pool.allowCoreThreadTimeOut(true)
+        return pool
+    }
+}
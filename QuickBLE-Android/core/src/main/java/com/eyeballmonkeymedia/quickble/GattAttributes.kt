@@ -0,0 +1,55 @@
+package com.mb3hel.quickble
+
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * A service, characteristic, or descriptor. A BLEServer creates its own and a BLEClient gets the server's from service
+ * discovery. The attributes are the same on every transport, each transport keeps its own object for an attribute in platform.
+ */
+abstract class GattAttribute(val uuid: UUID) {
+    /**
+     * The transport's object for the attribute (ex. the BluetoothGattCharacteristic on android). Only used by the transport.
+     */
+    @Volatile
+    var platform: Any? = null
+}
+
+/**
+ * @param primary Is the service a primary service (false for included services)
+ */
+class GattService(uuid: UUID, val primary: Boolean = true): GattAttribute(uuid) {
+    val includedServices: MutableList<GattService> = CopyOnWriteArrayList()
+    val characteristics: MutableList<GattCharacteristic> = CopyOnWriteArrayList()
+}
+
+/**
+ * @param properties The characteristic's properties (CharProperties)
+ * @param permissions The characteristic's permissions (CharPermissions)
+ */
+class GattCharacteristic(uuid: UUID, val properties: Int, val permissions: Int = 0): GattAttribute(uuid) {
+    val descriptors: MutableList<GattDescriptor> = CopyOnWriteArrayList()
+    /**
+     * The value a server serves (not used by clients). Synchronize on the characteristic to read and change it together.
+     */
+    @Volatile
+    var value: ByteArray? = null
+
+    /**
+     * @return The characteristic's first descriptor with the UUID or null if it has none
+     */
+    fun getDescriptor(uuid: UUID): GattDescriptor?{
+        return descriptors.firstOrNull { it.uuid == uuid }
+    }
+}
+
+/**
+ * @param permissions The descriptor's permissions (DescPermissions)
+ */
+class GattDescriptor(uuid: UUID, val permissions: Int = 0): GattAttribute(uuid) {
+    /**
+     * The value a server serves (not used by clients)
+     */
+    @Volatile
+    var value: ByteArray? = null
+}
@@ -0,0 +1,250 @@
+package com.mb3hel.quickble
+
+import java.lang.Exception
+import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Android BluetoothGatt (Gatt clients) can only perform one GATT operation(read/write char/desc) at a time. No other
+ * operation can be triggered until the current operation is complete (the callback's method is called).
+ * In order to allow the BLEClient's read/write methods to be called *without* waiting for the callback a
+ *                         queue is needed (similar to NotificationCoordinator for server)
+ * The GattOperationQueue * queues DelayedGattOperations which have an OperandType (Char/Desc) and an OperationType (Read/Write).
+ * When the client is told to perform an operation it will add it to its GattOperationQueue. The queue starts operations on
+ * its GattClientTransport and the transport calls the queue's onOperationComplete method (the BLEClient does this when its
+ * GattClient reports the operation complete).
+ * This will allow the queue to determine when an operation is complete. When an operation completes
+ * the queue will perform the next operation (if any) and will call its onComplete function (the client's handleGattOperationComplete
+ * method). This method in the client will handle calling BLEDelegate methods as needed.
+ * The queue runs on a single event loop (its executor). Completions from the callback are handed to the loop which then
+ * starts the next operation, so no threads are created per operation.
+ */
+
+enum class OperandType{
+    Characteristic,
+    Descriptor
+}
+
+enum class OperationType{
+    Read,
+    Write
+}
+
+/**
+ * @param operand The characteristic/descriptor. A GattCharacteristic/GattDescriptor for a BLEClient (other transports may use their own types).
+ * @param name The canonical UUID string of the operand (given to the delegate when the operation completes)
+ * @param noResponse Characteristic writes only. Write without response (WRITE_TYPE_NO_RESPONSE). Used for streamed writes.
+ */
+class DelayedGattOperation(val operandType: OperandType, val operationType: OperationType, val operand: Any, var data: ByteArray?, val name: String = "", val noResponse: Boolean = false){
+    // Timestamps (System.nanoTime) for BLEMetrics. Only set when the queue has metrics.
+    var queuedAt = 0L
+        internal set
+    var startedAt = 0L
+        internal set
+    var completedAt = 0L
+        internal set
+    /**
+     * The framed message this write is a fragment of (null for normal operations)
+     */
+    var message: OutgoingMessage? = null
+}
+
+/**
+ * @param transport The link operations are performed on
+ * @param onComplete Called when an operation completes (success or failure). Not called with the queue's lock held.
+ */
+class GattOperationQueue(val transport: GattClientTransport, private val onComplete: (DelayedGattOperation, Boolean) -> Unit,
+                         executor: Executor = Dispatchers.gatt){
+    /**
+     * The event loop the queue runs on. Operations are dispatched and completions from the transport are handled
+     * on this executor. Defaults to a single long-lived thread shared by all clients. A custom executor should run tasks
+     * one at a time (serial executor).
+     */
+    @Volatile
+    var executor: Executor = executor
+
+    /**
+     * Where queue depth, latencies and failures are recorded (null to not record them)
+     */
+    @Volatile
+    var metrics: BLEMetrics? = null
+
+    private val lock = ReentrantLock()
+    private val queue = ArrayDeque<DelayedGattOperation>()
+    private var currentOperation: DelayedGattOperation? = null
+    // Completion of the current operation reported by the transport and not yet handled by the event loop
+    private var completionPending = false
+    private var completedData: ByteArray? = null
+    private var completedStatus = GattStatus.Success
+    private var completedAt = 0L
+
+    // Allocated once so dispatching does not allocate
+    private val processTask = Runnable { processOperations() }
+
+    /**
+     * Number of operations waiting or in progress
+     */
+    val depth: Int
+        get() {
+            lock.lock()
+            try{
+                return queue.size + if(currentOperation != null) 1 else 0
+            }finally {
+                lock.unlock()
+            }
+        }
+
+    /**
+     * @return Was the operation queued (false if the client is not connected)
+     */
+    fun queueOperation(operation: DelayedGattOperation): Boolean{
+        if(!transport.isConnected)
+            return false
+        val metrics = metrics
+        if(metrics != null)
+            operation.queuedAt = System.nanoTime()
+        var shouldProcess = false
+        lock.lock()
+        try{
+            queue.add(operation)
+            metrics?.recordQueueDepth(queue.size)
+            shouldProcess = currentOperation == null && queue.size == 1
+        }catch (e: Exception){
+            QuickBLELog.w("Queue Gatt operation exception: ", e)
+        }finally {
+            lock.unlock()
+        }
+        if(shouldProcess)
+            executor.execute(processTask)
+        return true
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT LOCKING FIRST
+     * @return The operations that were removed (delegate must be notified of their failure after unlocking)
+     */
+    private fun reset(): List<DelayedGattOperation>{
+        val failed = ArrayList<DelayedGattOperation>(queue.size + 1)
+        if(currentOperation != null)
+            failed.add(currentOperation!!)
+        failed.addAll(queue)
+        queue.clear()
+        currentOperation = null
+        completionPending = false
+        completedData = null
+        metrics?.recordQueueDepth(0)
+        return failed
+    }
+
+    fun clientDisconnected(){
+        var failed: List<DelayedGattOperation>? = null
+        lock.lock()
+        try{
+            failed = reset()
+        }catch (e: Exception){
+            QuickBLELog.w("Exception while handling client disconnect in queue: ", e)
+        }finally {
+            lock.unlock()
+        }
+        failed?.forEach { onComplete(it, false) }
+    }
+
+    /**
+     * Start the next operation if none is in progress. Only runs on the executor.
+     */
+    private fun processOperations(){
+        finishCompletedOperation()
+        while(true){
+            var operation: DelayedGattOperation? = null
+            var failed: List<DelayedGattOperation>? = null
+            var started = false
+            lock.lock()
+            try{
+                if(currentOperation != null || queue.isEmpty())
+                    return
+                if(transport.isConnected){
+                    operation = queue.poll()
+                    currentOperation = operation
+                    val metrics = metrics
+                    if(metrics != null){
+                        metrics.recordQueueDepth(queue.size)
+                        metrics.recordStarted(operation!!)
+                    }
+                    started = transport.startOperation(operation!!)
+                    if(!started)
+                        currentOperation = null
+                }else{
+                    failed = reset()
+                }
+            }catch(e: Exception){
+                QuickBLELog.w("Exception while starting GATT operation: ", e)
+                if(currentOperation == operation)
+                    currentOperation = null
+            }finally {
+                lock.unlock()
+            }
+            if(failed != null){
+                failed.forEach { onComplete(it, false) }
+                return
+            }
+            // The stack refused the operation (no callback will come) so fail it and move on to the next one
+            if(!started && operation != null){
+                metrics?.recordStatus(GattStatus.Failure)
+                onComplete(operation, false)
+            }
+        }
+    }
+
+    /**
+     * Finish the current operation if the transport reported it complete. Only runs on the executor.
+     */
+    private fun finishCompletedOperation(){
+        var operation: DelayedGattOperation? = null
+        var success = false
+        lock.lock()
+        try{
+            if(!completionPending)
+                return
+            completionPending = false
+            operation = currentOperation
+            val data = completedData
+            if(operation != null && data != null)
+                operation.data = data
+            if(operation != null)
+                metrics?.recordCompleted(operation, completedStatus, completedAt)
+            success = completedStatus == GattStatus.Success
+            completedData = null
+            currentOperation = null
+        }catch (e: Exception){
+            QuickBLELog.w("Exception while handling GATT operation complete: ", e)
+        }finally {
+            lock.unlock()
+        }
+        if(operation != null)
+            onComplete(operation, success)
+    }
+
+    /**
+     * Called by the transport when the current operation completes. The completion is recorded and the event loop is woken up
+     * (with the preallocated task) to finish it and start the next operation.
+     * @param data The value read (must be a copy the transport will not change) or null for writes
+     * @param status GattStatus.Success or the error status
+     */
+    fun onOperationComplete(data: ByteArray?, status: Int){
+        val time = if(metrics != null) System.nanoTime() else 0L
+        lock.lock()
+        try{
+            // Ignore a completion with nothing in flight or a second one for the same operation
+            if(currentOperation == null || completionPending)
+                return
+            completionPending = true
+            completedData = data
+            completedStatus = status
+            completedAt = time
+        }finally {
+            lock.unlock()
+        }
+        executor.execute(processTask)
+    }
+}
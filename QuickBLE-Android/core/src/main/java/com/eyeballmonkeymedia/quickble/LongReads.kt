@@ -0,0 +1,63 @@
+package com.mb3hel.quickble
+
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Long reads let a central read a value larger than one ATT payload. It reads at offset 0 and then sends read blob requests
+ * with increasing offsets until a response is shorter than the payload size. Each response must be the part of the value
+ * starting at the request's offset. If the value changes part way through a long read the central would get the start of
+ * one value and the end of another, so the value is copied once (a snapshot) at offset 0 and continuations are served from
+ * that copy. Only the requested part (at most maxLength bytes) is copied for each response.
+ * Each central has at most one long read in progress (ATT requests are sequential) so one snapshot is kept per central.
+ * The types of device and attribute depend on the server (RemoteDevice and GattCharacteristic/GattDescriptor for a BLEServer).
+ */
+class LongReadSnapshots {
+    private class Snapshot(val attribute: Any, val value: ByteArray)
+
+    private val snapshots = ConcurrentHashMap<Any, Snapshot>()
+
+    /**
+     * Get the part of a value to respond to a read request with
+     * @param device The central reading (null if unknown, no snapshot is kept)
+     * @param attribute The attribute being read
+     * @param offset The offset of the request
+     * @param maxLength The most bytes that fit in a response (MTU - 1)
+     * @param value Copies the attribute's current value. Called at offset 0 (or if there is no snapshot of the attribute).
+     * @return The part of the value starting at offset or null if the offset is past the end of the value (GattStatus.InvalidOffset)
+     */
+    fun read(device: Any?, attribute: Any, offset: Int, maxLength: Int, value: () -> ByteArray): ByteArray?{
+        var snapshot = if(device == null) null else snapshots[device]
+        if(offset == 0 || snapshot == null || snapshot.attribute !== attribute){
+            val current = value()
+            if(offset == 0 && current.size < maxLength){
+                // Fits in one response so no blob requests will follow
+                if(device != null)
+                    snapshots.remove(device)
+                return current
+            }
+            snapshot = Snapshot(attribute, current)
+            if(device != null)
+                snapshots[device] = snapshot
+        }
+        val bytes = snapshot.value
+        if(offset < 0 || offset > bytes.size)
+            return null
+        val end = Math.min(bytes.size, offset + maxLength)
+        // A response shorter than maxLength ends the long read
+        if(end - offset < maxLength && device != null)
+            snapshots.remove(device, snapshot)
+        return Arrays.copyOfRange(bytes, offset, end)
+    }
+
+    /**
+     * Drop a central's snapshot (when it disconnects)
+     */
+    fun remove(device: Any){
+        snapshots.remove(device)
+    }
+
+    fun clear(){
+        snapshots.clear()
+    }
+}
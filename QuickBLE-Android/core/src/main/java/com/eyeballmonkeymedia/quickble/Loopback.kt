@@ -0,0 +1,875 @@
+package com.mb3hel.quickble
+
+import java.io.ByteArrayOutputStream
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * An in memory BLE link. Peripherals (GATT servers) advertise on a LoopbackRadio and centrals (GATT clients) scan for and
+ * connect to them in the same process. No android classes are used so GattOperationQueues and NotificationCoordinators can be
+ * run (and benchmarked) on a plain JVM.
+ * Every packet is delivered by the radio's scheduler after the configured latency. Drops and errors are injected according to
+ * the radio's LoopbackLinkConfig:
+ *  - A dropped read/write (with response) completes with GattStatus.Failure. The peripheral never sees it.
+ *  - A dropped write without response or notification still completes successfully (nothing acknowledges them) but is never delivered.
+ *  - An error completes with GattStatus.Error (133) and is not delivered.
+ * Notifications and writes without response are cut to mtu - 3 bytes, the same as a single ATT packet.
+ *
+ * LoopbackClientTransport and LoopbackServerTransport are the transports of a BLEClient and a BLEServer (BLETransport.kt).
+ * Servers advertise their services, clients scan, connect, discover the services, negotiate the MTU (up to the config's),
+ * read and write (long values with read blob and prepared write requests, like a stack does) and subscribe. The whole
+ * client and server run on a plain JVM this way (app/src/test). Only the android transports' own code needs a device.
+ *
+ * LoopbackConnection and LoopbackPeripheral are bare ends for running a GattOperationQueue or NotificationCoordinator on its
+ * own (core/src/test and the benchmarks). Their characteristic operands are UUIDs and descriptor operands are
+ * LoopbackDescriptors. Devices are LoopbackConnections.
+ */
+
+/**
+ * @param latencyMillis Time between a packet being sent and it arriving (0 delivers on the next scheduler pass)
+ * @param mtu The ATT MTU of every connection
+ * @param dropRate Chance (0 to 1) that a packet is lost
+ * @param errorRate Chance (0 to 1) that an operation fails with GattStatus.Error (133)
+ * @param rssi The RSSI scans report
+ * @param random Source of the drop/error decisions. Give it a seed for repeatable runs.
+ */
+class LoopbackLinkConfig(@Volatile var latencyMillis: Long = 0,
+                         @Volatile var mtu: Int = 23,
+                         @Volatile var dropRate: Double = 0.0,
+                         @Volatile var errorRate: Double = 0.0,
+                         @Volatile var rssi: Int = -50,
+                         val random: Random = Random())
+
+/**
+ * A descriptor operand
+ */
+data class LoopbackDescriptor(val characteristic: UUID, val uuid: UUID)
+
+interface LoopbackCentralListener {
+    fun onConnect(connection: LoopbackConnection){}
+    fun onDisconnect(connection: LoopbackConnection){}
+    /**
+     * An operation queued on the connection's queue completed
+     */
+    fun onOperationComplete(operation: DelayedGattOperation, success: Boolean){}
+    /**
+     * A notification/indication from the peripheral arrived (only sent if the characteristic's client config descriptor was written)
+     */
+    fun onNotification(connection: LoopbackConnection, characteristic: UUID, data: ByteArray?){}
+}
+
+interface LoopbackPeripheralListener {
+    fun onConnect(connection: LoopbackConnection){}
+    fun onDisconnect(connection: LoopbackConnection){}
+    /**
+     * A central wrote a characteristic or descriptor (already stored)
+     * @param attribute The characteristic's UUID or the LoopbackDescriptor
+     */
+    fun onWrite(connection: LoopbackConnection, attribute: Any, data: ByteArray?){}
+    /**
+     * Every notification of a set was sent (check its errorCount)
+     */
+    fun onNotificationSetSent(set: NotificationSet){}
+}
+
+class LoopbackRadio(val config: LoopbackLinkConfig = LoopbackLinkConfig()) {
+    /**
+     * Delivers every packet. One thread so packets sent with the same latency arrive in the order they were sent.
+     */
+    val scheduler: ScheduledExecutorService = ScheduledThreadPoolExecutor(1, ThreadFactory { runnable ->
+        val t = Thread(runnable, "QuickBLE-Loopback")
+        t.isDaemon = true
+        t
+    })
+
+    private val advertising = CopyOnWriteArrayList<LoopbackPeripheral>()
+    private val scanners = CopyOnWriteArrayList<(String, String?, Int) -> Unit>()
+    private val advertisingServers = CopyOnWriteArrayList<LoopbackServerTransport>()
+    private val clientScanners = CopyOnWriteArrayList<LoopbackClientTransport>()
+    private val addresses = AtomicInteger(0)
+
+    internal val CLIENT_CONFIG_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")
+
+    /**
+     * Possible fates of a packet
+     */
+    internal interface Delivery {
+        companion object {
+            val Delivered = 0
+            val Dropped = 1
+            val Error = 2
+        }
+    }
+
+    internal fun delivery(): Int{
+        val r = config.random.nextDouble()
+        if(r < config.dropRate)
+            return Delivery.Dropped
+        if(r < config.dropRate + config.errorRate)
+            return Delivery.Error
+        return Delivery.Delivered
+    }
+
+    /**
+     * Run a task after the link's latency
+     */
+    internal fun send(task: () -> Unit){
+        try{
+            scheduler.schedule(Runnable { task() }, config.latencyMillis, TimeUnit.MILLISECONDS)
+        }catch (e: Exception){
+            QuickBLELog.w("Loopback radio is shut down: ", e)
+        }
+    }
+
+    /**
+     * Cut a value to the size of one ATT packet
+     */
+    internal fun packet(data: ByteArray?): ByteArray?{
+        if(data == null)
+            return null
+        return Arrays.copyOf(data, Math.min(data.size, Math.max(config.mtu - 3, 0)))
+    }
+
+    /**
+     * Create a peripheral on this radio. Call start on it to make it connectable.
+     */
+    fun createPeripheral(address: String, name: String? = null): LoopbackPeripheral{
+        return LoopbackPeripheral(this, address.toUpperCase(), name)
+    }
+
+    internal fun advertise(peripheral: LoopbackPeripheral){
+        if(!advertising.addIfAbsent(peripheral))
+            return
+        scanners.forEach { report(it, peripheral) }
+    }
+
+    internal fun stopAdvertising(peripheral: LoopbackPeripheral){
+        advertising.remove(peripheral)
+    }
+
+    private fun report(scanner: (String, String?, Int) -> Unit, peripheral: LoopbackPeripheral){
+        if(delivery() == Delivery.Delivered)
+            send { if(scanners.contains(scanner)) scanner(peripheral.address, peripheral.name, config.rssi) }
+    }
+
+    /**
+     * Start scanning. Every advertising peripheral (and each one that starts advertising before stopScan) is reported once.
+     * Advertisements can be dropped.
+     * @param onDiscovered Called with the address, name and rssi of each peripheral found (on the scheduler thread)
+     */
+    fun scan(onDiscovered: (String, String?, Int) -> Unit){
+        scanners.add(onDiscovered)
+        advertising.forEach { report(onDiscovered, it) }
+    }
+
+    fun stopScan(onDiscovered: (String, String?, Int) -> Unit){
+        scanners.remove(onDiscovered)
+    }
+
+    /**
+     * Connect to an advertising peripheral. The listener's onConnect is called once the connection is up.
+     * @return The connection or null if no peripheral with the address is advertising
+     */
+    fun connect(address: String, listener: LoopbackCentralListener): LoopbackConnection?{
+        val peripheral = advertising.firstOrNull { it.address == address.toUpperCase() } ?: return null
+        val connection = LoopbackConnection(this, peripheral, listener)
+        send {
+            if(peripheral.isRunning && !connection.closed){
+                connection.isConnected = true
+                peripheral.connected(connection)
+                listener.onConnect(connection)
+            }
+        }
+        return connection
+    }
+
+    /**
+     * @return An address no other transport on this radio was given
+     */
+    fun nextAddress(): String{
+        val n = addresses.incrementAndGet()
+        return String.format("00:00:00:00:%02X:%02X", (n shr 8) and 0xFF, n and 0xFF)
+    }
+
+    internal fun advertise(server: LoopbackServerTransport){
+        if(!advertisingServers.addIfAbsent(server))
+            return
+        clientScanners.forEach { report(it, server) }
+    }
+
+    internal fun stopAdvertising(server: LoopbackServerTransport){
+        advertisingServers.remove(server)
+    }
+
+    private fun report(scanner: LoopbackClientTransport, server: LoopbackServerTransport){
+        if(delivery() == Delivery.Delivered)
+            send { if(clientScanners.contains(scanner)) scanner.advertisementArrived(server, config.rssi) }
+    }
+
+    /**
+     * Start a client's scan. Every advertising server (and each one that starts advertising before stopScan) is reported once.
+     */
+    internal fun startScan(scanner: LoopbackClientTransport){
+        if(!clientScanners.addIfAbsent(scanner))
+            return
+        advertisingServers.forEach { report(scanner, it) }
+    }
+
+    internal fun stopScan(scanner: LoopbackClientTransport){
+        clientScanners.remove(scanner)
+    }
+
+    /**
+     * Connect a client to an advertising server. The client is connected once the link's latency has passed.
+     * @return The client's end or null if no server with the address is advertising (or its GATT server is closed)
+     */
+    internal fun connect(client: LoopbackClientTransport, address: String, listener: GattClientListener): LoopbackGattClient?{
+        val transport = advertisingServers.firstOrNull { it.device.address == address } ?: return null
+        val server = transport.server
+        if(server == null || !server.isRunning)
+            return null
+        val connection = LoopbackGattClient(this, server, transport.device, client.device, listener)
+        send { server.connect(connection) }
+        return connection
+    }
+
+    /**
+     * Stop the scheduler. Packets not delivered yet are lost.
+     */
+    fun shutdown(){
+        advertising.forEach { it.stop() }
+        scanners.clear()
+        advertisingServers.forEach { it.server?.close() }
+        advertisingServers.clear()
+        clientScanners.clear()
+        scheduler.shutdownNow()
+    }
+}
+
+/**
+ * The GATT server side of the loopback link. Notifications are sent through its NotificationCoordinator.
+ */
+class LoopbackPeripheral internal constructor(val radio: LoopbackRadio, val address: String, val name: String?): GattServerTransport {
+    @Volatile
+    var listener: LoopbackPeripheralListener? = null
+
+    val notificationCoordinator = NotificationCoordinator(this, { listener?.onNotificationSetSent(it) })
+
+    // Characteristic values by UUID and descriptor values by LoopbackDescriptor
+    private val values = ConcurrentHashMap<Any, ByteArray>()
+    private val connections = CopyOnWriteArrayList<LoopbackConnection>()
+
+    @Volatile
+    override var isRunning = false
+        private set
+
+    /**
+     * Add a characteristic (with a client config descriptor so centrals can subscribe)
+     */
+    fun addCharacteristic(uuid: UUID, value: ByteArray = ByteArray(0)){
+        values[uuid] = value
+        values[LoopbackDescriptor(uuid, radio.CLIENT_CONFIG_DESCRIPTOR)] = ByteArray(2)
+    }
+
+    fun addDescriptor(characteristic: UUID, uuid: UUID, value: ByteArray = ByteArray(0)){
+        values[LoopbackDescriptor(characteristic, uuid)] = value
+    }
+
+    /**
+     * @param attribute The characteristic's UUID or a LoopbackDescriptor
+     * @return A copy of the stored value or null if there is no such attribute
+     */
+    fun getValue(attribute: Any): ByteArray?{
+        val value = values[attribute] ?: return null
+        return Arrays.copyOf(value, value.size)
+    }
+
+    /**
+     * Change a value without notifying
+     * @return Does the attribute exist
+     */
+    fun setValue(attribute: Any, value: ByteArray?): Boolean{
+        if(!values.containsKey(attribute))
+            return false
+        values[attribute] = if(value == null) ByteArray(0) else Arrays.copyOf(value, value.size)
+        return true
+    }
+
+    /**
+     * Set a characteristic's value and notify every connected central
+     */
+    fun notify(characteristic: UUID, data: ByteArray?){
+        setValue(characteristic, data)
+        notificationCoordinator.queueNotifications(NotificationSet(characteristic, connections.toTypedArray(), data))
+    }
+
+    /**
+     * @return The centrals currently connected
+     */
+    fun getConnections(): List<LoopbackConnection> = connections
+
+    fun start(){
+        isRunning = true
+        radio.advertise(this)
+    }
+
+    fun stop(){
+        isRunning = false
+        radio.stopAdvertising(this)
+        connections.forEach { it.disconnect() }
+        notificationCoordinator.serverStopped()
+    }
+
+    internal fun connected(connection: LoopbackConnection){
+        connections.add(connection)
+        listener?.onConnect(connection)
+    }
+
+    internal fun disconnected(connection: LoopbackConnection){
+        if(!connections.remove(connection))
+            return
+        notificationCoordinator.deviceDisconnected(connection)
+        listener?.onDisconnect(connection)
+    }
+
+    /**
+     * Handle a write that arrived from a central
+     * @return The status sent back
+     */
+    internal fun write(connection: LoopbackConnection, attribute: Any, data: ByteArray?): Int{
+        if(!setValue(attribute, data))
+            return GattStatus.Failure
+        listener?.onWrite(connection, attribute, data)
+        return GattStatus.Success
+    }
+
+    override fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean{
+        val connection = device as? LoopbackConnection ?: return false
+        if(!isRunning || !connection.isConnected)
+            return false
+        val packet = radio.packet(data)
+        val delivery = radio.delivery()
+        radio.send {
+            if(delivery == LoopbackRadio.Delivery.Delivered)
+                connection.notificationArrived(characteristic as UUID, packet)
+            notificationCoordinator.onNotificationSent(connection, if(delivery == LoopbackRadio.Delivery.Error) GattStatus.Error else GattStatus.Success)
+        }
+        return true
+    }
+}
+
+/**
+ * The GATT client side of a loopback link. Operations are performed through its GattOperationQueue.
+ */
+class LoopbackConnection internal constructor(val radio: LoopbackRadio, val peripheral: LoopbackPeripheral,
+                                              val listener: LoopbackCentralListener): GattClientTransport {
+    @Volatile
+    override var isConnected = false
+        internal set
+    @Volatile
+    internal var closed = false
+
+    val gattOperationQueue = GattOperationQueue(this, { operation, success -> listener.onOperationComplete(operation, success) })
+
+    override fun startOperation(operation: DelayedGattOperation): Boolean{
+        if(!isConnected)
+            return false
+        // A characteristic's UUID or a LoopbackDescriptor
+        val attribute = operation.operand
+        val data = if(operation.noResponse) radio.packet(operation.data) else operation.data
+        val delivery = radio.delivery()
+        radio.send {
+            if(!isConnected)
+                return@send
+            if(delivery == LoopbackRadio.Delivery.Error){
+                gattOperationQueue.onOperationComplete(null, GattStatus.Error)
+            }else if(delivery == LoopbackRadio.Delivery.Dropped){
+                // Nothing acknowledges a write without response so the central can not tell it was lost
+                gattOperationQueue.onOperationComplete(null, if(operation.noResponse) GattStatus.Success else GattStatus.Failure)
+            }else if(operation.operationType == OperationType.Read){
+                val value = peripheral.getValue(attribute)
+                gattOperationQueue.onOperationComplete(value, if(value == null) GattStatus.Failure else GattStatus.Success)
+            }else{
+                gattOperationQueue.onOperationComplete(null, peripheral.write(this, attribute, data))
+            }
+        }
+        return true
+    }
+
+    internal fun notificationArrived(characteristic: UUID, data: ByteArray?){
+        if(!isConnected)
+            return
+        // Only delivered when subscribed (client config descriptor's first byte set). The descriptor is shared by all centrals.
+        val config = peripheral.getValue(LoopbackDescriptor(characteristic, radio.CLIENT_CONFIG_DESCRIPTOR))
+        if(config != null && config.isNotEmpty() && config[0].toInt() != 0)
+            listener.onNotification(this, characteristic, data)
+    }
+
+    fun disconnect(){
+        closed = true
+        if(!isConnected)
+            return
+        isConnected = false
+        gattOperationQueue.clientDisconnected()
+        peripheral.disconnected(this)
+        listener.onDisconnect(this)
+    }
+}
+
+/**
+ * A client or server on a LoopbackRadio
+ */
+data class LoopbackDevice(override val address: String, override val name: String?): RemoteDevice
+
+/**
+ * A BLEClient's transport on a LoopbackRadio. Also its scanner and connector. The radio is always on.
+ * @param eventLoop Runs the client's timers and delegate calls (the radio's scheduler by default)
+ */
+class LoopbackClientTransport(val radio: LoopbackRadio, address: String = radio.nextAddress(), name: String? = null,
+                              override val eventLoop: EventLoop = ExecutorEventLoop(radio.scheduler)): BLEClientTransport, BLEScanner, BLEConnector {
+    val device = LoopbackDevice(address.toUpperCase(), name)
+
+    @Volatile
+    private var listener: BLEScanListener? = null
+    @Volatile
+    private var services: List<UUID> = emptyList()
+
+    override val scanner: BLEScanner
+        get() = this
+    override val connector: BLEConnector
+        get() = this
+    override val isEnabled: Boolean
+        get() = true
+    override val supportsScanMode: Boolean
+        get() = false
+
+    override fun checkBluetooth(): Int{
+        return BtError.None
+    }
+
+    override fun addPowerListener(listener: (Boolean) -> Unit){
+    }
+
+    override fun removePowerListener(listener: (Boolean) -> Unit){
+    }
+
+    override fun startScan(services: List<UUID>, mode: Int, reportDelay: Long, listener: BLEScanListener): Boolean{
+        this.services = services
+        this.listener = listener
+        radio.startScan(this)
+        // Never batched, the client batches in software
+        return false
+    }
+
+    override fun stopScan(){
+        radio.stopScan(this)
+    }
+
+    internal fun advertisementArrived(server: LoopbackServerTransport, rssi: Int){
+        val services = services
+        if(services.isNotEmpty() && services.none { server.advertisedServices.contains(it) })
+            return
+        listener?.onAdvertisement(server.device, rssi, System.nanoTime())
+    }
+
+    override fun connect(device: RemoteDevice, listener: GattClientListener): GattClient?{
+        return radio.connect(this, device.address, listener)
+    }
+}
+
+/**
+ * A BLEServer's transport on a LoopbackRadio. Also its advertiser. The radio is always on.
+ * @param eventLoop Runs the server's delegate calls (the radio's scheduler by default)
+ */
+class LoopbackServerTransport(val radio: LoopbackRadio, address: String = radio.nextAddress(), name: String? = null,
+                              override val eventLoop: EventLoop = ExecutorEventLoop(radio.scheduler)): BLEServerTransport, BLEAdvertiser {
+    val device = LoopbackDevice(address.toUpperCase(), name)
+
+    /**
+     * The GATT server that is open (null if there is none)
+     */
+    @Volatile
+    var server: LoopbackGattServer? = null
+        private set
+    @Volatile
+    internal var advertisedServices: List<UUID> = emptyList()
+        private set
+
+    override val advertiser: BLEAdvertiser
+        get() = this
+    override val isEnabled: Boolean
+        get() = true
+
+    override fun checkBluetooth(): Int{
+        return BtError.None
+    }
+
+    override fun openServer(listener: GattServerListener): GattServer?{
+        server?.close()
+        val server = LoopbackGattServer(radio, listener)
+        this.server = server
+        return server
+    }
+
+    override fun addPowerListener(listener: (Boolean) -> Unit){
+    }
+
+    override fun removePowerListener(listener: (Boolean) -> Unit){
+    }
+
+    override fun startAdvertising(options: AdvertiseOptions, callback: (Int) -> Unit){
+        advertisedServices = options.services
+        radio.advertise(this)
+        radio.send { callback(AdvertiseError.None) }
+    }
+
+    override fun stopAdvertising(){
+        radio.stopAdvertising(this)
+    }
+}
+
+/**
+ * The server end of loopback links. Requests from clients are given to the listener and answered with sendResponse.
+ */
+class LoopbackGattServer internal constructor(val radio: LoopbackRadio, internal val listener: GattServerListener): GattServer {
+    // Services as they were added (clients discover copies)
+    internal val services = CopyOnWriteArrayList<GattService>()
+    private val connections = ConcurrentHashMap<RemoteDevice, LoopbackGattClient>()
+    private val requestIds = AtomicInteger(0)
+    // Requests waiting for sendResponse by request id and what to do with their response
+    private val pending = ConcurrentHashMap<Int, (Int, ByteArray?) -> Unit>()
+
+    @Volatile
+    override var isRunning = true
+        private set
+
+    override fun addService(service: GattService): Boolean{
+        if(!isRunning)
+            return false
+        services.add(service)
+        return true
+    }
+
+    /**
+     * Connect a client that asked to connect (on the radio's scheduler). A client that gave up first stays disconnected.
+     */
+    internal fun connect(client: LoopbackGattClient){
+        if(!isRunning){
+            // Reported to the client as a failed attempt
+            client.linkDown()
+            return
+        }
+        if(!client.linkUp())
+            return
+        connections[client.clientDevice] = client
+        listener.onConnectionStateChange(client.clientDevice, GattStatus.Success, true)
+        client.listener.onConnectionStateChange(client, true)
+    }
+
+    /**
+     * A client's link went down (on either end)
+     * @param wasConnected Was the client connected (if not the server never saw it)
+     */
+    internal fun disconnected(client: LoopbackGattClient, wasConnected: Boolean){
+        if(!connections.remove(client.clientDevice, client) || !wasConnected)
+            return
+        radio.send {
+            if(isRunning)
+                listener.onConnectionStateChange(client.clientDevice, GattStatus.Success, false)
+        }
+    }
+
+    /**
+     * Give a request from a client to the listener
+     * @param onResponse Gets the response's status and value (null if no response is expected)
+     * @param deliver Calls the listener with the request id
+     */
+    internal fun request(onResponse: ((Int, ByteArray?) -> Unit)?, deliver: (Int) -> Unit){
+        if(!isRunning)
+            return
+        val requestId = requestIds.incrementAndGet()
+        if(onResponse != null)
+            pending[requestId] = onResponse
+        deliver(requestId)
+    }
+
+    override fun sendResponse(device: RemoteDevice, requestId: Int, status: Int, offset: Int, value: ByteArray?): Boolean{
+        val onResponse = pending.remove(requestId) ?: return false
+        val response = if(value == null) null else Arrays.copyOf(value, value.size)
+        radio.send { onResponse(status, response) }
+        return true
+    }
+
+    override fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean{
+        val client = connections[device as RemoteDevice? ?: return false] ?: return false
+        if(!isRunning || !client.isConnected)
+            return false
+        val uuid = (characteristic as GattCharacteristic).uuid
+        val packet = client.packet(data ?: ByteArray(0))
+        val delivery = radio.delivery()
+        radio.send {
+            if(delivery == LoopbackRadio.Delivery.Delivered)
+                client.notificationArrived(uuid, packet)
+            if(isRunning)
+                listener.onNotificationSent(client.clientDevice, if(delivery == LoopbackRadio.Delivery.Error) GattStatus.Error else GattStatus.Success)
+        }
+        return true
+    }
+
+    override fun cancelConnection(device: RemoteDevice){
+        connections[device]?.linkDown()
+    }
+
+    override fun close(){
+        isRunning = false
+        connections.values.forEach { it.linkDown() }
+        pending.clear()
+    }
+}
+
+/**
+ * The client end of a loopback link
+ * @param device The server
+ * @param clientDevice The client (as the server sees it)
+ */
+class LoopbackGattClient internal constructor(val radio: LoopbackRadio, private val server: LoopbackGattServer,
+                                              override val device: RemoteDevice, val clientDevice: RemoteDevice,
+                                              internal val listener: GattClientListener): GattClient {
+    @Volatile
+    override var isConnected = false
+        private set
+    /**
+     * The connection's MTU
+     */
+    @Volatile
+    var mtu = 23
+        private set
+    // Set once the link is down (it is never brought up again) and once the client is closed (no more listener calls)
+    private var down = false
+    @Volatile
+    private var closed = false
+    // Characteristics passing notifications to the listener
+    private val notifying = Collections.newSetFromMap(ConcurrentHashMap<UUID, Boolean>())
+
+    @Synchronized
+    internal fun linkUp(): Boolean{
+        if(down)
+            return false
+        isConnected = true
+        return true
+    }
+
+    /**
+     * Take the link down. Each end that is still open is told after the link's latency.
+     */
+    internal fun linkDown(){
+        val wasConnected = synchronized(this){
+            if(down)
+                return
+            down = true
+            val connected = isConnected
+            isConnected = false
+            connected
+        }
+        server.disconnected(this, wasConnected)
+        radio.send {
+            if(!closed)
+                listener.onConnectionStateChange(this, false)
+        }
+    }
+
+    /**
+     * Cut a value to one packet
+     */
+    internal fun packet(data: ByteArray): ByteArray{
+        return Arrays.copyOf(data, Math.min(data.size, mtu - 3))
+    }
+
+    internal fun notificationArrived(characteristic: UUID, value: ByteArray){
+        if(isConnected && !closed && notifying.contains(characteristic))
+            listener.onNotification(this, characteristic, value)
+    }
+
+    private fun complete(data: ByteArray?, status: Int){
+        if(isConnected && !closed)
+            listener.onOperationComplete(this, data, status)
+    }
+
+    /**
+     * Send a request to the server. Responses that arrive after the link went down are ignored.
+     */
+    private fun request(onResponse: ((Int, ByteArray?) -> Unit)?, deliver: (Int) -> Unit){
+        val respond: ((Int, ByteArray?) -> Unit)? = if(onResponse == null) null else { status, value ->
+            if(isConnected)
+                onResponse(status, value)
+        }
+        server.request(respond, deliver)
+    }
+
+    override fun startOperation(operation: DelayedGattOperation): Boolean{
+        if(!isConnected)
+            return false
+        val attribute = operation.operand as GattAttribute
+        val data = operation.data ?: ByteArray(0)
+        // The radio carries its own copy
+        val value = Arrays.copyOf(data, data.size)
+        val delivery = radio.delivery()
+        radio.send {
+            if(!isConnected)
+                return@send
+            if(delivery == LoopbackRadio.Delivery.Error){
+                complete(null, GattStatus.Error)
+            }else if(delivery == LoopbackRadio.Delivery.Dropped){
+                // Nothing acknowledges a write without response so the client can not tell it was lost
+                complete(null, if(operation.noResponse) GattStatus.Success else GattStatus.Failure)
+            }else if(operation.operationType == OperationType.Read){
+                read(attribute, ByteArrayOutputStream())
+            }else if(operation.noResponse){
+                write(attribute, packet(value), false, 0, null)
+                complete(null, GattStatus.Success)
+            }else if(value.size <= mtu - 3){
+                write(attribute, value, false, 0) { status, _ -> complete(null, status) }
+            }else{
+                prepare(attribute, value, 0)
+            }
+        }
+        return true
+    }
+
+    /**
+     * Read a value. While a response fills the packet (mtu - 1 bytes) the rest is read with a read blob request.
+     */
+    private fun read(attribute: GattAttribute, received: ByteArrayOutputStream){
+        val offset = received.size()
+        request({ status, value ->
+            if(status != GattStatus.Success){
+                complete(null, status)
+            }else{
+                val part = value ?: ByteArray(0)
+                received.write(part, 0, part.size)
+                if(part.size == mtu - 1)
+                    read(attribute, received)
+                else
+                    complete(received.toByteArray(), status)
+            }
+        }){ requestId ->
+            if(attribute is GattDescriptor)
+                server.listener.onDescriptorReadRequest(clientDevice, requestId, offset, attribute.uuid)
+            else
+                server.listener.onCharacteristicReadRequest(clientDevice, requestId, offset, attribute.uuid)
+        }
+    }
+
+    private fun write(attribute: GattAttribute, value: ByteArray, prepared: Boolean, offset: Int, onResponse: ((Int, ByteArray?) -> Unit)?){
+        request(onResponse){ requestId ->
+            if(attribute is GattDescriptor)
+                server.listener.onDescriptorWriteRequest(clientDevice, requestId, attribute.uuid, prepared, onResponse != null, offset, value)
+            else
+                server.listener.onCharacteristicWriteRequest(clientDevice, requestId, attribute.uuid, prepared, onResponse != null, offset, value)
+        }
+    }
+
+    /**
+     * Write a value longer than one packet as prepared writes of mtu - 5 bytes and then execute them. A failed chunk cancels
+     * the write.
+     */
+    private fun prepare(attribute: GattAttribute, value: ByteArray, offset: Int){
+        val end = Math.min(value.size, offset + mtu - 5)
+        write(attribute, Arrays.copyOfRange(value, offset, end), true, offset) { status, _ ->
+            if(status != GattStatus.Success)
+                execute(false) { complete(null, status) }
+            else if(end < value.size)
+                prepare(attribute, value, end)
+            else
+                execute(true) { complete(null, it) }
+        }
+    }
+
+    private fun execute(execute: Boolean, onResponse: (Int) -> Unit){
+        request({ status, _ -> onResponse(status) }){ requestId ->
+            server.listener.onExecuteWrite(clientDevice, requestId, execute)
+        }
+    }
+
+    override fun requestMtu(mtu: Int): Boolean{
+        if(!isConnected)
+            return false
+        radio.send {
+            if(isConnected){
+                this.mtu = Math.min(mtu, radio.config.mtu)
+                if(server.isRunning)
+                    server.listener.onMtuChanged(clientDevice, this.mtu)
+                if(!closed)
+                    listener.onMtuChanged(this, this.mtu, GattStatus.Success)
+            }
+        }
+        return true
+    }
+
+    override fun discoverServices(): Boolean{
+        if(!isConnected)
+            return false
+        radio.send {
+            if(isConnected && !closed)
+                listener.onServicesDiscovered(this, discover(), GattStatus.Success)
+        }
+        return true
+    }
+
+    /**
+     * Copy the server's services. A copy's platform object is the server's attribute.
+     */
+    private fun discover(): List<GattService>{
+        val copies = IdentityHashMap<GattService, GattService>()
+        return server.services.map { copyOf(it, copies) }
+    }
+
+    private fun copyOf(service: GattService, copies: IdentityHashMap<GattService, GattService>): GattService{
+        val existing = copies[service]
+        if(existing != null)
+            return existing
+        val s = GattService(service.uuid, service.primary)
+        s.platform = service
+        copies[service] = s
+        service.includedServices.forEach { s.includedServices.add(copyOf(it, copies)) }
+        service.characteristics.forEach {
+            val char = GattCharacteristic(it.uuid, it.properties, it.permissions)
+            char.platform = it
+            it.descriptors.forEach { d ->
+                val desc = GattDescriptor(d.uuid, d.permissions)
+                desc.platform = d
+                char.descriptors.add(desc)
+            }
+            s.characteristics.add(char)
+        }
+        return s
+    }
+
+    override fun setNotification(characteristic: GattCharacteristic, enable: Boolean): Boolean{
+        if(enable)
+            notifying.add(characteristic.uuid)
+        else
+            notifying.remove(characteristic.uuid)
+        return true
+    }
+
+    override fun requestProfile(profile: Int): Boolean{
+        // The loopback has no PHY
+        return false
+    }
+
+    override fun disconnect(){
+        linkDown()
+    }
+
+    override fun close(){
+        closed = true
+        linkDown()
+    }
+}
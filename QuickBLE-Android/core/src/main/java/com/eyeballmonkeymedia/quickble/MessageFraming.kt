@@ -0,0 +1,172 @@
+package com.mb3hel.quickble
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Framed messages let a value larger than one ATT payload (MTU - 3 bytes) be sent on a characteristic. The message is split
+ * into fragments that each fit in one write/notification and the receiver reassembles them.
+ * Each fragment starts with a one byte header: START (first fragment), END (last fragment) and a 6 bit sequence number
+ * (fragment index mod 64) used to detect lost fragments. The first fragment also carries the message's total size
+ * (4 bytes, big endian) after the header. A message that fits in one fragment has both START and END set.
+ * Fragments of a characteristic must arrive in order, which writes with response (client) and the notification lanes (server)
+ * guarantee.
+ */
+object MessageFraming {
+    const val START = 0x80
+    const val END = 0x40
+    const val SEQUENCE_MASK = 0x3F
+    const val HEADER_SIZE = 1
+    const val START_HEADER_SIZE = HEADER_SIZE + 4
+    /**
+     * MTU before negotiation (23 bytes, 20 of which are the value)
+     */
+    const val DEFAULT_MTU = 23
+    /**
+     * Largest MTU (512 byte values)
+     */
+    const val MAX_MTU = 517
+    /**
+     * Bytes of the MTU used by the ATT opcode and handle
+     */
+    const val ATT_HEADER_SIZE = 3
+    /**
+     * Default limit of a message's size (both sending and receiving)
+     */
+    const val DEFAULT_MAX_MESSAGE_SIZE = 512 * 1024
+
+    /**
+     * @return The largest value that fits in one write/notification with an MTU
+     */
+    fun fragmentSize(mtu: Int): Int{
+        return Math.max(mtu, DEFAULT_MTU) - ATT_HEADER_SIZE
+    }
+
+    /**
+     * Split a message into fragments
+     * @param message The message
+     * @param fragmentSize The size of each fragment (including its header, see fragmentSize(mtu))
+     */
+    fun fragment(message: ByteArray, fragmentSize: Int): Array<ByteArray>{
+        if(fragmentSize <= START_HEADER_SIZE)
+            throw IllegalArgumentException("Fragment size $fragmentSize is too small")
+        val firstPayload = Math.min(message.size, fragmentSize - START_HEADER_SIZE)
+        val rest = message.size - firstPayload
+        val payload = fragmentSize - HEADER_SIZE
+        val count = 1 + (rest + payload - 1) / payload
+        var offset = 0
+        return Array(count) { i ->
+            val size = if(i == 0) firstPayload else Math.min(payload, message.size - offset)
+            val headerSize = if(i == 0) START_HEADER_SIZE else HEADER_SIZE
+            val fragment = ByteArray(headerSize + size)
+            var flags = i and SEQUENCE_MASK
+            if(i == 0)
+                flags = flags or START
+            if(i == count - 1)
+                flags = flags or END
+            fragment[0] = flags.toByte()
+            if(i == 0){
+                fragment[1] = (message.size ushr 24).toByte()
+                fragment[2] = (message.size ushr 16).toByte()
+                fragment[3] = (message.size ushr 8).toByte()
+                fragment[4] = message.size.toByte()
+            }
+            System.arraycopy(message, offset, fragment, headerSize, size)
+            offset += size
+            fragment
+        }
+    }
+}
+
+/**
+ * Reassembles the fragments of messages sent on one characteristic by one device. Not thread safe: fragments of a
+ * characteristic arrive one at a time (on the binder thread for android).
+ * @param maxMessageSize Messages larger than this are dropped
+ */
+class MessageAssembler(val maxMessageSize: Int = MessageFraming.DEFAULT_MAX_MESSAGE_SIZE) {
+    private var buffer: ByteArray? = null
+    private var received = 0
+    private var nextSequence = 0
+
+    /**
+     * Number of messages dropped (lost or out of order fragments, too large, or a new message started before the last ended)
+     */
+    var dropped = 0L
+        private set
+
+    /**
+     * Add a fragment
+     * @return The message if this was its last fragment, otherwise null
+     */
+    fun onFragment(fragment: ByteArray): ByteArray?{
+        if(fragment.isEmpty())
+            return null
+        val flags = fragment[0].toInt() and 0xFF
+        val sequence = flags and MessageFraming.SEQUENCE_MASK
+        var headerSize = MessageFraming.HEADER_SIZE
+        if(flags and MessageFraming.START != 0){
+            if(buffer != null)
+                dropped++
+            buffer = null
+            if(fragment.size < MessageFraming.START_HEADER_SIZE || sequence != 0){
+                dropped++
+                return null
+            }
+            val size = ((fragment[1].toInt() and 0xFF) shl 24) or ((fragment[2].toInt() and 0xFF) shl 16) or
+                    ((fragment[3].toInt() and 0xFF) shl 8) or (fragment[4].toInt() and 0xFF)
+            if(size < 0 || size > maxMessageSize){
+                dropped++
+                return null
+            }
+            buffer = ByteArray(size)
+            received = 0
+            nextSequence = 0
+            headerSize = MessageFraming.START_HEADER_SIZE
+        }
+        val message = buffer ?: return null
+        val payload = fragment.size - headerSize
+        if(sequence != nextSequence || received + payload > message.size){
+            // A fragment was lost. Drop the message and wait for the next START.
+            buffer = null
+            dropped++
+            return null
+        }
+        System.arraycopy(fragment, headerSize, message, received, payload)
+        received += payload
+        nextSequence = (nextSequence + 1) and MessageFraming.SEQUENCE_MASK
+        if(flags and MessageFraming.END == 0)
+            return null
+        buffer = null
+        if(received != message.size){
+            dropped++
+            return null
+        }
+        return message
+    }
+
+    fun reset(){
+        buffer = null
+    }
+}
+
+/**
+ * A message being sent as fragments. Each fragment's write/notification set references it and the delegate is told once
+ * when every fragment has finished.
+ * @param name The canonical UUID string of the characteristic
+ * @param fragments Number of fragments
+ */
+class OutgoingMessage(val name: String, val fragments: Int) {
+    private val remaining = AtomicInteger(fragments)
+    @Volatile
+    var failed = false
+        private set
+
+    /**
+     * Record a fragment finishing
+     * @return Was it the last fragment
+     */
+    fun fragmentDone(success: Boolean): Boolean{
+        if(!success)
+            failed = true
+        return remaining.decrementAndGet() == 0
+    }
+}
@@ -0,0 +1,228 @@
+package com.mb3hel.quickble
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Runtime metrics of a BLEClient or BLEServer (and the GattOperationQueue/NotificationCoordinator they use).
+ * Recording happens on the GATT hot paths so it only uses atomic counters and preallocated histograms (no locks and no
+ * allocation per event). Call snapshot to read the metrics. Only snapshots allocate.
+ */
+
+/**
+ * Latency histogram with fixed power of two buckets. Bucket i counts values (in nanoseconds) from 2^(i-1) up to (not
+ * including) 2^i. Percentiles are estimated as the upper bound of the bucket they fall in (at most 2x the real value).
+ */
+class LatencyHistogram {
+    private val buckets = AtomicLongArray(BUCKETS)
+    private val count = AtomicLong()
+    private val sum = AtomicLong()
+    private val max = AtomicLong()
+
+    fun record(nanos: Long){
+        val value = if(nanos < 0) 0 else nanos
+        buckets.incrementAndGet(64 - java.lang.Long.numberOfLeadingZeros(value))
+        count.incrementAndGet()
+        sum.addAndGet(value)
+        var current = max.get()
+        while(value > current && !max.compareAndSet(current, value))
+            current = max.get()
+    }
+
+    fun snapshot(): HistogramSnapshot{
+        val counts = LongArray(BUCKETS)
+        for(i in counts.indices)
+            counts[i] = buckets.get(i)
+        return HistogramSnapshot(count.get(), sum.get(), max.get(), counts)
+    }
+
+    fun reset(){
+        for(i in 0 until BUCKETS)
+            buckets.set(i, 0)
+        count.set(0)
+        sum.set(0)
+        max.set(0)
+    }
+
+    companion object {
+        const val BUCKETS = 64
+    }
+}
+
+/**
+ * The values of a LatencyHistogram at one point in time (all times in nanoseconds)
+ */
+class HistogramSnapshot(val count: Long, val sumNanos: Long, val maxNanos: Long, private val buckets: LongArray) {
+    val meanNanos: Long
+        get() = if(count == 0L) 0 else sumNanos / count
+
+    /**
+     * Estimate a percentile
+     * @param percentile The percentile (0 to 100, ex. 99.9)
+     * @return The estimated value or 0 if nothing was recorded
+     */
+    fun percentile(percentile: Double): Long{
+        // Bucket counts and count are read separately so use the bucket total
+        val total = buckets.sum()
+        if(total == 0L)
+            return 0
+        val rank = Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0).toLong()
+        var seen = 0L
+        for(i in buckets.indices){
+            seen += buckets[i]
+            if(seen >= Math.max(rank, 1L)){
+                val upper = if(i == 0) 0L else if(i >= 63) Long.MAX_VALUE else (1L shl i) - 1
+                return Math.min(upper, maxNanos)
+            }
+        }
+        return maxNanos
+    }
+
+    override fun toString(): String{
+        return "count=$count mean=${meanNanos}ns p50=${percentile(50.0)}ns p99=${percentile(99.0)}ns max=${maxNanos}ns"
+    }
+}
+
+/**
+ * Latencies of one type of GATT operation
+ * @param queued Time from being queued to the GATT call (waiting in the GattOperationQueue)
+ * @param gatt Time from the GATT call to its callback
+ * @param delivery Time from the callback to the delegate being called
+ */
+class OperationLatency(val queued: HistogramSnapshot, val gatt: HistogramSnapshot, val delivery: HistogramSnapshot)
+
+/**
+ * @param operations Latencies by operation type (CharacteristicRead, CharacteristicWrite, DescriptorRead, DescriptorWrite)
+ * @param notificationRoundTrip Time from a notification set being queued until all of its notifications were sent
+ * @param failures Operations/notifications that failed (including gattErrors)
+ * @param gattErrors Operations/notifications that failed with status 133 (GATT_ERROR)
+ * @param mainThreadBacklog Delegate callbacks posted to the main thread that have not run yet
+ * @param bytesIn Bytes received by characteristic (canonical UUID string)
+ * @param bytesOut Bytes sent by characteristic (canonical UUID string)
+ */
+class BLEMetricsSnapshot(val timeMillis: Long,
+                         val queueDepth: Int,
+                         val peakQueueDepth: Int,
+                         val operations: Map<String, OperationLatency>,
+                         val notificationRoundTrip: HistogramSnapshot,
+                         val failures: Long,
+                         val gattErrors: Long,
+                         val mainThreadBacklog: Int,
+                         val peakMainThreadBacklog: Int,
+                         val bytesIn: Map<String, Long>,
+                         val bytesOut: Map<String, Long>)
+
+interface BLEMetricsListener {
+    fun onMetrics(metrics: BLEMetricsSnapshot)
+}
+
+class BLEMetrics {
+    private val queueDepth = AtomicInteger()
+    private val peakQueueDepth = AtomicInteger()
+    private val queued = Array(OPERATION_NAMES.size) { LatencyHistogram() }
+    private val gatt = Array(OPERATION_NAMES.size) { LatencyHistogram() }
+    private val delivery = Array(OPERATION_NAMES.size) { LatencyHistogram() }
+    private val notificationRoundTrip = LatencyHistogram()
+    private val failures = AtomicLong()
+    private val gattErrors = AtomicLong()
+    private val mainThreadBacklog = AtomicInteger()
+    private val peakMainThreadBacklog = AtomicInteger()
+
+    /**
+     * Record the number of operations (client) or notification sets (server) waiting
+     */
+    fun recordQueueDepth(depth: Int){
+        queueDepth.set(depth)
+        raise(peakQueueDepth, depth)
+    }
+
+    /**
+     * Record the GATT call being made for an operation (sets its startedAt time)
+     */
+    fun recordStarted(operation: DelayedGattOperation){
+        operation.startedAt = System.nanoTime()
+        queued[index(operation)].record(operation.startedAt - operation.queuedAt)
+    }
+
+    /**
+     * Record the callback for an operation (sets its completedAt time)
+     * @param completedAt When the callback was called (System.nanoTime)
+     */
+    fun recordCompleted(operation: DelayedGattOperation, status: Int, completedAt: Long){
+        operation.completedAt = completedAt
+        if(operation.startedAt != 0L)
+            gatt[index(operation)].record(operation.completedAt - operation.startedAt)
+        recordStatus(status)
+    }
+
+    /**
+     * Record the delegate being called for an operation
+     */
+    fun recordDelivered(operation: DelayedGattOperation){
+        if(operation.completedAt != 0L)
+            delivery[index(operation)].record(System.nanoTime() - operation.completedAt)
+    }
+
+    fun recordNotificationSetSent(set: NotificationSet){
+        notificationRoundTrip.record(System.nanoTime() - set.queuedAt)
+    }
+
+    fun recordStatus(status: Int){
+        if(status == GattStatus.Success)
+            return
+        failures.incrementAndGet()
+        if(status == GattStatus.Error)
+            gattErrors.incrementAndGet()
+    }
+
+    fun mainThreadPosted(){
+        raise(peakMainThreadBacklog, mainThreadBacklog.incrementAndGet())
+    }
+
+    fun mainThreadRan(){
+        mainThreadBacklog.decrementAndGet()
+    }
+
+    /**
+     * @param bytesIn Bytes received by characteristic (counted by the client/server)
+     * @param bytesOut Bytes sent by characteristic (counted by the client/server)
+     */
+    fun snapshot(bytesIn: Map<String, Long> = emptyMap(), bytesOut: Map<String, Long> = emptyMap()): BLEMetricsSnapshot{
+        val operations = LinkedHashMap<String, OperationLatency>()
+        for(i in OPERATION_NAMES.indices)
+            operations[OPERATION_NAMES[i]] = OperationLatency(queued[i].snapshot(), gatt[i].snapshot(), delivery[i].snapshot())
+        return BLEMetricsSnapshot(System.currentTimeMillis(), queueDepth.get(), peakQueueDepth.get(), operations,
+                notificationRoundTrip.snapshot(), failures.get(), gattErrors.get(), mainThreadBacklog.get(),
+                peakMainThreadBacklog.get(), bytesIn, bytesOut)
+    }
+
+    /**
+     * Clear the histograms, counters and peaks (current queue depth and main thread backlog are kept)
+     */
+    fun reset(){
+        peakQueueDepth.set(queueDepth.get())
+        peakMainThreadBacklog.set(mainThreadBacklog.get())
+        queued.forEach { it.reset() }
+        gatt.forEach { it.reset() }
+        delivery.forEach { it.reset() }
+        notificationRoundTrip.reset()
+        failures.set(0)
+        gattErrors.set(0)
+    }
+
+    private fun index(operation: DelayedGattOperation): Int{
+        return operation.operandType.ordinal * 2 + operation.operationType.ordinal
+    }
+
+    private fun raise(peak: AtomicInteger, value: Int){
+        var current = peak.get()
+        while(value > current && !peak.compareAndSet(current, value))
+            current = peak.get()
+    }
+
+    companion object {
+        // Indexed by OperandType.ordinal * 2 + OperationType.ordinal
+        val OPERATION_NAMES = arrayOf("CharacteristicRead", "CharacteristicWrite", "DescriptorRead", "DescriptorWrite")
+    }
+}
@@ -0,0 +1,441 @@
+package com.mb3hel.quickble
+
+import java.lang.Exception
+import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Android gatt server callback has onNotificationSent callback. Need to wait until it is called before sending another notification
+ * otherwise some notifications may not be sent. The QuickBLE delegate treats notifying a set of devices (all connected devices)
+ * that a characteristic has changed as a single event, but android treats it as several different events. A NotificationSet is
+ * one shared value plus the devices to notify of it. The set itself (not a per device copy) is added to the buffer of each
+ * device's NotificationLane and the set counts down the devices it is still waiting on, so notifying N devices allocates the
+ * same as notifying one. Each lane sends its notifications in the order they were added and has
+ * at most one notification in flight, but lanes progress independently so a slow device does not hold up the others.
+ * Each BLEServer has a NotificationCoordinator. When a notify event is requested it queues a NotificationSet.
+ * The NotificationCoordinator ensures that each notification to a device is sent *after* the previous one to that device
+ * ensuring that all notifications are sent. Notifications are sent with the coordinator's GattServerTransport, which calls the
+ * coordinator's onNotificationSent method (the BLEServer does this when its GattServer reports the notification sent).
+ * This will sent the next notification to that device (if there is one) and it will check if a notification set is complete.
+ * If a notification set is complete (all notifications have been sent) the coordinator calls the BLEServer's handleNotificationSetSent
+ * method (its onSetSent function) which handles notifying the BLEDelegate.
+ * The coordinator sends from a single event loop (its executor) which onNotificationSent wakes up, so no threads
+ * are created per notification.
+ * When coalescing is enabled a notification for a (device, characteristic) pair that is still waiting in its lane is sent with
+ * the newest set's value instead of a second notification being added. The newer set is then complete when that notification is sent.
+ * This bounds the buffer to one notification per pair so devices never receive values that are more than one behind.
+ */
+
+
+/**
+ * A group of NotificationSets queued together by BLEServer.writeCharacteristics. The delegate is told once when every set in
+ * the batch has been sent.
+ * @param characteristics The canonical UUID strings of the characteristics in the batch
+ */
+class NotificationBatch(val characteristics: Array<String>){
+    /**
+     * Number of sets in the batch not sent yet (decremented by the server as each set finishes)
+     */
+    val remaining = AtomicInteger(characteristics.size)
+    @Volatile
+    var failed = false
+}
+
+/**
+ * A value to notify a group of devices of. The set is immutable and shared by the lanes of every device it notifies.
+ * The types of characteristic and device depend on the transport (GattCharacteristic and RemoteDevice for a BLEServer)
+ * @param devices The devices to notify. Not copied, so it must not be changed after the set is queued (BLEServer passes its
+ *          snapshot of the connected devices, which is replaced instead of changed).
+ * @param exclude A device in devices that is not notified (ex. the device that wrote the value)
+ */
+class NotificationSet(val characteristic: Any, val devices: Array<out Any?>, val data: ByteArray?, val exclude: Any? = null){
+    var errorCount = 0
+    /**
+     * The batch this set is part of (null if it was not queued as part of a batch)
+     */
+    var batch: NotificationBatch? = null
+    /**
+     * The framed message this set is a fragment of (null for normal notifications). Fragments are never coalesced.
+     */
+    var message: OutgoingMessage? = null
+    /**
+     * Number of devices notified (devices without exclude)
+     */
+    val size = if(exclude == null) devices.size else devices.count { it != exclude }
+    // Number of notifications not sent yet (only changed with the coordinator's lock)
+    internal var remaining = size
+    // When the set was queued (System.nanoTime) for BLEMetrics. Only set when the coordinator has metrics.
+    var queuedAt = 0L
+        internal set
+}
+
+/**
+ * The notifications waiting to be sent to a single device. Only changed with the coordinator's lock.
+ */
+internal class NotificationLane(val device: Any?){
+    val buffer = ArrayDeque<NotificationSet>()
+    // The set whose notification is waiting for onNotificationSent (at most one per device, always the head of the buffer)
+    var current: NotificationSet? = null
+    // Is the lane in the coordinator's list of lanes that can send
+    var ready = false
+    // Status of the current notification reported by the transport (NOT_SENT until onNotificationSent is called)
+    var sentStatus = NOT_SENT
+    // Sets waiting in the buffer by characteristic (only filled when coalescing)
+    val waiting = HashMap<Any, NotificationSet>()
+    // Newer sets merged into a waiting set (only filled when coalescing). The last one's value is the one sent.
+    val coalesced = HashMap<NotificationSet, ArrayList<NotificationSet>>()
+
+    /**
+     * @return The value to send for a set in this lane
+     */
+    fun dataOf(set: NotificationSet): ByteArray?{
+        val merged = coalesced[set] ?: return set.data
+        return merged[merged.size - 1].data
+    }
+
+    companion object {
+        const val NOT_SENT = -1
+    }
+}
+
+/**
+ * @param transport The link notifications are sent on
+ * @param onSetSent Called when every notification of a set has been sent (or failed). Check the set's errorCount for failures.
+ */
+class NotificationCoordinator(val transport: GattServerTransport, private val onSetSent: (NotificationSet) -> Unit,
+                              executor: Executor = Dispatchers.notifications) {
+
+    /**
+     * The event loop notifications are sent from. onNotificationSent wakes it up to send the next notification.
+     * Defaults to a single long-lived thread shared by all servers. A custom executor should run tasks one at a time.
+     */
+    @Volatile
+    var executor: Executor = executor
+
+    /**
+     * Replace the value of a notification still waiting to be sent instead of queuing another one for the same device and
+     * characteristic (latest value wins)
+     */
+    @Volatile
+    var coalesce = false
+
+    /**
+     * Where the number of waiting sets, round trip times and failures are recorded (null to not record them)
+     */
+    @Volatile
+    var metrics: BLEMetrics? = null
+
+    /**
+     * Called (on the event loop, holding the coordinator's lock) for every notification the transport starts sending, with
+     * the characteristic and the value sent. Sets coalesced into a notification are not sent on their own so only the
+     * notification's value is counted. Used to count bytes sent per characteristic.
+     */
+    @Volatile
+    var onNotificationStarted: ((characteristic: Any, data: ByteArray?) -> Unit)? = null
+
+    private val lock = ReentrantLock()
+    private val lanes = HashMap<Any?, NotificationLane>()
+    // Lanes with nothing in flight and notifications waiting
+    private val readyLanes = ArrayDeque<NotificationLane>()
+    // Lanes whose current notification the transport reported sent (finished by the event loop)
+    private val sentLanes = ArrayDeque<NotificationLane>()
+    private val notificationSets = LinkedHashSet<NotificationSet>()
+    private var processScheduled = false
+
+    // Allocated once so waking the loop does not allocate
+    private val processTask = Runnable { processNotifications() }
+
+    fun queueNotifications(notificationSet: NotificationSet){
+        // Do not queue if the server is not running
+        if(!transport.isRunning)
+            return
+        // Do not queue if there are no notifications to sent (no connected devices or only connected device was the one that change the char)
+        if(notificationSet.size == 0) {
+            // Still need to make sure the delegate method gets called
+            notificationSet.errorCount = 1 // If errorCount is not 0 success=false
+            onSetSent(notificationSet)
+            return
+        }
+        var shouldProcess = false
+        lock.lock()
+        try{
+            add(notificationSet)
+            shouldProcess = scheduleProcessing()
+        }catch (e: Exception){
+            QuickBLELog.w("Exception queuing notification: ", e)
+        }finally {
+            lock.unlock()
+        }
+        if(shouldProcess)
+            executor.execute(processTask)
+    }
+
+    /**
+     * Queue several notification sets in one step (used for batch writes)
+     */
+    fun queueNotifications(sets: List<NotificationSet>){
+        // Sets with no notifications to send and sets queued while the server is stopped are finished right away
+        val finished = ArrayList<NotificationSet>()
+        var shouldProcess = false
+        lock.lock()
+        try{
+            val running = transport.isRunning
+            sets.forEach { set ->
+                if(!running || set.size == 0){
+                    set.errorCount = Math.max(1, set.size) // If errorCount is not 0 success=false
+                    finished.add(set)
+                }else{
+                    add(set)
+                }
+            }
+            shouldProcess = scheduleProcessing()
+        }catch (e: Exception){
+            QuickBLELog.w("Exception queuing notifications: ", e)
+        }finally {
+            lock.unlock()
+        }
+        finished.forEach { onSetSent(it) }
+        if(shouldProcess)
+            executor.execute(processTask)
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT ACQUIRING LOCK FIRST!!!!
+     * Add a set to the lanes of its devices (or merge it into a waiting set when coalescing)
+     */
+    private fun add(notificationSet: NotificationSet){
+        notificationSets.add(notificationSet)
+        val metrics = metrics
+        if(metrics != null){
+            notificationSet.queuedAt = System.nanoTime()
+            metrics.recordQueueDepth(notificationSets.size)
+        }
+        val devices = notificationSet.devices
+        val exclude = notificationSet.exclude
+        for(i in devices.indices){
+            val device = devices[i]
+            if(exclude != null && device == exclude)
+                continue
+            var lane = lanes[device]
+            if(lane == null){
+                lane = NotificationLane(device)
+                lanes[device] = lane
+            }
+            if(coalesce && notificationSet.message == null){
+                val existing = lane.waiting[notificationSet.characteristic]
+                if(existing != null){
+                    // Latest value wins. This set is done when the existing set's notification is sent.
+                    var coalesced = lane.coalesced[existing]
+                    if(coalesced == null){
+                        coalesced = ArrayList(1)
+                        lane.coalesced[existing] = coalesced
+                    }
+                    coalesced.add(notificationSet)
+                    continue
+                }
+                lane.waiting[notificationSet.characteristic] = notificationSet
+            }
+            lane.buffer.add(notificationSet)
+            markReady(lane)
+        }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT ACQUIRING LOCK FIRST!!!!
+     */
+    private fun markReady(lane: NotificationLane){
+        if(!lane.ready && lane.current == null && lane.buffer.isNotEmpty()){
+            lane.ready = true
+            readyLanes.add(lane)
+        }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT ACQUIRING LOCK FIRST!!!!
+     * @return Should the caller wake up the event loop (after unlocking)
+     */
+    private fun scheduleProcessing(): Boolean{
+        if(readyLanes.isEmpty() || processScheduled)
+            return false
+        processScheduled = true
+        return true
+    }
+
+    fun serverStopped(){
+        lock.lock()
+        try {
+            reset()
+        }catch (e: Exception) {
+        }finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Fail the notifications waiting for a device that disconnected. onNotificationSent may never be called for them.
+     */
+    fun deviceDisconnected(device: Any?){
+        lock.lock()
+        try{
+            val lane = lanes.remove(device)
+            if(lane != null){
+                // The current set is the head of the buffer
+                lane.buffer.forEach { completeSets(lane, it, GattStatus.Failure) }
+                lane.buffer.clear()
+                lane.waiting.clear()
+                lane.coalesced.clear()
+                lane.current = null
+                lane.sentStatus = NotificationLane.NOT_SENT
+            }
+        }catch (e: Exception){
+            QuickBLELog.w("Exception when removing disconnected device's notifications: ", e)
+        }finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT ACQUIRING LOCK FIRST!!!!
+     */
+    private fun reset(){
+        notificationSets.forEach {
+            it.errorCount = it.size
+            onSetSent(it)
+        }
+        lanes.clear()
+        readyLanes.clear()
+        sentLanes.clear()
+        notificationSets.clear()
+        metrics?.recordQueueDepth(0)
+    }
+
+    /**
+     * Send the next notification of each lane that has nothing in flight. Only runs on the executor.
+     */
+    private fun processNotifications(){
+        while(true){
+            var lane: NotificationLane? = null
+            var notification: NotificationSet? = null
+            var success = false
+            lock.lock()
+            // When using lock always use try/catch/finally to ensure that the lock is unlocked even in the case of an exception
+            try{
+                processScheduled = false
+                // If server is not running clear the notification buffers
+                if(!transport.isRunning){
+                    reset()
+                    return
+                }
+                // Finish the notifications the transport reported sent (their lanes become ready again)
+                while(sentLanes.isNotEmpty()){
+                    val sent = sentLanes.poll()
+                    val status = sent.sentStatus
+                    sent.sentStatus = NotificationLane.NOT_SENT
+                    completeNotification(sent, status)
+                }
+                lane = readyLanes.poll()
+                if(lane == null)
+                    return
+                lane.ready = false
+                if(lane.current == null && lane.buffer.isNotEmpty() && lanes[lane.device] === lane){
+                    val next = lane.buffer.peek()
+                    notification = next
+                    lane.current = next
+                    // Once sending, newer values must be queued after this notification instead of replacing its value
+                    if(lane.waiting[next.characteristic] === next)
+                        lane.waiting.remove(next.characteristic)
+                    val data = lane.dataOf(next)
+                    success = transport.sendNotification(lane.device, next.characteristic, data)
+                    if(success)
+                        onNotificationStarted?.invoke(next.characteristic, data)
+                }
+            }catch (e: Exception){
+                QuickBLELog.w("Exception processing notification: ", e)
+            }finally {
+                lock.unlock()
+            }
+            // Something was null and or notification could not be triggered (no callback will come)
+            if(!success && notification != null)
+                completeNotification(lane!!, GattStatus.Failure)
+        }
+    }
+
+    /**
+     * Finish a lane's current notification and the set(s) it belongs to (if it was the last one in the set)
+     */
+    private fun completeNotification(lane: NotificationLane, status: Int){
+        lock.lock()
+        try{
+            val notification = lane.current
+            if(notification != null){
+                metrics?.recordStatus(status)
+                lane.buffer.poll()
+                lane.current = null
+                completeSets(lane, notification, status)
+                markReady(lane)
+            }
+        }catch (e: Exception){
+            QuickBLELog.w("Exception when processing sent notification: ", e)
+        }finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT ACQUIRING LOCK FIRST!!!!
+     */
+    private fun completeSets(lane: NotificationLane, set: NotificationSet, status: Int){
+        completeSet(set, status)
+        lane.coalesced.remove(set)?.forEach { completeSet(it, status) }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT ACQUIRING LOCK FIRST!!!!
+     */
+    private fun completeSet(set: NotificationSet, status: Int){
+        // Increment error counter if needed
+        if(status != GattStatus.Success){
+            set.errorCount++
+        }
+        set.remaining--
+        // If this is the last notification of the set notify the server
+        if(set.remaining == 0 && notificationSets.remove(set)){
+            val metrics = metrics
+            if(metrics != null){
+                metrics.recordQueueDepth(notificationSets.size)
+                if(set.queuedAt != 0L)
+                    metrics.recordNotificationSetSent(set)
+            }
+            onSetSent(set)
+        }
+    }
+
+    /**
+     * Called by the transport (a binder thread on android). The status is recorded on the device's lane and the event loop is
+     * woken up (with the preallocated task) to finish the notification and send the device's next one.
+     */
+    fun onNotificationSent(device: Any?, status: Int){
+        var shouldProcess = false
+        lock.lock()
+        try{
+            val lane = lanes[device]
+            // Ignore a callback with nothing in flight (ex. the device's notifications were failed when it disconnected)
+            if(lane != null && lane.current != null && lane.sentStatus == NotificationLane.NOT_SENT){
+                lane.sentStatus = status
+                sentLanes.add(lane)
+                if(!processScheduled){
+                    processScheduled = true
+                    shouldProcess = true
+                }
+            }
+        }catch (e: Exception){
+            QuickBLELog.w("Exception when handling sent notification: ", e)
+        }finally {
+            lock.unlock()
+        }
+        if(shouldProcess)
+            executor.execute(processTask)
+    }
+}
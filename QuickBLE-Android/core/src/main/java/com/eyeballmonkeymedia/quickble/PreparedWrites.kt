@@ -0,0 +1,88 @@
+package com.mb3hel.quickble
+
+import java.util.*
+
+/**
+ * Prepared (long) writes let a central write a value larger than one ATT payload. The central sends the value in chunks
+ * (prepare write requests with an offset) and then asks the server to execute (commit) or cancel all of them at once.
+ * A PreparedWriteQueue holds one central's chunks until then. Chunks are assembled in place by offset so executing does not
+ * copy them again. Nothing is changed on the server until the queue is executed, so a cancelled or failed transaction
+ * leaves every value as it was.
+ * The types of attribute depend on the server (GattCharacteristic/GattDescriptor for a BLEServer).
+ * @param maxSize The maximum number of bytes the queue can hold (total of every attribute's value)
+ */
+class PreparedWriteQueue(val maxSize: Int) {
+    private class PreparedValue(var bytes: ByteArray, var size: Int)
+
+    // Values in the order they were first written (the order they are committed in)
+    private val values = LinkedHashMap<Any, PreparedValue>()
+    private var size = 0
+
+    /**
+     * Number of bytes held
+     */
+    val bytes: Int
+        get() = synchronized(this){ size }
+
+    /**
+     * Add a chunk
+     * @param attribute The attribute the chunk is for
+     * @param offset Where the chunk starts in the value
+     * @param chunk The chunk
+     * @return A GattStatus. InvalidOffset if the chunk would leave a gap in the value, PrepareQueueFull if the queue would
+     *          hold more than maxSize bytes.
+     */
+    fun add(attribute: Any, offset: Int, chunk: ByteArray): Int{
+        synchronized(this){
+            val value = values[attribute]
+            val current = value?.size ?: 0
+            if(offset < 0 || offset > current)
+                return GattStatus.InvalidOffset
+            val end = offset + chunk.size
+            val growth = Math.max(end - current, 0)
+            if(size + growth > maxSize)
+                return GattStatus.PrepareQueueFull
+            if(value == null){
+                val bytes = ByteArray(Math.max(end, INITIAL_SIZE))
+                System.arraycopy(chunk, 0, bytes, offset, chunk.size)
+                values[attribute] = PreparedValue(bytes, end)
+            }else{
+                if(end > value.bytes.size)
+                    value.bytes = Arrays.copyOf(value.bytes, Math.min(Math.max(end, value.bytes.size * 2), maxSize))
+                System.arraycopy(chunk, 0, value.bytes, offset, chunk.size)
+                value.size = Math.max(value.size, end)
+            }
+            size += growth
+            return GattStatus.Success
+        }
+    }
+
+    /**
+     * Take every assembled value and empty the queue
+     * @return The values by attribute (in the order the attributes were first written)
+     */
+    fun execute(): LinkedHashMap<Any, ByteArray>{
+        synchronized(this){
+            val result = LinkedHashMap<Any, ByteArray>()
+            values.forEach { (attribute, value) ->
+                result[attribute] = if(value.bytes.size == value.size) value.bytes else Arrays.copyOf(value.bytes, value.size)
+            }
+            clear()
+            return result
+        }
+    }
+
+    /**
+     * Drop every chunk (cancelled transaction)
+     */
+    fun clear(){
+        synchronized(this){
+            values.clear()
+            size = 0
+        }
+    }
+
+    companion object {
+        const val INITIAL_SIZE = 64
+    }
+}
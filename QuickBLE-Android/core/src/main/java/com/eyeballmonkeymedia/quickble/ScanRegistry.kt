@@ -0,0 +1,168 @@
+package com.mb3hel.quickble
+
+/**
+ * When a scanning client reports a device that it has seen (onDeviceDiscovered)
+ */
+interface ScanReportPolicy {
+    companion object {
+        val Always = 0 // Every advertisement
+        val FirstSeen = 1 // Only the first advertisement of each device
+        val RssiChange = 2 // When the (smoothed) RSSI changed by at least the threshold since the last report
+        val RateLimited = 3 // At most maxReportRate times a second per device
+    }
+}
+
+/**
+ * A device seen while scanning
+ * @param address The device's address (the registry's key)
+ * @param device The device object (the RemoteDevice the scanner reported for a BLEClient)
+ */
+class ScannedDevice internal constructor(val address: String, val device: Any?) {
+    /**
+     * The smoothed RSSI
+     */
+    @Volatile
+    var rssi = 0
+        internal set
+    /**
+     * The RSSI of the most recent advertisement
+     */
+    @Volatile
+    var rawRssi = 0
+        internal set
+    /**
+     * Number of advertisements seen
+     */
+    @Volatile
+    var advertisements = 0L
+        internal set
+    /**
+     * When the last advertisement was seen (System.nanoTime)
+     */
+    @Volatile
+    var lastSeen = 0L
+        internal set
+
+    internal var smoothedRssi = 0.0
+    internal var reported = false
+    internal var lastReportedRssi = 0
+    internal var lastReportTime = 0L
+}
+
+/**
+ * The devices seen while scanning, by address. Advertisements arrive far more often than the delegate needs to hear about
+ * them (every advertisement of every device in range). The registry keeps each device once (hash lookup per advertisement),
+ * smooths its RSSI and decides with the report policy whether an advertisement should be reported.
+ */
+class ScanRegistry {
+    /**
+     * A ScanReportPolicy
+     */
+    @Volatile
+    var policy = ScanReportPolicy.Always
+    /**
+     * The change in smoothed RSSI (dBm) needed to report a device again (ScanReportPolicy.RssiChange)
+     */
+    @Volatile
+    var rssiThreshold = 5
+    /**
+     * The maximum number of reports per second for each device (ScanReportPolicy.RateLimited)
+     */
+    @Volatile
+    var maxReportRate = 1.0
+    /**
+     * Weight (0 to 1) of a new RSSI sample in the smoothed RSSI. 1 disables smoothing.
+     */
+    @Volatile
+    var rssiSmoothing = 0.25
+    /**
+     * Called (with the registry locked) when a device is seen for the first time
+     */
+    @Volatile
+    var onNewDevice: ((ScannedDevice) -> Unit)? = null
+
+    private val devices = HashMap<String, ScannedDevice>()
+
+    val size: Int
+        get() = synchronized(this){ devices.size }
+
+    /**
+     * Record an advertisement
+     * @param address The address of the device (used as is as the key)
+     * @param rssi The advertisement's RSSI
+     * @param device The platform's device object (kept for connecting later)
+     * @param now The time the advertisement arrived (System.nanoTime)
+     * @return The device if the advertisement should be reported or null if it should not (the first advertisement of a
+     *          device is always reported)
+     */
+    fun onAdvertisement(address: String, rssi: Int, device: Any?, now: Long = System.nanoTime()): ScannedDevice?{
+        synchronized(this){
+            var scanned = devices[address]
+            if(scanned == null){
+                scanned = ScannedDevice(address, device)
+                scanned.smoothedRssi = rssi.toDouble()
+                devices[address] = scanned
+                onNewDevice?.invoke(scanned)
+            }else{
+                scanned.smoothedRssi += Math.min(Math.max(rssiSmoothing, 0.0), 1.0) * (rssi - scanned.smoothedRssi)
+            }
+            scanned.rawRssi = rssi
+            scanned.rssi = Math.round(scanned.smoothedRssi).toInt()
+            scanned.advertisements++
+            scanned.lastSeen = now
+            if(!shouldReport(scanned, now))
+                return null
+            scanned.reported = true
+            scanned.lastReportedRssi = scanned.rssi
+            scanned.lastReportTime = now
+            return scanned
+        }
+    }
+
+    /**
+     * DO NOT CALL THIS WITHOUT SYNCHRONIZING ON THE REGISTRY FIRST
+     */
+    private fun shouldReport(scanned: ScannedDevice, now: Long): Boolean{
+        if(!scanned.reported)
+            return true
+        return when(policy){
+            ScanReportPolicy.FirstSeen -> false
+            ScanReportPolicy.RssiChange -> Math.abs(scanned.rssi - scanned.lastReportedRssi) >= rssiThreshold
+            ScanReportPolicy.RateLimited -> maxReportRate > 0 && now - scanned.lastReportTime >= (1e9 / maxReportRate).toLong()
+            else -> true
+        }
+    }
+
+    /**
+     * @return The device with the address or null if it has not been seen
+     */
+    operator fun get(address: String): ScannedDevice?{
+        synchronized(this){
+            return devices[address]
+        }
+    }
+
+    /**
+     * @return The devices seen (in no particular order)
+     */
+    fun devices(): List<ScannedDevice>{
+        synchronized(this){
+            return ArrayList(devices.values)
+        }
+    }
+
+    /**
+     * Mark every device as not reported so each one is reported again when it is next seen (used when a new scan starts)
+     */
+    fun resetReports(){
+        synchronized(this){
+            devices.values.forEach { it.reported = false }
+        }
+    }
+
+    fun clear(){
+        synchronized(this){
+            devices.clear()
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.mb3hel.quickble
+
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Transports are the links GattOperationQueues and NotificationCoordinators work on. The queue and coordinator only handle
+ * ordering and bookkeeping. Starting an operation or sending a notification is left to the transport, which reports back
+ * when it finishes. A BLEClient's GattClient and a BLEServer's GattServer (BLETransport.kt) are transports, on android
+ * (AndroidTransport.kt) they use BluetoothGatt and BluetoothGattServer. The loopback (Loopback.kt) simulates links in memory so
+ * the queueing and notification logic (and whole clients and servers) run without a radio.
+ */
+
+/**
+ * Status codes reported by transports (same values as android's GATT status codes)
+ */
+interface GattStatus {
+    companion object {
+        val Success = 0
+        val InvalidOffset = 7 // GATT_INVALID_OFFSET. A prepared write/read offset past the end of the value
+        val PrepareQueueFull = 9 // Too many bytes of prepared writes
+        val InvalidAttributeLength = 13 // GATT_INVALID_ATTRIBUTE_LENGTH
+        val Error = 133 // GATT_ERROR. The generic android error (often a busy or unreliable link)
+        val Failure = 257
+    }
+}
+
+/**
+ * The link a GattOperationQueue performs read/write operations on (GATT client role)
+ */
+interface GattClientTransport {
+    /**
+     * Is the link connected
+     */
+    val isConnected: Boolean
+
+    /**
+     * Start a read/write operation. When the operation finishes the transport must call the queue's onOperationComplete.
+     * @return Was the operation started (if not no completion will come)
+     */
+    fun startOperation(operation: DelayedGattOperation): Boolean
+}
+
+/**
+ * The link a NotificationCoordinator sends notifications on (GATT server role)
+ */
+interface GattServerTransport {
+    /**
+     * Is the server running
+     */
+    val isRunning: Boolean
+
+    /**
+     * Send a notification of a value to a device. When it is sent the transport must call the coordinator's onNotificationSent.
+     * @param device The device to notify
+     * @param characteristic The characteristic to notify the value of
+     * @param data The value to send
+     * @return Was the notification started (if not no onNotificationSent will come)
+     */
+    fun sendNotification(device: Any?, characteristic: Any, data: ByteArray?): Boolean
+}
+
+/**
+ * Logging for the parts of QuickBLE that do not use android classes (android.util.Log is not available off device)
+ */
+internal object QuickBLELog {
+    private val logger = Logger.getLogger("QuickBLE")
+
+    fun w(message: String, e: Throwable? = null){
+        logger.log(Level.WARNING, message, e)
+    }
+}
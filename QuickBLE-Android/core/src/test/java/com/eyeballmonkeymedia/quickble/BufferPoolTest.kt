@@ -0,0 +1,62 @@
+package com.mb3hel.quickble
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class BufferPoolTest {
+    @Test
+    fun valueIsAReadOnlyViewOfTheData(){
+        val pool = BufferPool()
+        val value = pool.acquire(byteArrayOf(0, 1, 2, 3), 1, 2)
+
+        assertEquals(2, value.size)
+        assertTrue(value.buffer.isReadOnly)
+        assertEquals(0, value.buffer.position())
+        assertEquals(2, value.buffer.limit())
+        assertArrayEquals(byteArrayOf(1, 2), value.toByteArray())
+    }
+
+    @Test
+    fun releasedArrayIsReused(){
+        val pool = BufferPool()
+        val first = pool.acquire(ByteArray(10) { 1 })
+        first.release()
+
+        val second = pool.acquire(byteArrayOf(2, 2))
+
+        assertNotSame(first, second)
+        assertArrayEquals(byteArrayOf(2, 2), second.toByteArray())
+    }
+
+    @Test
+    fun releasingAnOldValueAgainDoesNotRecycleTheNewOwnersArray(){
+        val pool = BufferPool()
+        val first = pool.acquire(ByteArray(10) { 1 })
+        first.release()
+        val second = pool.acquire(ByteArray(10) { 2 })
+
+        first.release()
+        val third = pool.acquire(ByteArray(10) { 3 })
+
+        assertArrayEquals(ByteArray(10) { 2 }, second.toByteArray())
+        assertArrayEquals(ByteArray(10) { 3 }, third.toByteArray())
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun valueCanNotBeReadAfterRelease(){
+        val value = BufferPool().acquire(byteArrayOf(1))
+        value.release()
+
+        value.buffer
+    }
+
+    @Test
+    fun oversizedValuesAreNotPooled(){
+        val pool = BufferPool(maxBufferSize = 64)
+        val value = pool.acquire(ByteArray(100) { 1 })
+
+        assertEquals(100, value.size)
+        value.release()
+        assertArrayEquals(ByteArray(100) { 1 }, pool.acquire(ByteArray(100) { 1 }).toByteArray())
+    }
+}
@@ -0,0 +1,117 @@
+package com.mb3hel.quickble
+
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.CHARACTERISTIC
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.PERIPHERAL_ADDRESS
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+
+/**
+ * GattOperationQueue over the loopback link
+ */
+class GattOperationQueueTest {
+    private lateinit var radio: LoopbackRadio
+    private lateinit var peripheral: LoopbackPeripheral
+    private lateinit var central: LoopbackTestCentral
+    private lateinit var connection: LoopbackConnection
+
+    @Before
+    fun setUp(){
+        radio = LoopbackRadio(LoopbackLinkConfig(latencyMillis = 1, random = Random(1)))
+        peripheral = radio.createPeripheral(PERIPHERAL_ADDRESS)
+        peripheral.addCharacteristic(CHARACTERISTIC, byteArrayOf(0))
+        peripheral.start()
+        central = LoopbackTestCentral()
+        connection = central.connect(radio, PERIPHERAL_ADDRESS)
+    }
+
+    @After
+    fun tearDown(){
+        radio.shutdown()
+    }
+
+    private fun write(value: Int, noResponse: Boolean = false): DelayedGattOperation{
+        return DelayedGattOperation(OperandType.Characteristic, OperationType.Write, CHARACTERISTIC, byteArrayOf(value.toByte()),
+                "write $value", noResponse)
+    }
+
+    private fun read(): DelayedGattOperation{
+        return DelayedGattOperation(OperandType.Characteristic, OperationType.Read, CHARACTERISTIC, null, "read")
+    }
+
+    @Test
+    fun operationsCompleteInTheOrderTheyWereQueued(){
+        val operations = (0 until 50).map { write(it) } + read()
+        operations.forEach { assertTrue(connection.gattOperationQueue.queueOperation(it)) }
+
+        operations.forEach {
+            val completion = central.nextCompletion()
+            assertSame(it, completion.operation)
+            assertTrue(completion.success)
+        }
+        // The read ran after every write
+        assertArrayEquals(byteArrayOf(49), operations.last().data)
+        assertEquals(0, connection.gattOperationQueue.depth)
+    }
+
+    @Test
+    fun disconnectFailsQueuedOperations(){
+        radio.config.latencyMillis = 100
+        val operations = (0 until 5).map { write(it) }
+        operations.forEach { connection.gattOperationQueue.queueOperation(it) }
+
+        connection.disconnect()
+
+        val failed = (0 until operations.size).map { central.nextCompletion() }
+        assertTrue(failed.none { it.success })
+        assertEquals(operations.toSet(), failed.map { it.operation }.toSet())
+        assertEquals(0, connection.gattOperationQueue.depth)
+        // Nothing is queued once disconnected
+        assertFalse(connection.gattOperationQueue.queueOperation(write(5)))
+        // The completion of the operation that was in flight is ignored
+        Thread.sleep(200)
+        assertTrue(central.completions.isEmpty())
+    }
+
+    @Test
+    fun injectedErrorsFailOperationsWith133(){
+        val metrics = BLEMetrics()
+        connection.gattOperationQueue.metrics = metrics
+        radio.config.errorRate = 1.0
+
+        repeat(3) { connection.gattOperationQueue.queueOperation(read()) }
+
+        repeat(3) { assertFalse(central.nextCompletion().success) }
+        val snapshot = metrics.snapshot()
+        assertEquals(3L, snapshot.failures)
+        assertEquals(3L, snapshot.gattErrors)
+    }
+
+    @Test
+    fun droppedPacketsFailWritesButNotWritesWithoutResponse(){
+        radio.config.dropRate = 1.0
+
+        connection.gattOperationQueue.queueOperation(write(1))
+        connection.gattOperationQueue.queueOperation(write(2, noResponse = true))
+
+        assertFalse(central.nextCompletion().success)
+        // Nothing acknowledges a write without response so it succeeds even though it was lost
+        assertTrue(central.nextCompletion().success)
+        assertArrayEquals(byteArrayOf(0), peripheral.getValue(CHARACTERISTIC))
+    }
+
+    @Test
+    fun failuresDoNotStallTheQueue(){
+        radio.config.errorRate = 0.3
+        radio.config.dropRate = 0.2
+        val operations = (0 until 100).map { write(it) }
+        operations.forEach { connection.gattOperationQueue.queueOperation(it) }
+
+        val completions = operations.map { central.nextCompletion() }
+        assertEquals(operations, completions.map { it.operation })
+        assertTrue(completions.any { it.success })
+        assertTrue(completions.any { !it.success })
+    }
+}
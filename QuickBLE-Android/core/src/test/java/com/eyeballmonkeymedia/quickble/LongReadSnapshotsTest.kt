@@ -0,0 +1,62 @@
+package com.mb3hel.quickble
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class LongReadSnapshotsTest {
+    private val device = "central"
+    private val attribute = Any()
+    private val maxLength = 22
+
+    @Test
+    fun continuationsAreServedFromTheSnapshot(){
+        val snapshots = LongReadSnapshots()
+        var value = ByteArray(50) { it.toByte() }
+        val original = value
+
+        assertArrayEquals(Arrays.copyOfRange(original, 0, 22), snapshots.read(device, attribute, 0, maxLength) { value })
+        // The value changes part way through the long read
+        value = ByteArray(50)
+        assertArrayEquals(Arrays.copyOfRange(original, 22, 44), snapshots.read(device, attribute, 22, maxLength) { value })
+        assertArrayEquals(Arrays.copyOfRange(original, 44, 50), snapshots.read(device, attribute, 44, maxLength) { value })
+        // The short response ended the long read so the next read takes a new snapshot
+        assertArrayEquals(ByteArray(22), snapshots.read(device, attribute, 0, maxLength) { value })
+    }
+
+    @Test
+    fun shortValueIsNotKept(){
+        val snapshots = LongReadSnapshots()
+        var reads = 0
+
+        snapshots.read(device, attribute, 0, maxLength) { reads++; ByteArray(5) }
+        snapshots.read(device, attribute, 0, maxLength) { reads++; ByteArray(5) }
+
+        assertEquals(2, reads)
+    }
+
+    @Test
+    fun offsetPastTheEndIsInvalid(){
+        val snapshots = LongReadSnapshots()
+
+        assertNull(snapshots.read(device, attribute, 51, maxLength) { ByteArray(50) })
+        // Reading exactly at the end returns an empty value (ends the long read)
+        assertEquals(0, snapshots.read(device, attribute, 50, maxLength) { ByteArray(50) }!!.size)
+    }
+
+    @Test
+    fun eachCentralHasItsOwnSnapshot(){
+        val snapshots = LongReadSnapshots()
+        var value = ByteArray(50) { 1 }
+
+        snapshots.read("first", attribute, 0, maxLength) { value }
+        value = ByteArray(50) { 2 }
+        snapshots.read("second", attribute, 0, maxLength) { value }
+
+        assertEquals(1.toByte(), snapshots.read("first", attribute, 22, maxLength) { value }!![0])
+        assertEquals(2.toByte(), snapshots.read("second", attribute, 22, maxLength) { value }!![0])
+        // A disconnected central's snapshot is dropped
+        snapshots.remove("first")
+        assertEquals(2.toByte(), snapshots.read("first", attribute, 22, maxLength) { value }!![0])
+    }
+}
@@ -0,0 +1,89 @@
+package com.mb3hel.quickble
+
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.PERIPHERAL_ADDRESS
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.TIMEOUT
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class LoopbackRadioTest {
+    private lateinit var radio: LoopbackRadio
+
+    @Before
+    fun setUp(){
+        radio = LoopbackRadio(LoopbackLinkConfig(latencyMillis = 1, random = Random(1)))
+    }
+
+    @After
+    fun tearDown(){
+        radio.shutdown()
+    }
+
+    @Test
+    fun scanFindsAdvertisingPeripherals(){
+        val found = LinkedBlockingQueue<String>()
+        radio.createPeripheral(PERIPHERAL_ADDRESS, "Sensor").start()
+        radio.scan { address, name, _ -> found.add("$address $name") }
+        radio.createPeripheral("AA:BB:CC:DD:EE:FF").start()
+
+        val seen = setOf(found.poll(TIMEOUT, TimeUnit.MILLISECONDS), found.poll(TIMEOUT, TimeUnit.MILLISECONDS))
+        assertEquals(setOf("$PERIPHERAL_ADDRESS Sensor", "AA:BB:CC:DD:EE:FF null"), seen)
+    }
+
+    @Test
+    fun connectingRequiresAnAdvertisingPeripheral(){
+        assertNull(radio.connect(PERIPHERAL_ADDRESS, LoopbackTestCentral()))
+    }
+
+    @Test
+    fun clientsOnlyConnectToAdvertisingServers(){
+        val server = LoopbackServerTransport(radio, PERIPHERAL_ADDRESS)
+        val client = LoopbackClientTransport(radio)
+        val listener = object: GattClientListener {
+            override fun onConnectionStateChange(client: GattClient, connected: Boolean){}
+            override fun onMtuChanged(client: GattClient, mtu: Int, status: Int){}
+            override fun onServicesDiscovered(client: GattClient, services: List<GattService>, status: Int){}
+            override fun onOperationComplete(client: GattClient, data: ByteArray?, status: Int){}
+            override fun onNotification(client: GattClient, characteristic: UUID, value: ByteArray){}
+            override fun onPhyUpdate(client: GattClient, txPhy: Int, rxPhy: Int, status: Int){}
+        }
+
+        // Advertising without a GATT server
+        server.startAdvertising(AdvertiseOptions(0, 0, false, emptyList()), {})
+        assertNull(client.connect(server.device, listener))
+
+        assertNotNull(server.openServer(object: GattServerListener {
+            override fun onConnectionStateChange(device: RemoteDevice, status: Int, connected: Boolean){}
+            override fun onMtuChanged(device: RemoteDevice, mtu: Int){}
+            override fun onCharacteristicReadRequest(device: RemoteDevice, requestId: Int, offset: Int, characteristic: UUID){}
+            override fun onCharacteristicWriteRequest(device: RemoteDevice, requestId: Int, characteristic: UUID, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?){}
+            override fun onDescriptorReadRequest(device: RemoteDevice, requestId: Int, offset: Int, descriptor: UUID){}
+            override fun onDescriptorWriteRequest(device: RemoteDevice, requestId: Int, descriptor: UUID, preparedWrite: Boolean, responseNeeded: Boolean, offset: Int, value: ByteArray?){}
+            override fun onExecuteWrite(device: RemoteDevice, requestId: Int, execute: Boolean){}
+            override fun onNotificationSent(device: RemoteDevice, status: Int){}
+        }))
+        assertNotNull(client.connect(server.device, listener))
+
+        server.stopAdvertising()
+        assertNull(client.connect(server.device, listener))
+    }
+
+    @Test
+    fun stoppingThePeripheralDisconnectsCentrals(){
+        val peripheral = radio.createPeripheral(PERIPHERAL_ADDRESS)
+        peripheral.start()
+        val central = LoopbackTestCentral()
+        val connection = central.connect(radio, PERIPHERAL_ADDRESS)
+        assertEquals(listOf(connection), peripheral.getConnections())
+
+        peripheral.stop()
+
+        assertTrue(central.disconnected.await(TIMEOUT, TimeUnit.MILLISECONDS))
+        assertFalse(connection.isConnected)
+        assertTrue(peripheral.getConnections().isEmpty())
+    }
+}
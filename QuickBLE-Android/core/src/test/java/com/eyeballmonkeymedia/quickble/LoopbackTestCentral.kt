@@ -0,0 +1,77 @@
+package com.mb3hel.quickble
+
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * A central for tests. Records what the loopback link reports so tests can wait for it.
+ */
+class LoopbackTestCentral: LoopbackCentralListener {
+    class Completion(val operation: DelayedGattOperation, val success: Boolean)
+    class Notification(val characteristic: UUID, val data: ByteArray?)
+
+    val connected = CountDownLatch(1)
+    val disconnected = CountDownLatch(1)
+    val completions = LinkedBlockingQueue<Completion>()
+    val notifications = LinkedBlockingQueue<Notification>()
+
+    override fun onConnect(connection: LoopbackConnection){
+        connected.countDown()
+    }
+
+    override fun onDisconnect(connection: LoopbackConnection){
+        disconnected.countDown()
+    }
+
+    override fun onOperationComplete(operation: DelayedGattOperation, success: Boolean){
+        completions.add(Completion(operation, success))
+    }
+
+    override fun onNotification(connection: LoopbackConnection, characteristic: UUID, data: ByteArray?){
+        notifications.add(Notification(characteristic, data))
+    }
+
+    /**
+     * Connect to a peripheral and wait for the connection to be up
+     */
+    fun connect(radio: LoopbackRadio, address: String): LoopbackConnection{
+        val connection = radio.connect(address, this)
+        assertNotNull("No peripheral advertising at $address", connection)
+        assertTrue("Connection timed out", connected.await(TIMEOUT, TimeUnit.MILLISECONDS))
+        return connection!!
+    }
+
+    /**
+     * Wait for the next operation to complete
+     */
+    fun nextCompletion(): Completion{
+        return completions.poll(TIMEOUT, TimeUnit.MILLISECONDS) ?: throw AssertionError("Operation did not complete")
+    }
+
+    /**
+     * Wait for the next notification
+     */
+    fun nextNotification(): Notification{
+        return notifications.poll(TIMEOUT, TimeUnit.MILLISECONDS) ?: throw AssertionError("Notification did not arrive")
+    }
+
+    /**
+     * Subscribe to a characteristic (write its client config descriptor) and wait for the write to complete
+     */
+    fun subscribe(connection: LoopbackConnection, characteristic: UUID){
+        connection.gattOperationQueue.queueOperation(DelayedGattOperation(OperandType.Descriptor, OperationType.Write,
+                LoopbackDescriptor(characteristic, CLIENT_CONFIG_DESCRIPTOR), byteArrayOf(1, 0)))
+        assertTrue("Subscribing failed", nextCompletion().success)
+    }
+
+    companion object {
+        const val TIMEOUT = 5000L
+        val CLIENT_CONFIG_DESCRIPTOR: UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")
+        val CHARACTERISTIC: UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E")
+        const val PERIPHERAL_ADDRESS = "00:11:22:33:44:55"
+    }
+}
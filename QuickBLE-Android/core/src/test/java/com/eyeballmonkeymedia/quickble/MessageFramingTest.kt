@@ -0,0 +1,98 @@
+package com.mb3hel.quickble
+
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.CHARACTERISTIC
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.PERIPHERAL_ADDRESS
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.TIMEOUT
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class MessageFramingTest {
+    private fun message(size: Int): ByteArray{
+        return ByteArray(size) { it.toByte() }
+    }
+
+    @Test
+    fun fragmentsAreReassembled(){
+        val fragmentSize = MessageFraming.fragmentSize(MessageFraming.DEFAULT_MTU)
+        for(size in intArrayOf(0, 1, 15, 16, 100, 5000)){
+            val message = message(size)
+            val fragments = MessageFraming.fragment(message, fragmentSize)
+            assertTrue(fragments.all { it.size <= fragmentSize })
+
+            val assembler = MessageAssembler()
+            for(i in 0 until fragments.size - 1)
+                assertNull(assembler.onFragment(fragments[i]))
+            assertArrayEquals(message, assembler.onFragment(fragments.last()))
+            assertEquals(0L, assembler.dropped)
+        }
+    }
+
+    @Test
+    fun lostFragmentDropsOnlyThatMessage(){
+        val fragments = MessageFraming.fragment(message(100), 20)
+        val assembler = MessageAssembler()
+
+        fragments.filterIndexed { i, _ -> i != 2 }.forEach { assertNull(assembler.onFragment(it)) }
+        assertTrue(assembler.dropped > 0)
+
+        val next = message(50)
+        var result: ByteArray? = null
+        MessageFraming.fragment(next, 20).forEach { result = assembler.onFragment(it) }
+        assertArrayEquals(next, result)
+    }
+
+    @Test
+    fun messagesLargerThanTheLimitAreDropped(){
+        val assembler = MessageAssembler(maxMessageSize = 64)
+
+        MessageFraming.fragment(message(65), 20).forEach { assertNull(assembler.onFragment(it)) }
+
+        assertTrue(assembler.dropped > 0)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun fragmentSizeMustFitTheHeader(){
+        MessageFraming.fragment(message(10), MessageFraming.START_HEADER_SIZE)
+    }
+
+    @Test
+    fun messageIsWrittenAsFragmentsOverTheLink(){
+        val radio = LoopbackRadio(LoopbackLinkConfig(latencyMillis = 1, random = Random(1)))
+        try{
+            val peripheral = radio.createPeripheral(PERIPHERAL_ADDRESS)
+            peripheral.addCharacteristic(CHARACTERISTIC)
+            val assembler = MessageAssembler()
+            val received = LinkedBlockingQueue<ByteArray>()
+            peripheral.listener = object: LoopbackPeripheralListener {
+                override fun onWrite(connection: LoopbackConnection, attribute: Any, data: ByteArray?){
+                    val message = assembler.onFragment(data!!)
+                    if(message != null)
+                        received.add(message)
+                }
+            }
+            peripheral.start()
+            val central = LoopbackTestCentral()
+            val connection = central.connect(radio, PERIPHERAL_ADDRESS)
+
+            val message = message(1000)
+            val fragments = MessageFraming.fragment(message, MessageFraming.fragmentSize(radio.config.mtu))
+            val outgoing = OutgoingMessage("message", fragments.size)
+            fragments.forEach {
+                val operation = DelayedGattOperation(OperandType.Characteristic, OperationType.Write, CHARACTERISTIC, it)
+                operation.message = outgoing
+                connection.gattOperationQueue.queueOperation(operation)
+            }
+
+            assertArrayEquals(message, received.poll(TIMEOUT, TimeUnit.MILLISECONDS))
+            var last = false
+            repeat(fragments.size) { last = outgoing.fragmentDone(central.nextCompletion().success) }
+            assertTrue(last)
+            assertFalse(outgoing.failed)
+        }finally {
+            radio.shutdown()
+        }
+    }
+}
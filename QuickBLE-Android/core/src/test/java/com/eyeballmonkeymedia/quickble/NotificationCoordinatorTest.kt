@@ -0,0 +1,156 @@
+package com.mb3hel.quickble
+
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.CHARACTERISTIC
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.PERIPHERAL_ADDRESS
+import com.mb3hel.quickble.LoopbackTestCentral.Companion.TIMEOUT
+import com.mb3hel.quickble.LoopbackTestCentral.Notification
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * NotificationCoordinator over the loopback link
+ */
+class NotificationCoordinatorTest {
+    private lateinit var radio: LoopbackRadio
+    private lateinit var peripheral: LoopbackPeripheral
+    private val sent = LinkedBlockingQueue<NotificationSet>()
+
+    @Before
+    fun setUp(){
+        radio = LoopbackRadio(LoopbackLinkConfig(latencyMillis = 1, random = Random(1)))
+        peripheral = radio.createPeripheral(PERIPHERAL_ADDRESS)
+        peripheral.addCharacteristic(CHARACTERISTIC)
+        peripheral.listener = object: LoopbackPeripheralListener {
+            override fun onNotificationSetSent(set: NotificationSet){
+                sent.add(set)
+            }
+        }
+        peripheral.start()
+    }
+
+    @After
+    fun tearDown(){
+        radio.shutdown()
+    }
+
+    private fun subscribedCentral(): Pair<LoopbackTestCentral, LoopbackConnection>{
+        val central = LoopbackTestCentral()
+        val connection = central.connect(radio, PERIPHERAL_ADDRESS)
+        central.subscribe(connection, CHARACTERISTIC)
+        return Pair(central, connection)
+    }
+
+    private fun nextSent(): NotificationSet{
+        return sent.poll(TIMEOUT, TimeUnit.MILLISECONDS) ?: throw AssertionError("Notification set was not sent")
+    }
+
+    @Test
+    fun eachDeviceReceivesNotificationsInOrder(){
+        val (first, _) = subscribedCentral()
+        val (second, _) = subscribedCentral()
+
+        repeat(100) { peripheral.notify(CHARACTERISTIC, byteArrayOf(it.toByte())) }
+
+        repeat(100) {
+            assertArrayEquals(byteArrayOf(it.toByte()), first.nextNotification().data)
+            assertArrayEquals(byteArrayOf(it.toByte()), second.nextNotification().data)
+        }
+        repeat(100) {
+            val set = nextSent()
+            assertEquals(2, set.size)
+            assertEquals(0, set.errorCount)
+        }
+    }
+
+    @Test
+    fun coalescingSendsTheLatestValue(){
+        val (central, _) = subscribedCentral()
+        radio.config.latencyMillis = 50
+        peripheral.notificationCoordinator.coalesce = true
+
+        repeat(10) { peripheral.notify(CHARACTERISTIC, byteArrayOf(it.toByte())) }
+
+        // Every set is reported, including the ones merged into a waiting notification
+        repeat(10) { assertEquals(0, nextSent().errorCount) }
+        val received = ArrayList<Notification>()
+        central.notifications.drainTo(received)
+        assertTrue(received.size < 10)
+        assertArrayEquals(byteArrayOf(9), received.last().data)
+    }
+
+    @Test
+    fun onlyNotificationsSentAreCounted(){
+        val (central, _) = subscribedCentral()
+        val started = AtomicInteger()
+        val bytes = AtomicInteger()
+        peripheral.notificationCoordinator.onNotificationStarted = { _, data ->
+            started.incrementAndGet()
+            bytes.addAndGet(data?.size ?: 0)
+        }
+        radio.config.latencyMillis = 50
+        peripheral.notificationCoordinator.coalesce = true
+
+        repeat(10) { peripheral.notify(CHARACTERISTIC, byteArrayOf(it.toByte(), 0)) }
+
+        repeat(10) { nextSent() }
+        // Sets merged into a waiting notification are not sent on their own
+        assertTrue(started.get() < 10)
+        assertEquals(central.notifications.size, started.get())
+        assertEquals(2 * started.get(), bytes.get())
+    }
+
+    @Test
+    fun disconnectFailsWaitingNotifications(){
+        val (central, connection) = subscribedCentral()
+        radio.config.latencyMillis = 100
+
+        repeat(5) { peripheral.notify(CHARACTERISTIC, byteArrayOf(it.toByte())) }
+        connection.disconnect()
+
+        repeat(5) { assertEquals(1, nextSent().errorCount) }
+        Thread.sleep(200)
+        assertTrue(central.notifications.isEmpty())
+        assertTrue(sent.isEmpty())
+    }
+
+    @Test
+    fun injectedErrorsAreCounted(){
+        subscribedCentral()
+        subscribedCentral()
+        val metrics = BLEMetrics()
+        peripheral.notificationCoordinator.metrics = metrics
+        radio.config.errorRate = 1.0
+
+        repeat(3) { peripheral.notify(CHARACTERISTIC, byteArrayOf(it.toByte())) }
+
+        repeat(3) { assertEquals(2, nextSent().errorCount) }
+        assertEquals(6L, metrics.snapshot().gattErrors)
+    }
+
+    @Test
+    fun droppedNotificationsAreNotDelivered(){
+        val (central, _) = subscribedCentral()
+        radio.config.dropRate = 1.0
+
+        repeat(3) { peripheral.notify(CHARACTERISTIC, byteArrayOf(it.toByte())) }
+
+        // Nothing acknowledges a notification so the server can not tell it was lost
+        repeat(3) { assertEquals(0, nextSent().errorCount) }
+        assertTrue(central.notifications.isEmpty())
+    }
+
+    @Test
+    fun notificationsAreCutToTheMtu(){
+        val (central, _) = subscribedCentral()
+
+        peripheral.notify(CHARACTERISTIC, ByteArray(100))
+
+        assertEquals(MessageFraming.fragmentSize(radio.config.mtu), central.nextNotification().data!!.size)
+    }
+}
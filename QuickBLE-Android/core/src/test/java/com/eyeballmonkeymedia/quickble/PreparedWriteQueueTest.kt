@@ -0,0 +1,60 @@
+package com.mb3hel.quickble
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class PreparedWriteQueueTest {
+    private val first = Any()
+    private val second = Any()
+
+    @Test
+    fun chunksAreAssembledByOffset(){
+        val queue = PreparedWriteQueue(1024)
+
+        assertEquals(GattStatus.Success, queue.add(first, 0, byteArrayOf(1, 2, 3)))
+        assertEquals(GattStatus.Success, queue.add(second, 0, byteArrayOf(9)))
+        assertEquals(GattStatus.Success, queue.add(first, 3, ByteArray(100) { 4 }))
+        // Rewriting part of the value does not grow it
+        assertEquals(GattStatus.Success, queue.add(first, 1, byteArrayOf(7)))
+        assertEquals(104, queue.bytes)
+
+        val values = queue.execute()
+        assertEquals(listOf(first, second), values.keys.toList())
+        assertArrayEquals(byteArrayOf(1, 7, 3) + ByteArray(100) { 4 }, values[first])
+        assertArrayEquals(byteArrayOf(9), values[second])
+        // Executing empties the queue
+        assertEquals(0, queue.bytes)
+        assertTrue(queue.execute().isEmpty())
+    }
+
+    @Test
+    fun gapIsAnInvalidOffset(){
+        val queue = PreparedWriteQueue(1024)
+
+        assertEquals(GattStatus.InvalidOffset, queue.add(first, 1, byteArrayOf(1)))
+        assertEquals(GattStatus.Success, queue.add(first, 0, byteArrayOf(1)))
+        assertEquals(GattStatus.InvalidOffset, queue.add(first, 2, byteArrayOf(1)))
+        assertEquals(GattStatus.InvalidOffset, queue.add(first, -1, byteArrayOf(1)))
+    }
+
+    @Test
+    fun queueIsLimitedToMaxSize(){
+        val queue = PreparedWriteQueue(10)
+
+        assertEquals(GattStatus.Success, queue.add(first, 0, ByteArray(6)))
+        assertEquals(GattStatus.PrepareQueueFull, queue.add(second, 0, ByteArray(5)))
+        assertEquals(GattStatus.Success, queue.add(second, 0, ByteArray(4)))
+        assertEquals(10, queue.bytes)
+    }
+
+    @Test
+    fun clearDropsEveryChunk(){
+        val queue = PreparedWriteQueue(1024)
+        queue.add(first, 0, byteArrayOf(1))
+
+        queue.clear()
+
+        assertEquals(0, queue.bytes)
+        assertTrue(queue.execute().isEmpty())
+    }
+}
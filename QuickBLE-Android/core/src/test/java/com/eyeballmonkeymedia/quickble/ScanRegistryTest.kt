@@ -0,0 +1,79 @@
+package com.mb3hel.quickble
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class ScanRegistryTest {
+    private val address = "00:11:22:33:44:55"
+    private val second = 1000000000L
+
+    @Test
+    fun firstAdvertisementIsAlwaysReported(){
+        val registry = ScanRegistry()
+        registry.policy = ScanReportPolicy.FirstSeen
+        var added = 0
+        registry.onNewDevice = { added++ }
+
+        assertNotNull(registry.onAdvertisement(address, -50, null, 0))
+        assertNull(registry.onAdvertisement(address, -50, null, 1))
+        assertNotNull(registry.onAdvertisement("AA:BB:CC:DD:EE:FF", -50, null, 2))
+        assertEquals(2, added)
+        assertEquals(2, registry.size)
+    }
+
+    @Test
+    fun alwaysReportsEveryAdvertisement(){
+        val registry = ScanRegistry()
+
+        repeat(5) { assertNotNull(registry.onAdvertisement(address, -50, null, it.toLong())) }
+        assertEquals(5L, registry[address]!!.advertisements)
+    }
+
+    @Test
+    fun rssiChangeReportsOnceTheThresholdIsReached(){
+        val registry = ScanRegistry()
+        registry.policy = ScanReportPolicy.RssiChange
+        registry.rssiThreshold = 5
+        registry.rssiSmoothing = 1.0
+
+        registry.onAdvertisement(address, -50, null, 0)
+        assertNull(registry.onAdvertisement(address, -54, null, 1))
+        assertNotNull(registry.onAdvertisement(address, -55, null, 2))
+        // Measured from the last report
+        assertNull(registry.onAdvertisement(address, -58, null, 3))
+    }
+
+    @Test
+    fun rateLimitedReportsAtMostMaxReportRate(){
+        val registry = ScanRegistry()
+        registry.policy = ScanReportPolicy.RateLimited
+        registry.maxReportRate = 2.0
+
+        registry.onAdvertisement(address, -50, null, 0)
+        assertNull(registry.onAdvertisement(address, -50, null, second / 4))
+        assertNotNull(registry.onAdvertisement(address, -50, null, second / 2))
+    }
+
+    @Test
+    fun rssiIsSmoothed(){
+        val registry = ScanRegistry()
+        registry.rssiSmoothing = 0.5
+
+        registry.onAdvertisement(address, -50, null, 0)
+        val device = registry.onAdvertisement(address, -70, null, 1)!!
+
+        assertEquals(-60, device.rssi)
+        assertEquals(-70, device.rawRssi)
+    }
+
+    @Test
+    fun resetReportsReportsEveryDeviceAgain(){
+        val registry = ScanRegistry()
+        registry.policy = ScanReportPolicy.FirstSeen
+        registry.onAdvertisement(address, -50, null, 0)
+
+        registry.resetReports()
+
+        assertNotNull(registry.onAdvertisement(address, -50, null, 1))
+    }
+}